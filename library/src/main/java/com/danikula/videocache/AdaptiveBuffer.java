@@ -0,0 +1,70 @@
+package com.danikula.videocache;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Buffer for copy loops that adapts its size to observed throughput: it grows while reads fill it completely
+ * (data comes faster than it is consumed) and shrinks while reads use only small part of it.
+ * Sources fill buffer with several network reads for limited time (see {@link ProxyCacheUtils#fill}),
+ * so buffer grows past network's chunk size for fast connections only.
+ * Buffers are taken from and returned to {@link BufferPool}.
+ * <p/>
+ * Not thread safe, should be used by single copy loop.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class AdaptiveBuffer {
+
+    private static final int FULL_READS_TO_GROW    = 4;
+    private static final int SMALL_READS_TO_SHRINK = 16;
+
+    private final BufferPool pool;
+    private       byte[]     buffer;
+    private       int        fullReads;
+    private       int        smallReads;
+
+    AdaptiveBuffer(BufferPool pool) {
+        this.pool = checkNotNull(pool);
+        this.buffer = pool.acquire(pool.minSize);
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Reports count of bytes read into the buffer by last read, buffer may be replaced after this call.
+     *
+     * @param readBytes count of bytes read.
+     */
+    void onRead(int readBytes) {
+        if (readBytes >= buffer.length) {
+            smallReads = 0;
+            if (++fullReads >= FULL_READS_TO_GROW && buffer.length < pool.maxSize) {
+                resize(buffer.length << 1);
+            }
+        } else if (readBytes < buffer.length / 4) {
+            fullReads = 0;
+            if (++smallReads >= SMALL_READS_TO_SHRINK && buffer.length > pool.minSize) {
+                resize(buffer.length >> 1);
+            }
+        } else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+    }
+
+    void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private void resize(int size) {
+        pool.release(buffer);
+        buffer = pool.acquire(size);
+        fullReads = 0;
+        smallReads = 0;
+    }
+}
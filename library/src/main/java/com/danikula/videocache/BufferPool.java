@@ -0,0 +1,105 @@
+package com.danikula.videocache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+
+/**
+ * Bounded thread safe pool of byte buffers shared by all requests and source readers of a server.
+ * Buffers sizes are powers of two between min and max size, so buffers released by one request
+ * can be reused by another one instead of allocating new arrays. Total size of idle pooled buffers
+ * never exceeds pool's capacity.
+ * File caches take their staging buffers from the same pool.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class BufferPool {
+
+    static final int  DEFAULT_MIN_BUFFER_SIZE = ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+    static final int  DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+    static final long DEFAULT_CAPACITY        = 2 * 1024 * 1024;
+
+    private static final BufferPool DEFAULT_POOL = new BufferPool(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE, DEFAULT_CAPACITY);
+
+    final int minSize;
+    final int maxSize;
+    private final long                capacity;
+    private final List<Queue<byte[]>> pools       = new ArrayList<>();
+    private final AtomicLong          pooledBytes = new AtomicLong();
+    private final AtomicLong          hits        = new AtomicLong();
+    private final AtomicLong          misses      = new AtomicLong();
+
+    BufferPool(int minSize, int maxSize) {
+        this(minSize, maxSize, DEFAULT_CAPACITY);
+    }
+
+    BufferPool(int minSize, int maxSize, long capacity) {
+        checkArgument(minSize > 0, "Min buffer size must be positive!");
+        checkArgument(maxSize >= minSize, "Max buffer size must not be less than min size!");
+        checkArgument(maxSize <= 1 << 30, "Max buffer size is too big!");
+        checkArgument(capacity >= 0, "Pool capacity must be non-negative!");
+        this.minSize = roundUpToPowerOfTwo(minSize);
+        this.maxSize = roundUpToPowerOfTwo(maxSize);
+        this.capacity = capacity;
+        for (int size = this.minSize; size <= this.maxSize; size <<= 1) {
+            pools.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    /**
+     * Returns buffer with length equal to requested size rounded up to power of two and clamped by pool's limits.
+     *
+     * @param size desired buffer size.
+     * @return a buffer, pooled or newly allocated one.
+     */
+    public byte[] acquire(int size) {
+        int bufferSize = Math.min(maxSize, Math.max(minSize, roundUpToPowerOfTwo(size)));
+        byte[] buffer = pools.get(indexOf(bufferSize)).poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return new byte[bufferSize];
+        }
+        pooledBytes.addAndGet(-bufferSize);
+        hits.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool. Buffer must not be used by caller after releasing.
+     * Buffer is just dropped if pool is full.
+     *
+     * @param buffer a buffer acquired from this pool.
+     */
+    public void release(byte[] buffer) {
+        int size = buffer.length;
+        if (size < minSize || size > maxSize || Integer.bitCount(size) != 1) {
+            return;
+        }
+        if (pooledBytes.addAndGet(size) > capacity) {
+            pooledBytes.addAndGet(-size);
+            return;
+        }
+        pools.get(indexOf(size)).offer(buffer);
+    }
+
+    BufferPoolStats getStats() {
+        return new BufferPoolStats(hits.get(), misses.get(), pooledBytes.get(), capacity);
+    }
+
+    private int indexOf(int size) {
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+}
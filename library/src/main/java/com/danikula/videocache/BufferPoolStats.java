@@ -0,0 +1,43 @@
+package com.danikula.videocache;
+
+/**
+ * Snapshot of {@link HttpProxyCacheServer}'s buffer pool usage. Hit rate close to {@code 1} means
+ * steady-state serving doesn't allocate buffers at all.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class BufferPoolStats {
+
+    public final long hits;
+    public final long misses;
+    public final long pooledBytes;
+    public final long capacity;
+
+    BufferPoolStats(long hits, long misses, long pooledBytes, long capacity) {
+        this.hits = hits;
+        this.misses = misses;
+        this.pooledBytes = pooledBytes;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns ratio of buffers taken from pool to all requested buffers.
+     *
+     * @return a hit rate in range [0..1], {@code 0} if there were no requests yet.
+     */
+    public float getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (float) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPoolStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", hitRate=" + getHitRate() +
+                ", pooledBytes=" + pooledBytes +
+                ", capacity=" + capacity +
+                '}';
+    }
+}
@@ -56,6 +56,19 @@ public class ByteArrayCache implements Cache {
         completed = true;
     }
 
+    @Override
+    public void clear() throws ProxyCacheException {
+        if (completed) {
+            throw new ProxyCacheException("Error clearing cache: cache is completed!");
+        }
+        data = new byte[0];
+    }
+
+    @Override
+    public void reserve(long length) throws ProxyCacheException {
+        // data is kept in memory, nothing to reserve
+    }
+
     @Override
     public boolean isCompleted() {
         return completed;
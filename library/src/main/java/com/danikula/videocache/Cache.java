@@ -17,5 +17,21 @@ public interface Cache {
 
     void complete() throws ProxyCacheException;
 
+    /**
+     * Discards all cached data of not completed cache, e.g. when source is changed and can't be resumed.
+     *
+     * @throws ProxyCacheException if cache is completed or error occur while discarding data.
+     */
+    void clear() throws ProxyCacheException;
+
+    /**
+     * Notifies cache about total length of data to be cached, so it can reserve space up front.
+     * It is just a hint, cache may ignore it.
+     *
+     * @param length total length of source's data in bytes.
+     * @throws ProxyCacheException if error occur while reserving space.
+     */
+    void reserve(long length) throws ProxyCacheException;
+
     boolean isCompleted();
 }
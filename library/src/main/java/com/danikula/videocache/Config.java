@@ -1,11 +1,17 @@
 package com.danikula.videocache;
 
+import com.danikula.videocache.file.CacheTiers;
 import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.FlushPolicy;
 import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.key.CacheKeyExtractor;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+import com.danikula.videocache.validation.RevalidationPolicy;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Configuration for proxy cache.
@@ -14,23 +20,136 @@ import java.io.File;
  */
 class Config {
 
-    public final File              cacheRoot;
-    public final FileNameGenerator fileNameGenerator;
-    public final DiskUsage         diskUsage;
-    public final SourceInfoStorage sourceInfoStorage;
-    public final HeaderInjector    headerInjector;
+    private static final int CACHE_FILES_MEMO_SIZE = 256;
+    private static final int DURATION_HINTS_SIZE   = 256;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+    public final File               cacheRoot;
+    public final FileNameGenerator  fileNameGenerator;
+    public final DiskUsage          diskUsage;
+    public final SourceInfoStorage  sourceInfoStorage;
+    public final HeaderInjector     headerInjector;
+    public final CacheKeyExtractor  cacheKeyExtractor;
+    public final RevalidationPolicy revalidationPolicy;
+    public final CacheTiers         cacheTiers;
+    public final ResolvedUrlCache   resolvedUrlCache;
+    public final BufferPool         bufferPool;
+    public final FlushPolicy        flushPolicy;
+    public final boolean            preallocateFiles;
+    public final boolean            originExpiryUsed;
+    public final int                hlsPrefetchCount;
+    private final Map<String, File> cacheFilesMemo = new LinkedHashMap<String, File>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+            return size() > CACHE_FILES_MEMO_SIZE;
+        }
+    };
+    private final Map<String, Long> durationHints  = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > DURATION_HINTS_SIZE;
+        }
+    };
+
+    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, File bulkCacheRoot,
+           DiskUsage bulkDiskUsage, SourceInfoStorage sourceInfoStorage,
+           HeaderInjector headerInjector, CacheKeyExtractor cacheKeyExtractor, RevalidationPolicy revalidationPolicy,
+           long resolvedUrlTtl, BufferPool bufferPool, FlushPolicy flushPolicy,
+           boolean preallocateFiles, boolean originExpiryUsed, int hlsPrefetchCount) {
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
         this.diskUsage = diskUsage;
         this.sourceInfoStorage = sourceInfoStorage;
         this.headerInjector = headerInjector;
+        this.cacheKeyExtractor = cacheKeyExtractor;
+        this.revalidationPolicy = revalidationPolicy;
+        this.cacheTiers = new CacheTiers(cacheRoot, diskUsage, bulkCacheRoot, bulkDiskUsage);
+        this.resolvedUrlCache = new ResolvedUrlCache(resolvedUrlTtl);
+        this.bufferPool = bufferPool;
+        this.flushPolicy = flushPolicy;
+        this.preallocateFiles = preallocateFiles;
+        this.originExpiryUsed = originExpiryUsed;
+        this.hlsPrefetchCount = hlsPrefetchCount;
+    }
+
+    /**
+     * Returns key identifying cached content for url. Should be used instead of url for everything stored in cache,
+     * while url itself should be used for fetching data.
+     *
+     * @param url an url.
+     * @return a cache key.
+     */
+    String cacheKey(String url) {
+        return cacheKeyExtractor.extract(url);
+    }
+
+    /**
+     * Checks whether fully cached data for url should be revalidated with origin before using.
+     *
+     * @param url an url.
+     * @return {@code true} if revalidation is required.
+     */
+    boolean shouldRevalidate(String url) {
+        return revalidationPolicy.shouldRevalidate(cacheKey(url));
+    }
+
+    /**
+     * Remembers media's duration known by client, e.g. from feed's metadata. It is used for estimating bitrate
+     * of media which header doesn't tell duration. Hints are kept in memory for recently used urls only.
+     *
+     * @param url      an url of media.
+     * @param duration a duration in milliseconds.
+     */
+    void setDurationHint(String url, long duration) {
+        synchronized (durationHints) {
+            durationHints.put(cacheKey(url), duration);
+        }
+    }
+
+    /**
+     * Returns media's duration set by {@link #setDurationHint(String, long)}.
+     *
+     * @param url an url of media.
+     * @return a duration in milliseconds or {@code -1} if it is unknown.
+     */
+    long getDurationHint(String url) {
+        synchronized (durationHints) {
+            Long duration = durationHints.get(cacheKey(url));
+            return duration != null ? duration : -1;
+        }
+    }
+
+    /**
+     * Returns fully cached file for url from the fastest cache tier having it.
+     *
+     * @param url an url to get cached file for.
+     * @return a completed cache file or {@code null} if url is not fully cached.
+     */
+    File findCompletedFile(String url) {
+        return cacheTiers.findCompleted(generateCacheFile(url));
     }
 
+    /**
+     * Returns cache file for url in fast tier. Results for recently used urls are memoized, so repeated calls
+     * for the same url (e.g. {@code isCached} and {@code getProxyUrl} while binding list) don't compute hash again.
+     *
+     * @param url an url to get cache file for.
+     * @return a cache file.
+     */
     File generateCacheFile(String url) {
-        String name = fileNameGenerator.generate(url);
-        return new File(cacheRoot, name);
+        synchronized (cacheFilesMemo) {
+            File file = cacheFilesMemo.get(url);
+            if (file != null) {
+                return file;
+            }
+        }
+        String name = fileNameGenerator.generate(cacheKey(url));
+        File file = new File(cacheRoot, name);
+        synchronized (cacheFilesMemo) {
+            cacheFilesMemo.put(url, file);
+        }
+        return file;
     }
 
 }
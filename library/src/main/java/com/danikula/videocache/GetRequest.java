@@ -1,11 +1,11 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
+import com.danikula.videocache.headers.HeaderInjector;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,10 +20,30 @@ class GetRequest {
 
     private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
     private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
+    private static final int INITIAL_HEADERS_BUFFER_SIZE = 8 * 1024;
+    static final int MAX_HEADERS_SIZE = 64 * 1024;
+
+    /**
+     * Header marking background request made by proxy itself to cache data in advance, e.g. prefetching of HLS segment.
+     */
+    static final String PREFETCH_HEADER = "X-VideoCache-Prefetch";
+    /**
+     * Marks proxy's own requests with {@link #PREFETCH_HEADER}.
+     */
+    static final HeaderInjector PREFETCH_HEADER_INJECTOR = new HeaderInjector() {
+
+        @Override
+        public Map<String, String> addHeaders(String url) {
+            return Collections.singletonMap(PREFETCH_HEADER, "1");
+        }
+    };
+    private static final Pattern PREFETCH_HEADER_PATTERN = Pattern.compile("^" + PREFETCH_HEADER + ":",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
 
     public final String uri;
     public final long rangeOffset;
     public final boolean partial;
+    public final boolean prefetch;
 
     public GetRequest(String request) {
         checkNotNull(request);
@@ -31,16 +51,70 @@ class GetRequest {
         this.rangeOffset = Math.max(0, offset);
         this.partial = offset >= 0;
         this.uri = findUri(request);
+        this.prefetch = PREFETCH_HEADER_PATTERN.matcher(request).find();
     }
 
     public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
+        return read(inputStream, BufferPool.getDefault());
+    }
+
+    /**
+     * Reads request's headers into pooled buffer without any readers and per line strings.
+     * Reading stops at empty line (headers ending) or end of stream, buffer grows until
+     * {@link #MAX_HEADERS_SIZE} for long headers (e.g. urls with signatures and cookies).
+     *
+     * @throws RequestHeadersTooLargeException if headers don't fit to {@link #MAX_HEADERS_SIZE} bytes.
+     */
+    static GetRequest read(InputStream inputStream, BufferPool bufferPool) throws IOException {
+        byte[] buffer = bufferPool.acquire(INITIAL_HEADERS_BUFFER_SIZE);
+        try {
+            int length = 0;
+            int headersEnd = -1;
+            int readBytes;
+            while (headersEnd < 0) {
+                if (length == buffer.length) {
+                    if (buffer.length >= MAX_HEADERS_SIZE) {
+                        throw new RequestHeadersTooLargeException("Request headers exceed " + MAX_HEADERS_SIZE + " bytes");
+                    }
+                    buffer = grow(buffer, length, bufferPool);
+                }
+                readBytes = inputStream.read(buffer, length, buffer.length - length);
+                if (readBytes == -1) {
+                    break;
+                }
+                int searchFrom = Math.max(0, length - 3);
+                length += readBytes;
+                headersEnd = indexOfHeadersEnd(buffer, searchFrom, length);
+            }
+            return new GetRequest(new String(buffer, 0, headersEnd < 0 ? length : headersEnd, "UTF-8"));
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int length, BufferPool bufferPool) {
+        int size = Math.min(MAX_HEADERS_SIZE, buffer.length * 2);
+        byte[] grown = bufferPool.acquire(size);
+        if (grown.length < size) {
+            bufferPool.release(grown); // pool's buffers are too small
+            grown = new byte[size];
+        }
+        System.arraycopy(buffer, 0, grown, 0, length);
+        bufferPool.release(buffer);
+        return grown;
+    }
+
+    private static int indexOfHeadersEnd(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] != '\n') {
+                continue;
+            }
+            int next = i + 1 < to && buffer[i + 1] == '\r' ? i + 2 : i + 1;
+            if (i == 0 || next < to && buffer[next] == '\n') {
+                return i;
+            }
         }
-        return new GetRequest(stringRequest.toString());
+        return -1;
     }
 
     private long findRangeOffset(String request) {
@@ -65,6 +139,7 @@ class GetRequest {
         return "GetRequest{" +
                 "rangeOffset=" + rangeOffset +
                 ", partial=" + partial +
+                ", prefetch=" + prefetch +
                 ", uri='" + uri + '\'' +
                 '}';
     }
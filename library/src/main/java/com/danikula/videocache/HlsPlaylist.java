@@ -0,0 +1,190 @@
+package com.danikula.videocache;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HLS playlist (RFC 8216) that knows urls of its segments and nested playlists and can rewrite them.
+ * <p>
+ * All relative uris are resolved against playlist's url, because rewritten playlist is served from another origin.
+ * Segments, initialization sections and nested playlists are rewritten with {@link UrlRewriter}, other uris
+ * (e.g. encryption keys) are just made absolute and fetched by player directly.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class HlsPlaylist {
+
+    static final String MIME = "application/vnd.apple.mpegurl";
+
+    private static final String   HEADER                = "#EXTM3U";
+    private static final String   STREAM_INF_TAG        = "#EXT-X-STREAM-INF:";
+    private static final String   END_LIST_TAG          = "#EXT-X-ENDLIST";
+    private static final String   MAP_TAG               = "#EXT-X-MAP:";
+    private static final String[] PLAYLIST_URI_TAGS     = {"#EXT-X-MEDIA:", "#EXT-X-I-FRAME-STREAM-INF:"};
+    private static final Pattern  URI_ATTRIBUTE_PATTERN = Pattern.compile("URI=\"([^\"]*)\"");
+
+    private final String       baseUrl;
+    private final List<String> lines;
+    private final List<String> segmentUrls  = new ArrayList<>();
+    private final List<String> playlistUrls = new ArrayList<>();
+    private boolean            master;
+    private boolean            complete;
+
+    HlsPlaylist(String content, String baseUrl) {
+        this.baseUrl = baseUrl;
+        this.lines = new ArrayList<>();
+        Collections.addAll(lines, content.split("\r?\n"));
+        parse();
+    }
+
+    /**
+     * Checks whether url points to HLS playlist by its extension.
+     */
+    static boolean isPlaylistUrl(String url) {
+        int end = url.length();
+        int queryIndex = url.indexOf('?');
+        int fragmentIndex = url.indexOf('#');
+        if (queryIndex >= 0) {
+            end = queryIndex;
+        }
+        if (fragmentIndex >= 0 && fragmentIndex < end) {
+            end = fragmentIndex;
+        }
+        String path = url.substring(0, end).toLowerCase(Locale.US);
+        return path.endsWith(".m3u8");
+    }
+
+    static boolean isPlaylist(String content) {
+        String trimmed = content.startsWith("\uFEFF") ? content.substring(1) : content;
+        return trimmed.startsWith(HEADER);
+    }
+
+    private void parse() {
+        boolean variantExpected = false;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (trimmed.startsWith("#")) {
+                if (trimmed.startsWith(STREAM_INF_TAG)) {
+                    variantExpected = true;
+                    master = true;
+                } else if (trimmed.startsWith(END_LIST_TAG)) {
+                    complete = true;
+                } else if (isPlaylistUriTag(trimmed)) {
+                    master = true;
+                    addUriAttribute(trimmed, playlistUrls);
+                } else if (trimmed.startsWith(MAP_TAG)) {
+                    addUriAttribute(trimmed, segmentUrls);
+                }
+                continue;
+            }
+            (variantExpected ? playlistUrls : segmentUrls).add(resolve(trimmed));
+            variantExpected = false;
+        }
+    }
+
+    private void addUriAttribute(String tag, List<String> urls) {
+        Matcher matcher = URI_ATTRIBUTE_PATTERN.matcher(tag);
+        if (matcher.find()) {
+            urls.add(resolve(matcher.group(1)));
+        }
+    }
+
+    private boolean isPlaylistUriTag(String line) {
+        for (String tag : PLAYLIST_URI_TAGS) {
+            if (line.startsWith(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String resolve(String uri) {
+        try {
+            return new URL(new URL(baseUrl), uri).toString();
+        } catch (MalformedURLException e) {
+            HttpProxyCacheDebuger.printfWarning("Can't resolve uri " + uri + " against " + baseUrl);
+            return uri;
+        }
+    }
+
+    /**
+     * Checks whether playlist is master one: it lists variant streams and renditions instead of segments.
+     */
+    boolean isMaster() {
+        return master;
+    }
+
+    /**
+     * Checks whether playlist will never change: it is master playlist or media playlist of VOD (or ended event)
+     * stream, so it can be cached.
+     */
+    boolean isComplete() {
+        return master || complete;
+    }
+
+    /**
+     * Returns absolute urls of media segments and initialization sections in playback order.
+     */
+    List<String> getSegmentUrls() {
+        return Collections.unmodifiableList(segmentUrls);
+    }
+
+    /**
+     * Returns absolute urls of nested playlists (variant streams, renditions, I-frame playlists).
+     */
+    List<String> getPlaylistUrls() {
+        return Collections.unmodifiableList(playlistUrls);
+    }
+
+    /**
+     * Returns content of playlist with urls of segments and nested playlists rewritten and other uris made absolute.
+     *
+     * @param rewriter a rewriter for urls that should be fetched through proxy.
+     * @return a rewritten playlist.
+     */
+    String rewrite(UrlRewriter rewriter) {
+        StringBuilder result = new StringBuilder();
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                result.append(line);
+            } else if (!trimmed.startsWith("#")) {
+                result.append(rewriter.rewrite(resolve(trimmed)));
+            } else if (trimmed.startsWith("#EXT")) {
+                boolean proxied = isPlaylistUriTag(trimmed) || trimmed.startsWith(MAP_TAG);
+                result.append(rewriteUriAttribute(trimmed, proxied ? rewriter : null));
+            } else {
+                result.append(line); // comment
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    private String rewriteUriAttribute(String tag, UrlRewriter rewriter) {
+        Matcher matcher = URI_ATTRIBUTE_PATTERN.matcher(tag);
+        if (!matcher.find()) {
+            return tag;
+        }
+        String url = resolve(matcher.group(1));
+        String uri = rewriter == null ? url : rewriter.rewrite(url);
+        return tag.substring(0, matcher.start(1)) + uri + tag.substring(matcher.end(1));
+    }
+
+    /**
+     * Rewrites absolute url of playlist's item, e.g. to proxy url.
+     */
+    interface UrlRewriter {
+
+        String rewrite(String url);
+    }
+}
@@ -0,0 +1,339 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.CacheIndex;
+import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves HLS playlists with urls of segments and nested playlists rewritten to proxy urls, so player fetches
+ * everything through proxy and every segment is cached as separate entry.
+ * <p>
+ * Completed playlists (master and VOD ones) are cached too, so cached stream can be played offline.
+ * Segments and playlists of all renditions are grouped under master playlist's entry
+ * (see {@link CacheIndex#setGroup(File, File)}), so stream is evicted as a whole instead of scattered segments.
+ * Optionally segments following requested one are prefetched in background.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class HlsPlaylistProxy {
+
+    private static final int MAX_RECENT_PLAYLISTS = 8;
+    private static final int MAX_KNOWN_PLAYLISTS  = 64;
+
+    private final Config                       config;
+    private final String                       host;
+    private final int                          port;
+    private final int                          prefetchCount;
+    private final LinkedList<MediaPlaylist>    recentPlaylists = new LinkedList<>();
+    private final Set<String>                  prefetchingUrls = Collections.synchronizedSet(new HashSet<String>());
+    private final ExecutorService              prefetchExecutor;
+    private final Map<String, File>            playlistGroups  = new LinkedHashMap<String, File>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+            return size() > MAX_KNOWN_PLAYLISTS;
+        }
+    };
+    private final HlsPlaylist.UrlRewriter      proxyUrlRewriter = new HlsPlaylist.UrlRewriter() {
+
+        @Override
+        public String rewrite(String url) {
+            return toProxyUrl(url);
+        }
+    };
+
+    HlsPlaylistProxy(Config config, String host, int port) {
+        this.config = config;
+        this.host = host;
+        this.port = port;
+        this.prefetchCount = config.hlsPrefetchCount;
+        this.prefetchExecutor = prefetchCount > 0 ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    private String toProxyUrl(String url) {
+        return String.format(Locale.US, "http://%s:%d/%s", host, port, ProxyCacheUtils.encode(url));
+    }
+
+    /**
+     * Responds to request for playlist with rewritten playlist. Range requests are answered with whole playlist.
+     */
+    void processRequest(String url, Socket socket) throws ProxyCacheException, IOException {
+        File file = config.generateCacheFile(url);
+        HlsPlaylist playlist = loadPlaylist(url, file);
+        File group = findGroup(url, file);
+        if (playlist.isMaster()) {
+            for (String playlistUrl : playlist.getPlaylistUrls()) {
+                registerGroup(playlistUrl, group);
+            }
+        } else {
+            rememberPlaylist(new MediaPlaylist(group, playlist.getSegmentUrls()));
+        }
+        byte[] body = playlist.rewrite(proxyUrlRewriter).getBytes("UTF-8");
+        String headers = String.format(Locale.US, "HTTP/1.1 200 OK\nContent-Type: %s\nContent-Length: %d\n\n",
+                HlsPlaylist.MIME, body.length);
+        OutputStream out = socket.getOutputStream();
+        out.write(headers.getBytes("UTF-8"));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Called for every request of media data. Segment of known playlist is added to playlist's group and
+     * following segments are prefetched if it is enabled.
+     *
+     * @param url      an url of requested media data.
+     * @param prefetch {@code true} if it is proxy's own prefetching request, it doesn't trigger further prefetching.
+     */
+    void onSegmentRequested(String url, boolean prefetch) {
+        MediaPlaylist playlist = findPlaylist(url);
+        if (playlist == null) {
+            return;
+        }
+        File file = config.generateCacheFile(url);
+        CacheIndex.of(file.getParentFile()).setGroup(file, playlist.group);
+        if (prefetch) {
+            return;
+        }
+        int index = playlist.segmentUrls.indexOf(url);
+        int end = Math.min(playlist.segmentUrls.size(), index + 1 + prefetchCount);
+        for (int i = index + 1; i < end; i++) {
+            prefetch(playlist.segmentUrls.get(i));
+        }
+    }
+
+    void shutdown() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+    }
+
+    private HlsPlaylist loadPlaylist(String url, File file) throws ProxyCacheException {
+        File cachedFile = config.cacheTiers.findCompleted(file);
+        boolean cacheActual = cachedFile != null && !config.shouldRevalidate(url) &&
+                !CacheIndex.of(cachedFile.getParentFile()).isExpired(cachedFile);
+        if (cacheActual) {
+            return readCachedPlaylist(url, cachedFile);
+        }
+        try {
+            return fetchPlaylist(url, file);
+        } catch (ProxyCacheException e) {
+            if (cachedFile == null) {
+                throw e;
+            }
+            HttpProxyCacheDebuger.printfWarning("Error fetching playlist " + url + ", cached one is used: " + e.getMessage());
+            return readCachedPlaylist(url, cachedFile);
+        }
+    }
+
+    private HlsPlaylist fetchPlaylist(String url, File file) throws ProxyCacheException {
+        OkHttpSource source = new OkHttpSource(url, config);
+        byte[] content;
+        try {
+            source.open(0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = config.bufferPool.acquire(BufferPool.DEFAULT_MIN_BUFFER_SIZE);
+            try {
+                int readBytes;
+                while ((readBytes = source.read(buffer)) != -1) {
+                    out.write(buffer, 0, readBytes);
+                }
+            } finally {
+                config.bufferPool.release(buffer);
+            }
+            content = out.toByteArray();
+        } finally {
+            source.close();
+        }
+        HlsPlaylist playlist = parse(content, source.getFinalUrl(), url);
+        if (config.shouldRevalidate(url)) {
+            config.revalidationPolicy.onRevalidated(config.cacheKey(url));
+        }
+        if (playlist.isComplete()) {
+            savePlaylist(file, content);
+        }
+        return playlist;
+    }
+
+    private HlsPlaylist readCachedPlaylist(String url, File cachedFile) throws ProxyCacheException {
+        byte[] content = new byte[(int) cachedFile.length()];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cachedFile);
+            int offset = 0;
+            int readBytes;
+            while (offset < content.length && (readBytes = in.read(content, offset, content.length - offset)) != -1) {
+                offset += readBytes;
+            }
+            config.cacheTiers.onAccessed(cachedFile);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error reading cached playlist " + cachedFile, e);
+        } finally {
+            ProxyCacheUtils.close(in);
+        }
+        SourceInfo sourceInfo = config.sourceInfoStorage.get(config.cacheKey(url));
+        String baseUrl = sourceInfo != null && sourceInfo.url != null ? sourceInfo.url : url;
+        return parse(content, baseUrl, url);
+    }
+
+    private HlsPlaylist parse(byte[] content, String baseUrl, String url) throws ProxyCacheException {
+        try {
+            String text = new String(content, "UTF-8");
+            if (!HlsPlaylist.isPlaylist(text)) {
+                throw new ProxyCacheException("Content of " + url + " is not HLS playlist");
+            }
+            return new HlsPlaylist(text, baseUrl);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error decoding playlist " + url, e);
+        }
+    }
+
+    private synchronized void savePlaylist(File file, byte[] content) throws ProxyCacheException {
+        config.cacheTiers.delete(file); // stale copy, if any
+        FileCache cache = new FileCache(file, config.cacheTiers.getDiskUsage(file), config.flushPolicy, false,
+                config.bufferPool);
+        try {
+            if (!cache.isCompleted()) {
+                if (cache.available() > 0) {
+                    cache.clear(); // leftover of interrupted saving must not be resumed
+                }
+                cache.append(content, content.length);
+                cache.complete();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private File findGroup(String url, File file) {
+        synchronized (playlistGroups) {
+            File group = playlistGroups.get(url);
+            if (group != null) {
+                return group;
+            }
+        }
+        File group = CacheIndex.of(file.getParentFile()).getGroup(file);
+        return group != null ? group : file;
+    }
+
+    private void registerGroup(String playlistUrl, File group) {
+        synchronized (playlistGroups) {
+            playlistGroups.put(playlistUrl, group);
+        }
+        File playlistFile = config.generateCacheFile(playlistUrl);
+        CacheIndex.of(playlistFile.getParentFile()).setGroup(playlistFile, group);
+    }
+
+    private void rememberPlaylist(MediaPlaylist playlist) {
+        synchronized (recentPlaylists) {
+            Iterator<MediaPlaylist> iterator = recentPlaylists.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().segmentUrls.equals(playlist.segmentUrls)) {
+                    iterator.remove();
+                }
+            }
+            recentPlaylists.addFirst(playlist);
+            if (recentPlaylists.size() > MAX_RECENT_PLAYLISTS) {
+                recentPlaylists.removeLast();
+            }
+        }
+    }
+
+    private MediaPlaylist findPlaylist(String segmentUrl) {
+        synchronized (recentPlaylists) {
+            for (MediaPlaylist playlist : recentPlaylists) {
+                if (playlist.segmentUrls.contains(segmentUrl)) {
+                    return playlist;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void prefetch(String url) {
+        if (config.findCompletedFile(url) != null || !prefetchingUrls.add(url)) {
+            return;
+        }
+        try {
+            prefetchExecutor.execute(new PrefetchRunnable(url));
+        } catch (RejectedExecutionException e) {
+            prefetchingUrls.remove(url);
+        }
+    }
+
+    /**
+     * Reads segment through proxy itself, so it is cached exactly like requested by player.
+     * Request is marked with {@link GetRequest#PREFETCH_HEADER} to be distinguished from player's one.
+     */
+    private void prefetchSegment(String url) {
+        OkHttpSource source = new OkHttpSource(toProxyUrl(url), SourceInfoStorageFactory.newEmptySourceInfoStorage(),
+                GetRequest.PREFETCH_HEADER_INJECTOR);
+        byte[] buffer = config.bufferPool.acquire(BufferPool.DEFAULT_MAX_BUFFER_SIZE);
+        try {
+            source.open(0);
+            while (source.read(buffer) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            HttpProxyCacheDebuger.printfLog("Segment " + url + " is prefetched");
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error prefetching segment " + url + ": " + e.getMessage());
+        } finally {
+            config.bufferPool.release(buffer);
+            try {
+                source.close();
+            } catch (ProxyCacheException e) {
+                HttpProxyCacheDebuger.printfWarning("Error closing prefetching source: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class MediaPlaylist {
+
+        private final File         group;
+        private final List<String> segmentUrls;
+
+        MediaPlaylist(File group, List<String> segmentUrls) {
+            this.group = group;
+            this.segmentUrls = segmentUrls;
+        }
+    }
+
+    private final class PrefetchRunnable implements Runnable {
+
+        private final String url;
+
+        PrefetchRunnable(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            try {
+                prefetchSegment(url);
+            } finally {
+                prefetchingUrls.remove(url);
+            }
+        }
+    }
+}
@@ -4,14 +4,11 @@ import android.text.TextUtils;
 
 import com.danikula.videocache.file.FileCache;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Locale;
 
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
-
 /**
  * {@link ProxyCache} that read http url and writes data to {@link Socket}
  *
@@ -21,14 +18,32 @@ class HttpProxyCache extends ProxyCache {
 
     private static final float NO_CACHE_BARRIER = .2f;
 
-    private final OkHttpSource source;
-    private final FileCache     cache;
-    private       CacheListener listener;
+    private final OkHttpSource      source;
+    private final FileCache         cache;
+    private final BufferPool        bufferPool;
+    private final Mp4TailPrefetcher tailPrefetcher;
+    private       CacheListener     listener;
+    private       boolean           headChecked;
+    private volatile long           duration;
 
     public HttpProxyCache(OkHttpSource source, FileCache cache) {
-        super(source, cache);
+        this(source, cache, BufferPool.getDefault(), null, -1);
+    }
+
+    /**
+     * @param tailPrefetcher a prefetcher of trailing MP4 index or {@code null} if tail is not prefetched.
+     * @param durationHint   a media's duration in milliseconds known by client or {@code -1}, duration found in
+     *                       media's header takes precedence.
+     */
+    HttpProxyCache(OkHttpSource source, FileCache cache, BufferPool bufferPool, Mp4TailPrefetcher tailPrefetcher,
+                   long durationHint) {
+        super(source, cache, bufferPool);
         this.cache = cache;
         this.source = source;
+        this.bufferPool = bufferPool;
+        this.tailPrefetcher = tailPrefetcher;
+        this.duration = durationHint;
+        this.source.setResumeValidator(cache.getOriginValidator());
     }
 
     public void registerCacheListener(CacheListener cacheListener) {
@@ -36,13 +51,16 @@ class HttpProxyCache extends ProxyCache {
     }
 
     public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
-        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        // copy loops write whole pooled buffers, so extra buffering of socket stream is not needed
+        OutputStream out = socket.getOutputStream();
         String responseHeaders = newResponseHeaders(request);
         out.write(responseHeaders.getBytes("UTF-8"));
 
         long offset = request.rangeOffset;
         if (isUseCache(request)) {
             responseWithCache(out, offset);
+        } else if (isTailServed(request)) {
+            responseWithTail(out, offset);
         } else {
             responseWithoutCache(out, offset);
         }
@@ -56,6 +74,11 @@ class HttpProxyCache extends ProxyCache {
         return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
     }
 
+    private boolean isTailServed(GetRequest request) throws ProxyCacheException {
+        return tailPrefetcher != null && request.partial && tailPrefetcher.isTail(request.rangeOffset, cache.getOriginValidator()) &&
+                tailPrefetcher.canServe(request.rangeOffset);
+    }
+
     private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
         String mime = source.getMime();
         boolean mimeKnown = !TextUtils.isEmpty(mime);
@@ -74,27 +97,69 @@ class HttpProxyCache extends ProxyCache {
     }
 
     private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int readBytes;
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
-            out.write(buffer, 0, readBytes);
-            offset += readBytes;
+        AdaptiveBuffer buffer = new AdaptiveBuffer(bufferPool);
+        try {
+            int readBytes;
+            while ((readBytes = read(buffer.array(), offset, readLength(buffer, cache.available() - offset))) != -1) {
+                out.write(buffer.array(), 0, readBytes);
+                offset += readBytes;
+                buffer.onRead(readBytes);
+            }
+            out.flush();
+        } finally {
+            buffer.release();
         }
-        out.flush();
+    }
+
+    private void responseWithTail(OutputStream out, long offset) throws ProxyCacheException, IOException {
+        AdaptiveBuffer buffer = new AdaptiveBuffer(bufferPool);
+        try {
+            int readBytes;
+            while ((readBytes = tailPrefetcher.read(buffer.array(), offset,
+                    readLength(buffer, tailPrefetcher.available() - offset))) != -1) {
+                out.write(buffer.array(), 0, readBytes);
+                offset += readBytes;
+                buffer.onRead(readBytes);
+            }
+            out.flush();
+        } finally {
+            buffer.release();
+        }
+        if (offset < source.length()) {
+            // tail's prefetching is failed or tail is discarded, the rest is read from origin
+            responseWithoutCache(out, offset);
+        }
+    }
+
+    /**
+     * Returns count of bytes to be read into buffer for socket. Data already cached is read at once, otherwise
+     * only minimal chunk is awaited: read blocks until requested bytes are cached, so waiting for the whole big buffer
+     * would stall socket while slow source fills it. Buffer grows only when cached data fills it, i.e. source is
+     * ahead of player.
+     *
+     * @param buffer a socket loop's buffer.
+     * @param cached a count of bytes cached after current offset, may be negative.
+     */
+    private int readLength(AdaptiveBuffer buffer, long cached) {
+        int capacity = buffer.array().length;
+        return (int) Math.min(capacity, Math.max(cached, Math.min(capacity, bufferPool.minSize)));
     }
 
     private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
         OkHttpSource newSourceNoCache = new OkHttpSource(this.source);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(bufferPool);
         try {
-            newSourceNoCache.open((int) offset);
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            // headers are already sent, so range is served even if origin doesn't support ranges
+            newSourceNoCache.openSkipping(offset);
             int readBytes;
-            while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                out.write(buffer, 0, readBytes);
+            while ((readBytes = newSourceNoCache.read(buffer.array())) != -1) {
+                out.write(buffer.array(), 0, readBytes);
                 offset += readBytes;
+                buffer.onRead(readBytes);
             }
             out.flush();
         } finally {
+            buffer.release();
             newSourceNoCache.close();
         }
     }
@@ -103,10 +168,105 @@ class HttpProxyCache extends ProxyCache {
         return String.format(Locale.US, pattern, args);
     }
 
+    /**
+     * Remembers validator of origin's data that is going to be cached from scratch, so broken download
+     * is resumed only if data on origin is not changed. Origin's expiration time (if any) is remembered as well,
+     * and tail prefetched for other version of source is discarded.
+     */
+    @Override
+    protected void onSourceOpened(long offset) throws ProxyCacheException {
+        if (offset == 0) {
+            String validator = source.getValidator();
+            cache.setOriginValidator(validator);
+            source.setResumeValidator(validator);
+            if (tailPrefetcher != null) {
+                tailPrefetcher.discardIfStale(validator);
+            }
+            long expirationTime = source.getExpirationTime();
+            if (expirationTime > 0) {
+                cache.expireAt(expirationTime);
+            }
+        }
+    }
+
+    @Override
+    protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
+        boolean headCached = sourceLength > 0 && cacheAvailable >= Math.min(Mp4TailPrefetcher.HEAD_SIZE, sourceLength);
+        if (headCached) {
+            checkHead(sourceLength);
+        }
+        super.onCacheAvailable(cacheAvailable, sourceLength);
+    }
+
+    /**
+     * Parses head of source once it is cached: media's duration is taken from its header and tail prefetcher
+     * checks whether MP4 index is trailing.
+     */
+    private synchronized void checkHead(long sourceLength) {
+        if (headChecked) {
+            return;
+        }
+        headChecked = true;
+        byte[] head = new byte[(int) Math.min(Mp4TailPrefetcher.HEAD_SIZE, sourceLength)];
+        try {
+            int length = readHead(head);
+            long headerDuration = Mp4Boxes.findDuration(head, length);
+            if (headerDuration > 0) {
+                duration = headerDuration;
+            }
+            if (tailPrefetcher != null && !cache.isCompleted()) {
+                tailPrefetcher.onHeadCached(head, length, source, sourceLength, cache.getOriginValidator());
+            }
+        } catch (ProxyCacheException e) {
+            onError(e);
+        }
+    }
+
+    private int readHead(byte[] head) throws ProxyCacheException {
+        byte[] buffer = bufferPool.acquire(BufferPool.DEFAULT_MIN_BUFFER_SIZE);
+        try {
+            int length = 0;
+            while (length < head.length) {
+                int readBytes = cache.read(buffer, length, Math.min(buffer.length, head.length - length));
+                if (readBytes <= 0) {
+                    break;
+                }
+                System.arraycopy(buffer, 0, head, length, readBytes);
+                length += readBytes;
+            }
+            return length;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (tailPrefetcher != null && cache.isCompleted()) {
+            tailPrefetcher.onCacheCompleted();
+        }
+    }
+
     @Override
     protected void onCachePercentsAvailableChanged(int percents) {
+        if (percents == 100 && cache.isCompleted()) {
+            try {
+                checkHead(cache.available());
+            } catch (ProxyCacheException e) {
+                onError(e);
+            }
+        }
+        CacheListener listener = this.listener;
         if (listener != null) {
             listener.onCacheAvailable(cache.file, source.url, percents);
         }
+        long duration = this.duration;
+        if (listener instanceof MediaCacheListener && duration > 0) {
+            // bitrate is treated as constant, so cached time is proportional to cached bytes
+            int cachedSeconds = (int) (duration * percents / 100 / 1000);
+            int durationSeconds = (int) (duration / 1000);
+            ((MediaCacheListener) listener).onCachedDurationAvailable(cache.file, source.url, cachedSeconds, durationSeconds);
+        }
     }
 }
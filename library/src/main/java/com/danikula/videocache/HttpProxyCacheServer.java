@@ -3,31 +3,45 @@ package com.danikula.videocache;
 import android.content.Context;
 import android.net.Uri;
 
+import com.danikula.videocache.file.CacheIndex;
 import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.FlushPolicy;
 import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.MigratingFileNameGenerator;
 import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.danikula.videocache.headers.EmptyHeadersInjector;
 import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.key.CacheKeyExtractor;
+import com.danikula.videocache.key.UrlCacheKeyExtractor;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.validation.NoRevalidationPolicy;
+import com.danikula.videocache.validation.RevalidationPolicy;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkArgument;
 import static com.danikula.videocache.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * Simple lightweight proxy server with file caching support that handles HTTP requests.
@@ -51,15 +65,26 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 public class HttpProxyCacheServer {
 
     private static final String PROXY_HOST = "127.0.0.1";
+    private static final long   IDLE_CLIENTS_TIMEOUT = 60 * 1000;
+    private static final long   IDLE_CLIENTS_SWEEP_INTERVAL = 10 * 1000;
+    private static final long   LIVENESS_CHECK_INTERVAL = 30 * 1000;
+    private static final long   EXPIRED_SWEEP_INTERVAL = 60 * 1000;
 
     private final Object                                   clientsLock     = new Object();
     private final ExecutorService                          socketProcessor = Executors.newFixedThreadPool(8);
+    private final ScheduledExecutorService                 scheduler       = Executors.newSingleThreadScheduledExecutor();
     private final Map<String, HttpProxyCacheServerClients> clientsMap      = new ConcurrentHashMap<>();
     private final ServerSocket                             serverSocket;
     private final int                                      port;
     private final Thread                                   waitConnectionThread;
     private final Config                                   config;
     private final Pinger                                   pinger;
+    private final HlsPlaylistProxy                         hlsPlaylistProxy;
+    private final MediaPreloader                           mediaPreloader;
+    private       long                                     lastIdleClientsSweepTime;
+    private volatile long                                  lastAcceptTime;
+    private volatile boolean                               acceptFailed;
+    private volatile boolean                               pingFailed;
 
     public HttpProxyCacheServer(Context context) {
         this(new Builder(context).buildConfig());
@@ -75,11 +100,17 @@ public class HttpProxyCacheServer {
             CountDownLatch startSignal = new CountDownLatch(1);
             this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
             this.waitConnectionThread.start();
+            new Thread(new LoadCacheIndexRunnable(), "Cache index loader").start();
             startSignal.await(); // freeze thread, wait for server starts
             this.pinger = new Pinger(PROXY_HOST, port);
-            HttpProxyCacheDebuger.printfLog("Proxy cache server started. Is it alive? " + isAlive());
+            this.hlsPlaylistProxy = new HlsPlaylistProxy(config, PROXY_HOST, port);
+            this.mediaPreloader = new MediaPreloader(config, PROXY_HOST, port);
+            this.scheduler.scheduleWithFixedDelay(new LivenessCheckRunnable(), 0, LIVENESS_CHECK_INTERVAL, MILLISECONDS);
+            this.scheduler.scheduleWithFixedDelay(new SweepExpiredRunnable(), EXPIRED_SWEEP_INTERVAL, EXPIRED_SWEEP_INTERVAL, MILLISECONDS);
+            HttpProxyCacheDebuger.printfLog("Proxy cache server started on port " + port);
         } catch (IOException | InterruptedException e) {
             socketProcessor.shutdown();
+            scheduler.shutdown();
             throw new IllegalStateException("Error starting local proxy server", e);
         }
     }
@@ -103,19 +134,98 @@ public class HttpProxyCacheServer {
      * Returns url that wrap original url and should be used for client (MediaPlayer, ExoPlayer, etc).
      * <p>
      * If parameter {@code allowCachedFileUri} is {@code true} and file for this url is fully cached
-     * (it means method {@link #isCached(String)} returns {@code true}) then file:// uri to cached file will be returned.
+     * (it means method {@link #isCached(String)} returns {@code true}) then file:// uri to cached file will be returned,
+     * unless cached file is expired or should be revalidated according to {@link RevalidationPolicy}.
+     * HLS playlist ({@code .m3u8}) is always served by proxy, because its segments' urls are rewritten to proxy urls.
      *
      * @param url                a url to file that should be cached.
      * @param allowCachedFileUri {@code true} if allow to return file:// uri if url is fully cached
      * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise (if {@code allowCachedFileUri} is {@code true}).
      */
     public String getProxyUrl(String url, boolean allowCachedFileUri) {
-        if (allowCachedFileUri && isCached(url)) {
-            File cacheFile = getCacheFile(url);
-            touchFileSafely(cacheFile);
-            return Uri.fromFile(cacheFile).toString();
+        if (allowCachedFileUri && !HlsPlaylist.isPlaylistUrl(url)) {
+            File completedFile = config.findCompletedFile(url);
+            if (completedFile != null && !CacheIndex.of(completedFile.getParentFile()).isExpired(completedFile) &&
+                    !config.shouldRevalidate(url)) {
+                config.cacheTiers.onAccessed(completedFile);
+                config.cacheTiers.onUsed(completedFile);
+                return Uri.fromFile(completedFile).toString();
+            }
+        }
+        if (isAlive()) {
+            return appendToProxyUrl(url);
+        }
+        checkLivenessAsync();
+        return url;
+    }
+
+    /**
+     * Returns url that wrap original url like {@link #getProxyUrl(String)} and sets time to live for url's cache.
+     * Cache expires after ttl since the first call for url and then it is deleted in background, e.g. it is useful
+     * for content that will never be watched again like stories or ads. If origin's expiration is used
+     * (see {@link Builder#useOriginExpiry(boolean)}), cache expires at the earliest of both times.
+     * Already expired cache is deleted right away, so ttl is counted for data cached again.
+     *
+     * @param url  a url to file that should be cached.
+     * @param ttl  time to live for cache.
+     * @param unit unit of ttl.
+     * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise.
+     */
+    public String getProxyUrl(String url, long ttl, TimeUnit unit) {
+        checkNotNull(url, "Url can't be null!");
+        long expirationTime = System.currentTimeMillis() + unit.toMillis(ttl);
+        File completedFile = config.findCompletedFile(url);
+        if (completedFile != null && CacheIndex.of(completedFile.getParentFile()).isExpired(completedFile)) {
+            // otherwise new ttl would be dropped together with expired entry once it is deleted on request
+            config.cacheTiers.delete(config.generateCacheFile(url));
+            completedFile = null;
+        }
+        File cacheFile = completedFile != null ? completedFile : getCacheFile(url);
+        CacheIndex.of(cacheFile.getParentFile()).expireAt(cacheFile, expirationTime);
+        return getProxyUrl(url, true);
+    }
+
+    /**
+     * Preloads the first seconds of media in background, e.g. for feed's items that are likely to be played soon.
+     * Seconds are converted to bytes with media's bitrate estimated by its length and duration, so preloading costs
+     * the same playback time regardless of media's quality. Duration is taken from MP4 header if file is optimized
+     * for fast start, otherwise bitrate of 2 Mbit/s is supposed.
+     * Use {@link #preload(String, int, long, TimeUnit)} if duration is known in advance.
+     * <p>
+     * Fully cached urls and HLS playlists are ignored. Preloads are performed one by one in order of calls.
+     *
+     * @param url     an url of media.
+     * @param seconds a playback time to be cached from the beginning of media.
+     */
+    public void preload(String url, int seconds) {
+        checkNotNull(url, "Url can't be null!");
+        checkArgument(seconds > 0, "Seconds to preload must be positive!");
+        if (HlsPlaylist.isPlaylistUrl(url)) {
+            HttpProxyCacheDebuger.printfWarning("HLS playlist " + url + " is not preloaded, use hlsPrefetchSegments");
+            return;
+        }
+        if (!isAlive()) {
+            checkLivenessAsync();
+            return;
         }
-        return isAlive() ? appendToProxyUrl(url) : url;
+        mediaPreloader.preload(url, seconds);
+    }
+
+    /**
+     * Preloads the first seconds of media like {@link #preload(String, int)} using media's duration known
+     * in advance, e.g. from feed's metadata. Duration is remembered for url and used for reporting cached
+     * playback time to {@link MediaCacheListener} as well, but duration from media's header takes precedence.
+     *
+     * @param url      an url of media.
+     * @param seconds  a playback time to be cached from the beginning of media.
+     * @param duration a media's duration.
+     * @param unit     unit of duration.
+     */
+    public void preload(String url, int seconds, long duration, TimeUnit unit) {
+        checkNotNull(url, "Url can't be null!");
+        checkArgument(duration > 0, "Duration must be positive!");
+        config.setDurationHint(url, unit.toMillis(duration));
+        preload(url, seconds);
     }
 
     public void registerCacheListener(CacheListener cacheListener, String url) {
@@ -132,11 +242,11 @@ public class HttpProxyCacheServer {
     public void unregisterCacheListener(CacheListener cacheListener, String url) {
         checkAllNotNull(cacheListener, url);
         synchronized (clientsLock) {
-            try {
-                getClients(url).unregisterCacheListener(cacheListener);
-            } catch (ProxyCacheException e) {
-                HttpProxyCacheDebuger.printfWarning("Error registering cache listener", e.getMessage());
+            HttpProxyCacheServerClients clients = clientsMap.get(config.cacheKey(url));
+            if (clients != null) {
+                clients.unregisterCacheListener(cacheListener);
             }
+            evictIdleClients();
         }
     }
 
@@ -146,6 +256,7 @@ public class HttpProxyCacheServer {
             for (HttpProxyCacheServerClients clients : clientsMap.values()) {
                 clients.unregisterCacheListener(cacheListener);
             }
+            evictIdleClients();
         }
     }
 
@@ -157,7 +268,62 @@ public class HttpProxyCacheServer {
      */
     public boolean isCached(String url) {
         checkNotNull(url, "Url can't be null!");
-        return getCacheFile(url).exists();
+        File completedFile = config.findCompletedFile(url);
+        return completedFile != null && !CacheIndex.of(completedFile.getParentFile()).isExpired(completedFile);
+    }
+
+    /**
+     * Protects url's cache from eviction by disk usage strategy, e.g. for favourite or offline content.
+     * Pin is persisted in cache directory and kept until {@link #unpin(String)} is called. Url may be pinned before
+     * it is cached. Note pinned files are counted for cache limits, so limit may be exceeded if too many files are pinned.
+     *
+     * @param url an url to be pinned.
+     */
+    public void pin(String url) {
+        checkNotNull(url, "Url can't be null!");
+        File cacheFile = getCacheFile(url);
+        for (CacheIndex index : config.cacheTiers.getIndexes()) {
+            index.pin(cacheFile);
+        }
+    }
+
+    /**
+     * Removes pin set by {@link #pin(String)}, so url's cache can be evicted as usual.
+     *
+     * @param url an url to be unpinned.
+     */
+    public void unpin(String url) {
+        checkNotNull(url, "Url can't be null!");
+        File cacheFile = getCacheFile(url);
+        for (CacheIndex index : config.cacheTiers.getIndexes()) {
+            index.unpin(cacheFile);
+        }
+    }
+
+    /**
+     * Checks whether url's cache is protected from eviction, because it is pinned or it is being served right now.
+     *
+     * @param url an url to be checked.
+     * @return {@code true} if url's cache can't be evicted now.
+     */
+    public boolean isPinned(String url) {
+        checkNotNull(url, "Url can't be null!");
+        File cacheFile = getCacheFile(url);
+        for (CacheIndex index : config.cacheTiers.getIndexes()) {
+            if (index.isPinned(cacheFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns statistics of buffer pool used for serving requests and reading sources.
+     *
+     * @return a snapshot of pool's usage.
+     */
+    public BufferPoolStats getBufferPoolStats() {
+        return config.bufferPool.getStats();
     }
 
     public void shutdown() {
@@ -166,7 +332,14 @@ public class HttpProxyCacheServer {
         shutdownClients();
 
         config.sourceInfoStorage.release();
+        for (CacheIndex index : config.cacheTiers.getIndexes()) {
+            index.flush();
+        }
+        config.cacheTiers.shutdown();
+        hlsPlaylistProxy.shutdown();
+        mediaPreloader.shutdown();
 
+        scheduler.shutdownNow();
         waitConnectionThread.interrupt();
         try {
             if (!serverSocket.isClosed()) {
@@ -177,8 +350,35 @@ public class HttpProxyCacheServer {
         }
     }
 
+    /**
+     * Returns last known server's state without any network round trip, so it is safe to call it from main thread.
+     * State is maintained by accept loop and refreshed by pinging server in background
+     * (see {@link LivenessCheckRunnable}).
+     *
+     * @return {@code true} if server seems to be able to process requests.
+     */
     private boolean isAlive() {
-        return pinger.ping(3, 70);   // 70+140+280=max~500ms
+        return !acceptFailed && !pingFailed && !serverSocket.isClosed() && waitConnectionThread.isAlive();
+    }
+
+    private void checkLivenessAsync() {
+        try {
+            scheduler.execute(new LivenessCheckRunnable());
+        } catch (RejectedExecutionException e) {
+            // server is shut down, nothing to check
+        }
+    }
+
+    private void checkLiveness() {
+        boolean acceptedRecently = System.currentTimeMillis() - lastAcceptTime < LIVENESS_CHECK_INTERVAL;
+        if (acceptedRecently && !pingFailed) {
+            return; // accept loop works fine, there is no need to ping
+        }
+        if (acceptFailed || serverSocket.isClosed() || !waitConnectionThread.isAlive()) {
+            return; // accept loop is dead, ping will definitely fail
+        }
+        pingFailed = !pinger.ping(3, 70);   // 70+140+280=max~500ms
+        HttpProxyCacheDebuger.printfLog("Proxy cache server pinged. Is it alive? " + isAlive());
     }
 
     private String appendToProxyUrl(String url) {
@@ -186,17 +386,7 @@ public class HttpProxyCacheServer {
     }
 
     private File getCacheFile(String url) {
-        File cacheDir = config.cacheRoot;
-        String fileName = config.fileNameGenerator.generate(url);
-        return new File(cacheDir, fileName);
-    }
-
-    private void touchFileSafely(File cacheFile) {
-        try {
-            config.diskUsage.touch(cacheFile);
-        } catch (IOException e) {
-            HttpProxyCacheDebuger.printfError("Error touching file " + cacheFile, e);
-        }
+        return config.generateCacheFile(url);
     }
 
     private void shutdownClients() {
@@ -212,19 +402,31 @@ public class HttpProxyCacheServer {
         try {
             while (!Thread.currentThread().isInterrupted()) {
                 Socket socket = serverSocket.accept();
+                lastAcceptTime = System.currentTimeMillis();
                 socketProcessor.submit(new SocketProcessorRunnable(socket));
             }
         } catch (IOException e) {
+            acceptFailed = true;
             onError(new ProxyCacheException("Error during waiting connection", e));
         }
     }
 
     private void processSocket(Socket socket) {
         try {
-            GetRequest request = GetRequest.read(socket.getInputStream());
+            GetRequest request = GetRequest.read(socket.getInputStream(), config.bufferPool);
             String url = ProxyCacheUtils.decode(request.uri);
-            HttpProxyCacheServerClients clients = getClients(url);
-            clients.processRequest(request, socket);
+            if (pinger.isPingRequest(url)) {
+                pinger.responseToPing(socket);
+            } else if (HlsPlaylist.isPlaylistUrl(url)) {
+                hlsPlaylistProxy.processRequest(url, socket);
+            } else {
+                hlsPlaylistProxy.onSegmentRequested(url, request.prefetch);
+                HttpProxyCacheServerClients clients = getClients(url);
+                clients.processRequest(request, socket);
+            }
+        } catch (RequestHeadersTooLargeException e) {
+            HttpProxyCacheDebuger.printfWarning("Request is rejected: " + e.getMessage());
+            responseWithError(socket, "431 Request Header Fields Too Large");
         } catch (SocketException e) {
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
             // So just to prevent log flooding don't log stacktrace
@@ -233,20 +435,49 @@ public class HttpProxyCacheServer {
         } finally {
             releaseSocket(socket);
             HttpProxyCacheDebuger.printfLog("Opened connections: " + getClientsCount());
+            synchronized (clientsLock) {
+                evictIdleClients();
+            }
         }
     }
 
     private HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
         synchronized (clientsLock) {
-            HttpProxyCacheServerClients clients = clientsMap.get(url);
+            String cacheKey = config.cacheKey(url);
+            HttpProxyCacheServerClients clients = clientsMap.get(cacheKey);
             if (clients == null) {
                 clients = new HttpProxyCacheServerClients(url, config);
-                clientsMap.put(url, clients);
+                clientsMap.put(cacheKey, clients);
+            } else {
+                clients.setUrl(url);
             }
+            clients.markUsed();
             return clients;
         }
     }
 
+    /**
+     * Drops clients without active requests and listeners, so registry doesn't grow with every url ever requested.
+     * Clients are dropped only after {@link #IDLE_CLIENTS_TIMEOUT} of inactivity to not race with request that
+     * just obtained clients but not started processing yet. Must be called under {@link #clientsLock}.
+     */
+    private void evictIdleClients() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleClientsSweepTime < IDLE_CLIENTS_SWEEP_INTERVAL) {
+            return;
+        }
+        lastIdleClientsSweepTime = now;
+        Iterator<HttpProxyCacheServerClients> iterator = clientsMap.values().iterator();
+        while (iterator.hasNext()) {
+            HttpProxyCacheServerClients clients = iterator.next();
+            if (clients.isIdle(IDLE_CLIENTS_TIMEOUT)) {
+                // releases resources kept between requests, e.g. tail cache's file
+                clients.shutdown();
+                iterator.remove();
+            }
+        }
+    }
+
     private int getClientsCount() {
         synchronized (clientsLock) {
             int count = 0;
@@ -257,6 +488,16 @@ public class HttpProxyCacheServer {
         }
     }
 
+    private void responseWithError(Socket socket, String status) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\nContent-Length: 0\n\n").getBytes("UTF-8"));
+            out.flush();
+        } catch (IOException e) {
+            // client has closed connection already
+        }
+    }
+
     private void releaseSocket(Socket socket) {
         closeSocketInput(socket);
         closeSocketOutput(socket);
@@ -315,6 +556,38 @@ public class HttpProxyCacheServer {
         }
     }
 
+    private final class LoadCacheIndexRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            for (CacheIndex index : config.cacheTiers.getIndexes()) {
+                index.load();
+            }
+        }
+    }
+
+    private final class SweepExpiredRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            for (CacheIndex index : config.cacheTiers.getIndexes()) {
+                int deletedCount = index.sweepExpired();
+                if (deletedCount > 0) {
+                    HttpProxyCacheDebuger.printfLog(deletedCount + " expired cache entries are deleted");
+                }
+                index.flushLazily();
+            }
+        }
+    }
+
+    private final class LivenessCheckRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            checkLiveness();
+        }
+    }
+
     private final class SocketProcessorRunnable implements Runnable {
 
         private final Socket socket;
@@ -336,18 +609,37 @@ public class HttpProxyCacheServer {
 
         private static final long DEFAULT_MAX_SIZE = 512 * 1024 * 1024;
 
+        private final Context     context;
         private File              cacheRoot;
         private FileNameGenerator fileNameGenerator;
+        private FileNameGenerator legacyFileNameGenerator;
         private DiskUsage         diskUsage;
+        private File              bulkCacheRoot;
+        private DiskUsage         bulkDiskUsage;
         private SourceInfoStorage sourceInfoStorage;
         private HeaderInjector    headerInjector;
+        private CacheKeyExtractor  cacheKeyExtractor;
+        private RevalidationPolicy revalidationPolicy;
+        private long               resolvedUrlTtl;
+        private int                minBufferSize;
+        private int                maxBufferSize;
+        private FlushPolicy        flushPolicy;
+        private boolean            preallocateFiles;
+        private boolean            originExpiryUsed;
+        private int                hlsPrefetchCount;
 
         public Builder(Context context) {
-            this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
+            this.context = checkNotNull(context);
             this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
             this.headerInjector = new EmptyHeadersInjector();
+            this.cacheKeyExtractor = new UrlCacheKeyExtractor();
+            this.revalidationPolicy = new NoRevalidationPolicy();
+            this.resolvedUrlTtl = ResolvedUrlCache.DEFAULT_TTL;
+            this.minBufferSize = BufferPool.DEFAULT_MIN_BUFFER_SIZE;
+            this.maxBufferSize = BufferPool.DEFAULT_MAX_BUFFER_SIZE;
+            this.flushPolicy = FlushPolicy.newDefault();
         }
 
         /**
@@ -378,6 +670,19 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Enables migration of files cached with another file name generator, e.g. when switching from default
+         * {@link Md5FileNameGenerator} to faster {@link com.danikula.videocache.file.Murmur3FileNameGenerator}.
+         * Cache file named by legacy generator is renamed to new name on first access.
+         *
+         * @param legacyFileNameGenerator a generator used before, can't be null.
+         * @return a builder.
+         */
+        public Builder migrateFileNamesFrom(FileNameGenerator legacyFileNameGenerator) {
+            this.legacyFileNameGenerator = checkNotNull(legacyFileNameGenerator);
+            return this;
+        }
+
         /**
          * Sets max cache size in bytes.
          * <p>
@@ -418,6 +723,25 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Adds large bulk cache tier, e.g. on external storage, while directory set by {@link #cacheDirectory(File)}
+         * becomes small fast tier. Data is always cached to fast tier, files evicted from fast tier according to
+         * its disk usage are moved to bulk tier instead of deleting, files often used from bulk tier are copied
+         * back to fast tier. {@link HttpProxyCacheServer#getProxyUrl(String)} and
+         * {@link HttpProxyCacheServer#isCached(String)} check both tiers.
+         * <p>
+         * <b>Note</b> directory must be used <b>only</b> for AndroidVideoCache files.
+         *
+         * @param directory a bulk tier directory, can't be null.
+         * @param diskUsage a disk usage strategy of bulk tier, can't be null.
+         * @return a builder.
+         */
+        public Builder bulkCacheDirectory(File directory, DiskUsage diskUsage) {
+            this.bulkCacheRoot = checkNotNull(directory);
+            this.bulkDiskUsage = checkNotNull(diskUsage);
+            return this;
+        }
+
         /**
          * Add headers along the request to the server
          *
@@ -429,6 +753,126 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Overrides default storage of sources' info (length, mime, etc) that is based on SQLite database.
+         *
+         * @param sourceInfoStorage a storage, e.g. {@link SourceInfoStorageFactory#newMappedSourceInfoStorage(Context)}.
+         * @return a builder.
+         */
+        public Builder sourceInfoStorage(SourceInfoStorage sourceInfoStorage) {
+            this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+            return this;
+        }
+
+        /**
+         * Sets the way cache key is derived from url. Urls with the same key share cached data and source's info,
+         * but data is always fetched by original url. By default url is used as key as is.
+         *
+         * @param cacheKeyExtractor a key extractor, e.g. {@link com.danikula.videocache.key.NormalizingCacheKeyExtractor}.
+         * @return a builder.
+         */
+        public Builder cacheKeyExtractor(CacheKeyExtractor cacheKeyExtractor) {
+            this.cacheKeyExtractor = checkNotNull(cacheKeyExtractor);
+            return this;
+        }
+
+        /**
+         * Sets when fully cached data should be revalidated with origin using {@code ETag}/{@code Last-Modified}.
+         * Stale data is deleted and downloaded again. By default cached data is never revalidated.
+         *
+         * @param revalidationPolicy a policy, e.g. {@link com.danikula.videocache.validation.MaxAgeRevalidationPolicy}.
+         * @return a builder.
+         */
+        public Builder revalidationPolicy(RevalidationPolicy revalidationPolicy) {
+            this.revalidationPolicy = checkNotNull(revalidationPolicy);
+            return this;
+        }
+
+        /**
+         * Sets how long final url of redirect chain is used for opening source directly, bypassing redirects.
+         * Default value is 10 minutes, {@code 0} disables reusing resolved urls.
+         *
+         * @param ttl  time resolved url is valid for.
+         * @param unit time unit of ttl.
+         * @return a builder.
+         */
+        public Builder resolvedUrlTtl(long ttl, TimeUnit unit) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("Ttl must be non-negative number!");
+            }
+            this.resolvedUrlTtl = unit.toMillis(ttl);
+            return this;
+        }
+
+        /**
+         * Sets limits for sizes of buffers used for reading source and writing to socket. Buffer size adapts to
+         * throughput within these limits. Default values are 8 Kb and 256 Kb.
+         *
+         * @param minSize min buffer size in bytes, rounded up to power of two.
+         * @param maxSize max buffer size in bytes, rounded up to power of two.
+         * @return a builder.
+         */
+        public Builder bufferSize(int minSize, int maxSize) {
+            if (minSize <= 0 || maxSize < minSize) {
+                throw new IllegalArgumentException("Buffer sizes must be positive and min size must not exceed max size!");
+            }
+            this.minBufferSize = minSize;
+            this.maxBufferSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Sets how downloaded data is staged in memory before writing to cache file and when it is synced
+         * with storage device. By default data is flushed by 128 Kb at least once a second and synced when
+         * file is fully cached.
+         *
+         * @param flushPolicy a flush policy, e.g. {@link FlushPolicy#newWriteThrough()}.
+         * @return a builder.
+         */
+        public Builder flushPolicy(FlushPolicy flushPolicy) {
+            this.flushPolicy = checkNotNull(flushPolicy);
+            return this;
+        }
+
+        /**
+         * Enables preallocation of cache files with full source's length once it is known. It reduces fragmentation
+         * of flash storage and lets cache be trimmed for the whole file before downloading. Disabled by default.
+         *
+         * @param preallocateFiles {@code true} to preallocate files.
+         * @return a builder.
+         */
+        public Builder preallocateFiles(boolean preallocateFiles) {
+            this.preallocateFiles = preallocateFiles;
+            return this;
+        }
+
+        /**
+         * Enables expiration of cached files according to origin's {@code Cache-Control: max-age} or {@code Expires}
+         * headers. Expired files are deleted in background. Disabled by default, because origins often set
+         * short max age for content that actually never changes.
+         *
+         * @param originExpiryUsed {@code true} to use origin's expiration.
+         * @return a builder.
+         * @see HttpProxyCacheServer#getProxyUrl(String, long, TimeUnit)
+         */
+        public Builder useOriginExpiry(boolean originExpiryUsed) {
+            this.originExpiryUsed = originExpiryUsed;
+            return this;
+        }
+
+        /**
+         * Sets count of HLS segments to be prefetched in background after segment requested by player, so playback
+         * doesn't stall on slow network. Segments are prefetched only for playlists served by proxy. Disabled by default.
+         *
+         * @param count count of segments to prefetch, {@code 0} to disable prefetching.
+         * @return a builder.
+         */
+        public Builder hlsPrefetchSegments(int count) {
+            checkArgument(count >= 0, "Count of segments to prefetch must be non-negative!");
+            this.hlsPrefetchCount = count;
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -440,7 +884,14 @@ public class HttpProxyCacheServer {
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector);
+            FileNameGenerator nameGenerator = legacyFileNameGenerator == null ? fileNameGenerator :
+                    new MigratingFileNameGenerator(cacheRoot, fileNameGenerator, legacyFileNameGenerator);
+            SourceInfoStorage infoStorage = sourceInfoStorage != null ? sourceInfoStorage :
+                    SourceInfoStorageFactory.newSourceInfoStorage(context);
+            return new Config(cacheRoot, nameGenerator, diskUsage, bulkCacheRoot, bulkDiskUsage, infoStorage,
+                    headerInjector, cacheKeyExtractor, revalidationPolicy, resolvedUrlTtl,
+                    new BufferPool(minBufferSize, maxBufferSize), flushPolicy, preallocateFiles, originExpiryUsed,
+                    hlsPrefetchCount);
         }
 
     }
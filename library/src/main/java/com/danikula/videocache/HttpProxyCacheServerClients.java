@@ -4,7 +4,10 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
+import com.danikula.videocache.file.CacheIndex;
+import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.TailCache;
 
 import java.io.File;
 import java.io.IOException;
@@ -23,11 +26,13 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 final class HttpProxyCacheServerClients {
 
     private final    AtomicInteger       clientsCount = new AtomicInteger(0);
-    private final    String              url;
+    private volatile String              url;
     private volatile HttpProxyCache      proxyCache;
+    private          Mp4TailPrefetcher   tailPrefetcher;
     private final    List<CacheListener> listeners    = new CopyOnWriteArrayList<>();
     private final    CacheListener       uiCacheListener;
     private final    Config              config;
+    private volatile long                lastUsedTime = System.currentTimeMillis();
 
     public HttpProxyCacheServerClients(String url, Config config) {
         this.url = checkNotNull(url);
@@ -36,7 +41,7 @@ final class HttpProxyCacheServerClients {
     }
 
     public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
-        startProcessRequest();
+        startProcessRequest(request);
         try {
             clientsCount.incrementAndGet();
             proxyCache.processRequest(request, socket);
@@ -45,8 +50,9 @@ final class HttpProxyCacheServerClients {
         }
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
-        proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+    private synchronized void startProcessRequest(GetRequest request) throws ProxyCacheException {
+        // proxy's own prefetching is not counted as access to entry
+        proxyCache = proxyCache == null ? newHttpProxyCache(!request.prefetch) : proxyCache;
     }
 
     private synchronized void finishProcessRequest() {
@@ -54,6 +60,7 @@ final class HttpProxyCacheServerClients {
             proxyCache.shutdown();
             proxyCache = null;
         }
+        markUsed();
     }
 
     public void registerCacheListener(CacheListener cacheListener) {
@@ -71,6 +78,11 @@ final class HttpProxyCacheServerClients {
             proxyCache.shutdown();
             proxyCache = null;
         }
+        synchronized (this) {
+            if (tailPrefetcher != null) {
+                tailPrefetcher.shutdown();
+            }
+        }
         clientsCount.set(0);
     }
 
@@ -78,15 +90,91 @@ final class HttpProxyCacheServerClients {
         return clientsCount.get();
     }
 
-    private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        OkHttpSource source = new OkHttpSource(url, config.sourceInfoStorage, config.headerInjector);
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
-        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
+    /**
+     * Updates url to be used for fetching data. Clients are shared by all urls with the same cache key,
+     * so the most recent url is used as it is less likely expired.
+     *
+     * @param url an url with the same cache key as current one.
+     */
+    public void setUrl(String url) {
+        this.url = checkNotNull(url);
+    }
+
+    /**
+     * Marks clients as used right now, so they will not be treated as idle for a while.
+     */
+    public void markUsed() {
+        lastUsedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks whether clients can be safely dropped from registry: there are no active requests, no listeners,
+     * no tail being prefetched and clients were not used for at least {@code idleTimeout} milliseconds.
+     *
+     * @param idleTimeout min idle time in milliseconds.
+     * @return {@code true} if clients are idle.
+     */
+    public boolean isIdle(long idleTimeout) {
+        boolean expired = System.currentTimeMillis() - lastUsedTime >= idleTimeout;
+        boolean prefetching;
+        synchronized (this) {
+            prefetching = tailPrefetcher != null && tailPrefetcher.isPrefetching();
+        }
+        return expired && clientsCount.get() <= 0 && proxyCache == null && listeners.isEmpty() && !prefetching;
+    }
+
+    private HttpProxyCache newHttpProxyCache(boolean accessed) throws ProxyCacheException {
+        OkHttpSource source = new OkHttpSource(url, config);
+        File file = config.generateCacheFile(url);
+        File completedFile = config.cacheTiers.findCompleted(file);
+        if (completedFile != null && (isExpired(completedFile) || isStale(source, completedFile))) {
+            config.cacheTiers.delete(file);
+            completedFile = null;
+        }
+        if (completedFile != null) {
+            config.cacheTiers.onUsed(completedFile);
+        }
+        File cacheFile = completedFile != null ? completedFile : file;
+        DiskUsage diskUsage = config.cacheTiers.getDiskUsage(cacheFile);
+        FileCache cache = new FileCache(cacheFile, diskUsage, config.flushPolicy, config.preallocateFiles,
+                config.bufferPool);
+        if (accessed) {
+            config.cacheTiers.onAccessed(cache.getFile());
+        }
+        if (tailPrefetcher == null) {
+            // shared by caches of these clients, so tail is prefetched once even if player reconnects
+            tailPrefetcher = new Mp4TailPrefetcher(new TailCache(file), config.bufferPool);
+        }
+        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache, config.bufferPool, tailPrefetcher,
+                config.getDurationHint(url));
         httpProxyCache.registerCacheListener(uiCacheListener);
         return httpProxyCache;
     }
 
-    private static final class UiListenerHandler extends Handler implements CacheListener {
+    private boolean isExpired(File completedFile) {
+        if (CacheIndex.of(completedFile.getParentFile()).isExpired(completedFile)) {
+            HttpProxyCacheDebuger.printfLog("Cached file " + completedFile + " is expired and will be downloaded again");
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isStale(OkHttpSource source, File completedFile) {
+        if (!config.shouldRevalidate(url)) {
+            return false;
+        }
+        boolean stale = !source.revalidate();
+        if (stale) {
+            HttpProxyCacheDebuger.printfLog("Cached file " + completedFile + " is stale and will be downloaded again");
+        }
+        config.revalidationPolicy.onRevalidated(config.cacheKey(url));
+        return stale;
+    }
+
+    static final class UiListenerHandler extends Handler implements MediaCacheListener {
+
+        private static final int MSG_PERCENTS = 0;
+        private static final int MSG_DURATION = 1;
 
         private final String              url;
         private final List<CacheListener> listeners;
@@ -99,16 +187,25 @@ final class HttpProxyCacheServerClients {
 
         @Override
         public void onCacheAvailable(File file, String url, int percentsAvailable) {
-            Message message = obtainMessage();
+            Message message = obtainMessage(MSG_PERCENTS);
             message.arg1 = percentsAvailable;
             message.obj = file;
             sendMessage(message);
         }
 
+        @Override
+        public void onCachedDurationAvailable(File file, String url, int cachedSeconds, int totalSeconds) {
+            sendMessage(obtainMessage(MSG_DURATION, cachedSeconds, totalSeconds, file));
+        }
+
         @Override
         public void handleMessage(Message msg) {
             for (CacheListener cacheListener : listeners) {
-                cacheListener.onCacheAvailable((File) msg.obj, url, msg.arg1);
+                if (msg.what == MSG_PERCENTS) {
+                    cacheListener.onCacheAvailable((File) msg.obj, url, msg.arg1);
+                } else if (cacheListener instanceof MediaCacheListener) {
+                    ((MediaCacheListener) cacheListener).onCachedDurationAvailable((File) msg.obj, url, msg.arg1, msg.arg2);
+                }
             }
         }
     }
@@ -17,6 +17,7 @@ import java.util.Map;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_OK;
@@ -33,6 +34,7 @@ public class HttpUrlSource implements Source {
     private static final int               MAX_REDIRECTS = 5;
     private final        SourceInfoStorage sourceInfoStorage;
     private final        HeaderInjector    headerInjector;
+    private final        ResolvedUrlCache  resolvedUrlCache;
     private              SourceInfo        sourceInfo;
     private              HttpURLConnection connection;
     private              InputStream       inputStream;
@@ -48,6 +50,7 @@ public class HttpUrlSource implements Source {
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
+        this.resolvedUrlCache = new ResolvedUrlCache();
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
@@ -57,6 +60,7 @@ public class HttpUrlSource implements Source {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
+        this.resolvedUrlCache = source.resolvedUrlCache;
     }
 
     @Override
@@ -117,7 +121,7 @@ public class HttpUrlSource implements Source {
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url + ": connection is absent!");
         }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            return ProxyCacheUtils.fill(inputStream, buffer);
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted", e);
         } catch (IOException e) {
@@ -146,10 +150,30 @@ public class HttpUrlSource implements Source {
     }
 
     private HttpURLConnection openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+        String sourceUrl = sourceInfo.url;
+        String resolvedUrl = resolvedUrlCache.get(sourceUrl);
+        if (resolvedUrl != null) {
+            HttpURLConnection connection = openConnection(resolvedUrl, offset, timeout);
+            if (connection.getResponseCode() < HTTP_BAD_REQUEST) {
+                return connection;
+            }
+            HttpProxyCacheDebuger.printfWarning("Resolved url " + resolvedUrl + " responds with code " +
+                    connection.getResponseCode() + ", try original url " + sourceUrl);
+            connection.disconnect();
+            resolvedUrlCache.remove(sourceUrl);
+        }
+        HttpURLConnection connection = openConnection(sourceUrl, offset, timeout);
+        String finalUrl = connection.getURL().toString();
+        if (connection.getResponseCode() < HTTP_BAD_REQUEST && !finalUrl.equals(sourceUrl)) {
+            resolvedUrlCache.put(sourceUrl, finalUrl);
+        }
+        return connection;
+    }
+
+    private HttpURLConnection openConnection(String url, long offset, int timeout) throws IOException, ProxyCacheException {
         HttpURLConnection connection;
         boolean redirected;
         int redirectCount = 0;
-        String url = this.sourceInfo.url;
         do {
             connection = (HttpURLConnection) new URL(url).openConnection();
             injectCustomHeaders(connection, url);
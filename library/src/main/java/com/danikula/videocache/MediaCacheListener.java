@@ -0,0 +1,24 @@
+package com.danikula.videocache;
+
+import java.io.File;
+
+/**
+ * Listener for cache availability that is notified about cached playback time as well.
+ * <p>
+ * Time is estimated by media's duration and cached bytes, i.e. bitrate is treated as constant. Duration is taken from
+ * media's header (MP4 file with index before media data) or from hint passed to
+ * {@link HttpProxyCacheServer#preload(String, int, long, java.util.concurrent.TimeUnit)}. If duration is unknown,
+ * only {@link #onCacheAvailable(File, String, int)} is called.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public interface MediaCacheListener extends CacheListener {
+
+    /**
+     * @param cacheFile     a cache file.
+     * @param url           an url of media.
+     * @param cachedSeconds a playback time cached from the beginning of media, in seconds.
+     * @param totalSeconds  a media's duration in seconds.
+     */
+    void onCachedDurationAvailable(File cacheFile, String url, int cachedSeconds, int totalSeconds);
+}
@@ -0,0 +1,152 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Preloads beginning of media in background, amount of data is set as playback time and converted to bytes
+ * with media's bitrate. So preloading costs the same time of playback for media with very different bitrates.
+ * <p>
+ * Bitrate is estimated by source's length and media's duration. Duration is taken from MP4 movie header if index
+ * precedes media data, otherwise from client's hint (see {@link Config#setDurationHint(String, long)}).
+ * If duration is unknown, bitrate is supposed to be {@value #DEFAULT_BITRATE} bits per second.
+ * <p>
+ * Media is read through proxy itself, so it is cached exactly like requested by player,
+ * and reading is stopped as soon as budget is read. Requests are marked as prefetching ones
+ * (see {@link GetRequest#PREFETCH_HEADER}), so preloading is not counted as access to media.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class MediaPreloader {
+
+    static final long DEFAULT_BITRATE = 2 * 1000 * 1000;
+
+    private final Config          config;
+    private final String          host;
+    private final int             port;
+    private final ExecutorService preloadExecutor = Executors.newSingleThreadExecutor();
+    private final Set<String>     preloadingUrls  = Collections.synchronizedSet(new HashSet<String>());
+
+    MediaPreloader(Config config, String host, int port) {
+        this.config = config;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Returns count of bytes to be cached for given playback time.
+     *
+     * @param sourceLength a source's length or non-positive value if it is unknown.
+     * @param duration     a media's duration in milliseconds or non-positive value if it is unknown.
+     * @param seconds      a playback time to be cached.
+     * @return count of bytes, not more than source's length.
+     */
+    static long getBudget(long sourceLength, long duration, int seconds) {
+        boolean bitrateKnown = sourceLength > 0 && duration > 0;
+        long budget = bitrateKnown ? sourceLength * seconds * 1000 / duration : DEFAULT_BITRATE / 8 * seconds;
+        return sourceLength > 0 ? Math.min(budget, sourceLength) : budget;
+    }
+
+    /**
+     * Starts preloading in background. Request is ignored if url is fully cached or is being preloaded already.
+     *
+     * @param url     an url of media.
+     * @param seconds a playback time to be cached from the beginning of media.
+     */
+    void preload(String url, int seconds) {
+        if (config.findCompletedFile(url) != null || !preloadingUrls.add(url)) {
+            return;
+        }
+        try {
+            preloadExecutor.execute(new PreloadRunnable(url, seconds));
+        } catch (RejectedExecutionException e) {
+            preloadingUrls.remove(url);
+        }
+    }
+
+    void shutdown() {
+        preloadExecutor.shutdownNow();
+    }
+
+    /**
+     * Reads beginning of media through proxy synchronously until budget for given playback time is read.
+     *
+     * @param url     an url of media.
+     * @param seconds a playback time to be cached from the beginning of media.
+     * @return count of read bytes (it may exceed budget by less than one read) or {@code -1} if preloading is failed.
+     */
+    long preloadMedia(String url, int seconds) {
+        String proxyUrl = String.format(Locale.US, "http://%s:%d/%s", host, port, ProxyCacheUtils.encode(url));
+        OkHttpSource source = new OkHttpSource(proxyUrl, SourceInfoStorageFactory.newEmptySourceInfoStorage(),
+                GetRequest.PREFETCH_HEADER_INJECTOR);
+        byte[] buffer = config.bufferPool.acquire(BufferPool.DEFAULT_MAX_BUFFER_SIZE);
+        try {
+            source.open(0);
+            long sourceLength = source.length();
+            byte[] head = new byte[Mp4TailPrefetcher.HEAD_SIZE];
+            int headLength = 0;
+            long budget = -1;
+            long readTotal = 0;
+            int readBytes;
+            while ((budget < 0 || readTotal < budget) && (readBytes = source.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return readTotal;
+                }
+                if (headLength < head.length) {
+                    int headBytes = Math.min(readBytes, head.length - headLength);
+                    System.arraycopy(buffer, 0, head, headLength, headBytes);
+                    headLength += headBytes;
+                }
+                readTotal += readBytes;
+                if (budget < 0 && (headLength == head.length || readTotal == sourceLength)) {
+                    budget = getBudget(sourceLength, getDuration(url, head, headLength), seconds);
+                }
+            }
+            HttpProxyCacheDebuger.printfLog(String.format(Locale.US, "%d bytes of %s are preloaded for %d seconds",
+                    readTotal, url, seconds));
+            return readTotal;
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error preloading " + url + ": " + e.getMessage());
+            return -1;
+        } finally {
+            config.bufferPool.release(buffer);
+            try {
+                source.close();
+            } catch (ProxyCacheException e) {
+                HttpProxyCacheDebuger.printfWarning("Error closing preloading source: " + e.getMessage());
+            }
+        }
+    }
+
+    private long getDuration(String url, byte[] head, int headLength) {
+        long duration = Mp4Boxes.findDuration(head, headLength);
+        return duration > 0 ? duration : config.getDurationHint(url);
+    }
+
+    private final class PreloadRunnable implements Runnable {
+
+        private final String url;
+        private final int    seconds;
+
+        PreloadRunnable(String url, int seconds) {
+            this.url = url;
+            this.seconds = seconds;
+        }
+
+        @Override
+        public void run() {
+            try {
+                preloadMedia(url, seconds);
+            } finally {
+                preloadingUrls.remove(url);
+            }
+        }
+    }
+}
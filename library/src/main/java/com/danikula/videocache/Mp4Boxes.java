@@ -0,0 +1,131 @@
+package com.danikula.videocache;
+
+/**
+ * Parser of box (atom) headers of MP4 file (ISO base media file format), it works with file's head only.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class Mp4Boxes {
+
+    private static final int  BOX_HEADER_SIZE       = 8;
+    private static final int  LARGE_BOX_HEADER_SIZE = 16;
+    private static final long UNKNOWN_DURATION_32   = 0xFFFFFFFFL;
+
+    private Mp4Boxes() {
+    }
+
+    /**
+     * Finds where data following media data begins by top level box headers.
+     *
+     * @param head         a head of file.
+     * @param length       a count of bytes in head.
+     * @param sourceLength a length of the whole file.
+     * @return offset of tail or {@code -1} if data is not MP4 file, index precedes media data or head is too short.
+     */
+    static long findTailOffset(byte[] head, int length, long sourceLength) {
+        long offset = 0;
+        while (offset + BOX_HEADER_SIZE <= length) {
+            Box box = readBox(head, (int) offset, length);
+            if (box == null || (offset == 0 && !"ftyp".equals(box.type)) || "moov".equals(box.type)) {
+                return -1;
+            }
+            if ("mdat".equals(box.type)) {
+                long end = offset + box.size;
+                return end < sourceLength ? end : -1;
+            }
+            offset += box.size;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds duration of movie by its header ('mvhd' box), it is possible only if index precedes media data.
+     *
+     * @param head   a head of file.
+     * @param length a count of bytes in head.
+     * @return duration in milliseconds or {@code -1} if it is unknown.
+     */
+    static long findDuration(byte[] head, int length) {
+        long offset = 0;
+        while (offset + BOX_HEADER_SIZE <= length) {
+            Box box = readBox(head, (int) offset, length);
+            if (box == null || (offset == 0 && !"ftyp".equals(box.type)) || "mdat".equals(box.type)) {
+                return -1;
+            }
+            if ("moov".equals(box.type)) {
+                return findMovieHeaderDuration(head, (int) offset + box.headerSize, (int) Math.min(length, offset + box.size));
+            }
+            offset += box.size;
+        }
+        return -1;
+    }
+
+    private static long findMovieHeaderDuration(byte[] head, int start, int end) {
+        int offset = start;
+        while (offset + BOX_HEADER_SIZE <= end) {
+            Box box = readBox(head, offset, end);
+            if (box == null) {
+                return -1;
+            }
+            if ("mvhd".equals(box.type)) {
+                return readMovieHeaderDuration(head, offset + box.headerSize, end);
+            }
+            offset += box.size;
+        }
+        return -1;
+    }
+
+    private static long readMovieHeaderDuration(byte[] head, int offset, int end) {
+        // version and flags, creation and modification times, time scale, duration
+        boolean version1 = offset < end && head[offset] == 1;
+        int timeScaleOffset = offset + 4 + (version1 ? 16 : 8);
+        int durationSize = version1 ? 8 : 4;
+        if (timeScaleOffset + 4 + durationSize > end) {
+            return -1;
+        }
+        long timeScale = readUnsignedInt(head, timeScaleOffset);
+        long duration = version1 ? readLong(head, timeScaleOffset + 4) : readUnsignedInt(head, timeScaleOffset + 4);
+        boolean unknown = version1 ? duration == -1 : duration == UNKNOWN_DURATION_32;
+        if (timeScale == 0 || duration <= 0 || unknown) {
+            return -1;
+        }
+        return duration * 1000 / timeScale;
+    }
+
+    private static Box readBox(byte[] data, int offset, int end) {
+        long size = readUnsignedInt(data, offset);
+        String type = new String(data, offset + 4, 4);
+        int headerSize = BOX_HEADER_SIZE;
+        if (size == 1) { // 64-bit size follows type
+            if (offset + LARGE_BOX_HEADER_SIZE > end) {
+                return null;
+            }
+            size = readLong(data, offset + 8);
+            headerSize = LARGE_BOX_HEADER_SIZE;
+        }
+        // size 0 means box lasts up to the end of file, it is the last box and it is not interesting
+        return size < headerSize ? null : new Box(type, size, headerSize);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        return (readUnsignedInt(data, offset) << 32) | readUnsignedInt(data, offset + 4);
+    }
+
+    private static long readUnsignedInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFFL) << 24) | ((data[offset + 1] & 0xFFL) << 16) |
+                ((data[offset + 2] & 0xFFL) << 8) | (data[offset + 3] & 0xFFL);
+    }
+
+    private static final class Box {
+
+        private final String type;
+        private final long   size;
+        private final int    headerSize;
+
+        Box(String type, long size, int headerSize) {
+            this.type = type;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.danikula.videocache;
+
+import android.text.TextUtils;
+
+import com.danikula.videocache.file.TailCache;
+
+/**
+ * Prefetches tail of MP4 file having index ('moov' box) after media data, i.e. not optimized for fast start.
+ * Player reads head of such file, then jumps to its end for index and only then returns to media data.
+ * Range far from sequentially cached data is not served from cache (see {@link HttpProxyCache}), so tail is fetched
+ * in parallel as soon as box headers in file's head show that index is trailing, and request for tail is served
+ * from {@link TailCache} instead of extra request to origin. Tail is served progressively: reader waits only for data
+ * it reads, not for the whole tail.
+ * <p>
+ * Prefetcher is shared by all {@link HttpProxyCache}s of the same url, so tail download survives reconnection
+ * of player between head and tail requests.
+ * <p>
+ * Tail is bound to origin's validator of head: tail is requested with {@code If-Range} header and cached tail
+ * of other version of source is discarded, so head and tail are always taken from the same version.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class Mp4TailPrefetcher {
+
+    static final int HEAD_SIZE = 64 * 1024;
+
+    private static final long MAX_TAIL_SIZE = 32 * 1024 * 1024;
+
+    private final TailCache  tailCache;
+    private final BufferPool bufferPool;
+    private Thread           tailReaderThread;
+    private boolean          headChecked;
+
+    Mp4TailPrefetcher(TailCache tailCache, BufferPool bufferPool) {
+        this.tailCache = tailCache;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Checks cached head of source once and starts prefetching of tail if index is trailing.
+     *
+     * @param head         a head of source, at least {@link #HEAD_SIZE} bytes or the whole source.
+     * @param length       a count of bytes in head.
+     * @param source       a source to be used as template for tail's source.
+     * @param sourceLength a source's length.
+     * @param validator    an origin's validator of head, may be {@code null}.
+     * @throws ProxyCacheException if error occurs while creating tail cache.
+     */
+    synchronized void onHeadCached(byte[] head, int length, OkHttpSource source, long sourceLength, String validator)
+            throws ProxyCacheException {
+        if (headChecked) {
+            return;
+        }
+        headChecked = true;
+        discardIfStale(validator);
+        if (tailCache.isCompleted()) {
+            return;
+        }
+        long tailOffset = Mp4Boxes.findTailOffset(head, length, sourceLength);
+        if (tailOffset < 0 || sourceLength - tailOffset > MAX_TAIL_SIZE) {
+            return;
+        }
+        tailCache.begin(tailOffset, sourceLength, validator);
+        OkHttpSource tailSource = new OkHttpSource(source);
+        tailSource.setResumeValidator(validator);
+        TailReaderRunnable tailReader = new TailReaderRunnable(tailSource, tailOffset);
+        tailReaderThread = new Thread(tailReader, "Tail reader for " + source.url);
+        tailReaderThread.start();
+    }
+
+    /**
+     * Checks whether data at offset belongs to tail that is cached or being cached for the same version of source.
+     *
+     * @param offset    an offset in source.
+     * @param validator an origin's validator of cached data, may be {@code null}.
+     */
+    synchronized boolean isTail(long offset, String validator) {
+        discardIfStale(validator);
+        long tailOffset = tailCache.getOffset();
+        return tailOffset >= 0 && offset >= tailOffset;
+    }
+
+    /**
+     * Discards tail cached for other version of source, e.g. when source is changed and is cached from scratch.
+     * Head is checked again after that, so tail of actual version is prefetched if it is needed.
+     *
+     * @param validator an origin's validator of actual data, may be {@code null}.
+     */
+    synchronized void discardIfStale(String validator) {
+        if (tailCache.getOffset() >= 0 && !TextUtils.equals(validator, tailCache.getValidator())) {
+            HttpProxyCacheDebuger.printfLog("Tail cached for validator " + tailCache.getValidator() + " is discarded");
+            discardTail();
+        }
+    }
+
+    private synchronized void discardTail() {
+        if (tailReaderThread != null) {
+            tailReaderThread.interrupt();
+            tailReaderThread = null;
+        }
+        tailCache.delete();
+        headChecked = false;
+        notifyAll();
+    }
+
+    /**
+     * Checks whether tail is being prefetched right now.
+     */
+    synchronized boolean isPrefetching() {
+        return tailReaderThread != null && tailReaderThread.isAlive();
+    }
+
+    /**
+     * Checks whether data at offset of tail can be served, i.e. it is already cached or tail is being prefetched.
+     *
+     * @param offset an offset in source.
+     */
+    synchronized boolean canServe(long offset) {
+        return isPrefetching() || tailCache.available() > offset;
+    }
+
+    /**
+     * Returns position in source tail is cached up to or {@code -1} if there is no cached tail.
+     */
+    long available() {
+        return tailCache.available();
+    }
+
+    /**
+     * Reads tail's data, waits while requested data is being prefetched like {@link ProxyCache#read(byte[], long, int)}.
+     *
+     * @param buffer a buffer to read data to.
+     * @param offset an offset in source to read from.
+     * @param length max count of bytes to read.
+     * @return count of read bytes or {@code -1} if data at offset is not cached and is not being prefetched,
+     * e.g. prefetching is failed or tail is discarded.
+     * @throws ProxyCacheException if error occurs while reading tail or waiting is interrupted.
+     */
+    int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        synchronized (this) {
+            while (isPrefetching() && !tailCache.isCompleted() && tailCache.available() < offset + length) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedProxyCacheException("Waiting tail is interrupted", e);
+                }
+            }
+        }
+        return tailCache.read(buffer, offset, length);
+    }
+
+    /**
+     * Deletes cached tail if it is not being prefetched, called when the whole source is cached.
+     */
+    synchronized void onCacheCompleted() {
+        if (tailReaderThread == null || !tailReaderThread.isAlive()) {
+            tailCache.delete();
+        }
+    }
+
+    synchronized void shutdown() {
+        if (tailReaderThread != null) {
+            tailReaderThread.interrupt();
+        }
+        tailCache.close();
+    }
+
+    private void readTail(OkHttpSource source, long offset) {
+        byte[] buffer = bufferPool.acquire(BufferPool.DEFAULT_MAX_BUFFER_SIZE);
+        try {
+            source.open(offset);
+            int readBytes;
+            while ((readBytes = source.read(buffer)) != -1) {
+                if (!appendTail(buffer, readBytes)) {
+                    return;
+                }
+            }
+            if (tailCache.isCompleted()) {
+                HttpProxyCacheDebuger.printfLog("Tail of " + source.url + " from " + offset + " is prefetched");
+            }
+        } catch (SourceChangedException e) {
+            HttpProxyCacheDebuger.printfWarning("Source " + source.url + " is changed, tail is discarded");
+            synchronized (this) {
+                if (isCurrentReader()) {
+                    discardTail();
+                }
+            }
+        } catch (ProxyCacheException e) {
+            HttpProxyCacheDebuger.printfWarning("Error prefetching tail of " + source.url + ": " + e.getMessage());
+        } finally {
+            bufferPool.release(buffer);
+            try {
+                source.close();
+            } catch (ProxyCacheException e) {
+                HttpProxyCacheDebuger.printfWarning("Error closing tail's source: " + e.getMessage());
+            }
+            onReaderFinished();
+        }
+    }
+
+    private synchronized void onReaderFinished() {
+        if (tailReaderThread == Thread.currentThread()) {
+            tailReaderThread = null;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean appendTail(byte[] data, int length) throws ProxyCacheException {
+        // reader of discarded tail must not write to tail being prefetched for other version of source
+        if (!isCurrentReader()) {
+            return false;
+        }
+        tailCache.append(data, length);
+        notifyAll();
+        return true;
+    }
+
+    private boolean isCurrentReader() {
+        Thread currentThread = Thread.currentThread();
+        return currentThread == tailReaderThread && !currentThread.isInterrupted();
+    }
+
+    private final class TailReaderRunnable implements Runnable {
+
+        private final OkHttpSource source;
+        private final long         offset;
+
+        TailReaderRunnable(OkHttpSource source, long offset) {
+            this.source = source;
+            this.offset = offset;
+        }
+
+        @Override
+        public void run() {
+            readTail(source, offset);
+        }
+    }
+}
@@ -7,45 +7,71 @@ import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.Date;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 import static com.danikula.videocache.LOG.LOG_TAG;
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 
 public class OkHttpSource extends UrlSource {
-    private static final int MAX_REDIRECTS = 5;
-
-    private OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
-    private InputStream          inputStream;
-    private SourceInfo           sourceInfo;
-    private HeaderInjector       headerInjector;
+    private final SourceInfoStorage    sourceInfoStorage;
+    private final String               cacheKey;
+    private final HeaderInjector       headerInjector;
+    private final ResolvedUrlCache     resolvedUrlCache;
+    private       OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
+    private       InputStream          inputStream;
+    private       SourceInfo           sourceInfo;
+    private       String               resumeValidator;
+    private       boolean              originExpiryUsed;
+    private       long                 expirationTime;
+    private       String               finalUrl;
 
     public OkHttpSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
-        this(url);
-        SourceInfo sourceInfo = sourceInfoStorage.get(url);
+        this(url, url, sourceInfoStorage, headerInjector, new ResolvedUrlCache());
+    }
+
+    OkHttpSource(String url, Config config) {
+        this(url, config.cacheKey(url), config.sourceInfoStorage, config.headerInjector, config.resolvedUrlCache);
+        this.originExpiryUsed = config.originExpiryUsed;
+    }
+
+    private OkHttpSource(String url, String cacheKey, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector,
+                         ResolvedUrlCache resolvedUrlCache) {
+        super(url);
+        this.resolvedUrlCache = checkNotNull(resolvedUrlCache);
+        this.cacheKey = checkNotNull(cacheKey);
+        this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+        this.headerInjector = headerInjector;
+        SourceInfo sourceInfo = sourceInfoStorage.get(cacheKey);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
-        this.headerInjector = headerInjector;
     }
 
     public OkHttpSource(OkHttpSource okHttpSource) {
-        this(okHttpSource.url);
+        super(okHttpSource);
+        this.cacheKey = okHttpSource.cacheKey;
+        this.sourceInfoStorage = okHttpSource.sourceInfoStorage;
+        this.headerInjector = okHttpSource.headerInjector;
+        this.resolvedUrlCache = okHttpSource.resolvedUrlCache;
+        this.sourceInfo = okHttpSource.sourceInfo;
+        this.originExpiryUsed = okHttpSource.originExpiryUsed;
     }
 
     public OkHttpSource(String url) {
-        super(url);
-        this.sourceInfo = SourceInfoStorageFactory.newEmptySourceInfoStorage().get(url);
+        this(url, SourceInfoStorageFactory.newEmptySourceInfoStorage(), null);
     }
 
     @Override
@@ -72,21 +98,162 @@ public class OkHttpSource extends UrlSource {
 
     @Override
     public void open(long offset) throws ProxyCacheException {
+        open(offset, false);
+    }
+
+    /**
+     * Opens source for data that is not going to be cached, e.g. for range far from cached data.
+     * Unlike {@link #open(long)} it doesn't fail if origin returns whole content instead of range: data before
+     * offset is skipped, so response already started from this offset is served completely.
+     *
+     * @param offset an offset to read data from.
+     * @throws ProxyCacheException if error occurs while opening source or skipping data before offset.
+     */
+    public void openSkipping(long offset) throws ProxyCacheException {
+        open(offset, true);
+    }
+
+    private void open(long offset, boolean skipRejectedRange) throws ProxyCacheException {
         try {
             Response response = openConnection(offset, 30000);
-            mime = response.body().contentType().toString();
+            finalUrl = response.request().url().toString();
+            boolean rangeRejected = offset > 0 && response.code() == HTTP_OK;
+            if (rangeRejected && !skipRejectedRange) {
+                onRangeRejected(response, offset);
+            }
+            mime = readMime(response);
             length = readSourceAvailableBytes(response, offset);
-            inputStream = new BufferedInputStream(response.body().byteStream(), DEFAULT_BUFFER_SIZE);
+            expirationTime = originExpiryUsed ? readExpirationTime(response) : 0;
+            inputStream = response.body().byteStream();
+            if (response.isSuccessful()) {
+                tryPutMimeCache(response);
+            }
+            if (rangeRejected) {
+                MyLog.w(LOG_TAG, "Origin returned whole content of " + url + ", " + offset + " bytes are skipped");
+                ProxyCacheUtils.skip(inputStream, offset);
+            }
         } catch (IOException e) {
             throw new ProxyCacheException("Error opening connection for " + url + " with offset " + offset, e);
         }
     }
 
+    /**
+     * Origin returned whole content instead of requested range: data is changed since previous reading
+     * ({@code If-Range} validator doesn't match) or origin doesn't support ranges. Actual info is stored and
+     * {@link SourceChangedException} is thrown, so caller can discard inconsistent data and start from the beginning.
+     */
+    private void onRangeRejected(Response response, long offset) throws SourceChangedException {
+        try {
+            mime = readMime(response);
+            length = response.body().contentLength();
+            tryPutMimeCache(response);
+        } finally {
+            ProxyCacheUtils.close(response);
+        }
+        throw new SourceChangedException("Origin returned whole content of " + url + " instead of range from " + offset);
+    }
+
+    /**
+     * Checks with help of conditional request whether data cached before is still actual.
+     * Network errors are not treated as changes, so cached data can be used offline.
+     *
+     * @return {@code false} only if origin reports that content is changed.
+     */
+    public boolean revalidate() {
+        SourceInfo cachedInfo = sourceInfo;
+        if (TextUtils.isEmpty(cachedInfo.etag) && TextUtils.isEmpty(cachedInfo.lastModified)) {
+            MyLog.d(LOG_TAG, "There is no validators for " + url + ", treat cached data as actual");
+            return true;
+        }
+        Response response = null;
+        try {
+            response = openConnectionForHeader(30000, cachedInfo);
+            if (response.code() == HTTP_NOT_MODIFIED) {
+                return true;
+            }
+            if (!response.isSuccessful()) {
+                MyLog.w(LOG_TAG, "Error revalidating " + url + ": response code is " + response.code());
+                return true;
+            }
+            length = response.body().contentLength();
+            mime = readMime(response);
+            tryPutMimeCache(response);
+            return isSameContent(cachedInfo, sourceInfo);
+        } catch (IOException e) {
+            MyLog.e(LOG_TAG, "Error revalidating " + url, e);
+            return true;
+        } finally {
+            ProxyCacheUtils.close(response);
+        }
+    }
+
+    private boolean isSameContent(SourceInfo cachedInfo, SourceInfo actualInfo) {
+        if (!TextUtils.isEmpty(cachedInfo.etag)) {
+            return cachedInfo.etag.equals(actualInfo.etag);
+        }
+        return TextUtils.equals(cachedInfo.lastModified, actualInfo.lastModified) && cachedInfo.length == actualInfo.length;
+    }
+
     private long readSourceAvailableBytes(Response response, long offset) throws IOException {
         int responseCode = response.code();
-        int contentLength = (int) response.body().contentLength();
+        long contentLength = response.body().contentLength();
         return responseCode == HTTP_OK ? contentLength
-                : responseCode == HTTP_PARTIAL ? contentLength + offset : length;
+                : responseCode == HTTP_PARTIAL && contentLength >= 0 ? contentLength + offset : length;
+    }
+
+    /**
+     * Computes expiration time of response's content from {@code Cache-Control: max-age} (taking {@code Age} into account)
+     * or {@code Expires} header. Expiration is computed relative to origin's {@code Date}, so wrong device's clock
+     * doesn't matter.
+     */
+    private long readExpirationTime(Response response) {
+        long now = System.currentTimeMillis();
+        int maxAge = response.cacheControl().maxAgeSeconds();
+        if (maxAge >= 0) {
+            long age = 0;
+            try {
+                String ageHeader = response.header("Age");
+                age = ageHeader == null ? 0 : Long.parseLong(ageHeader.trim());
+            } catch (NumberFormatException e) {
+                // ignore malformed age
+            }
+            return now + TimeUnit.SECONDS.toMillis(Math.max(0, maxAge - age));
+        }
+        if (response.header("Expires") == null) {
+            return 0;
+        }
+        Date expires = response.headers().getDate("Expires");
+        if (expires == null) {
+            return now; // invalid date (e.g. "0") means content is already expired (RFC 7234, 5.3)
+        }
+        Date date = response.headers().getDate("Date");
+        return now + expires.getTime() - (date == null ? now : date.getTime());
+    }
+
+    /**
+     * Returns time when content of the last opened response expires according to origin's headers.
+     * Origin's expiration is used only if it is enabled with
+     * {@link HttpProxyCacheServer.Builder#useOriginExpiry(boolean)}.
+     *
+     * @return time in milliseconds since epoch or {@code 0} if content doesn't expire.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * Returns url the last opened response is actually received from, it differs from source's url
+     * if request was redirected. It should be used for resolving relative urls in response's content.
+     *
+     * @return an url, source's url if source was not opened yet.
+     */
+    public String getFinalUrl() {
+        return finalUrl != null ? finalUrl : url;
+    }
+
+    private String readMime(Response response) {
+        MediaType contentType = response.body().contentType();
+        return contentType == null ? mime : contentType.toString();
     }
 
     @Override
@@ -95,7 +262,7 @@ public class OkHttpSource extends UrlSource {
             throw new ProxyCacheException("Error reading data from " + url + ": connection is absent!");
         }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            return ProxyCacheUtils.fill(inputStream, buffer);
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + url + " is interrupted", e);
         } catch (IOException e) {
@@ -112,84 +279,111 @@ public class OkHttpSource extends UrlSource {
         MyLog.d(LOG_TAG, "Read content info from " + url);
         Response response = null;
         try {
-            response = openConnectionForHeader(30000);
+            response = openConnectionForHeader(30000, null);
             if (response == null || !response.isSuccessful()) {
                 throw new ProxyCacheException("Fail to fetchContentInfo: " + url);
             }
-            length = (int) response.body().contentLength();
-            mime = response.body().contentType().toString();
-            tryPutMimeCache();
+            length = response.body().contentLength();
+            mime = readMime(response);
+            tryPutMimeCache(response);
             MyLog.i(LOG_TAG, "Content info for `" + url + "`: mime: " + mime + ", content-length: " + length);
         } catch (IOException e) {
             MyLog.e(LOG_TAG, "Error fetching info from " + url, e);
         } finally {
+            ProxyCacheUtils.close(response);
             MyLog.d(LOG_TAG, "Closed connection from :" + url);
         }
     }
 
-    private Response openConnectionForHeader(int timeout) throws IOException, ProxyCacheException {
-        if (timeout > 0) {
-            httpClient.connectTimeout(timeout, TimeUnit.MILLISECONDS);
-            httpClient.readTimeout(timeout, TimeUnit.MILLISECONDS);
-            httpClient.writeTimeout(timeout, TimeUnit.MILLISECONDS);
+    private Response openConnectionForHeader(int timeout, SourceInfo validators) throws IOException {
+        setTimeout(timeout);
+        Request.Builder requestBuilder = new Request.Builder().head();
+        if (validators != null) {
+            injectValidators(requestBuilder, validators);
         }
-        Response response;
-        boolean isRedirect = false;
-        String newUrl = this.url;
-        int redirectCount = 0;
-        do {
-            Request request = new Request.Builder()
-                    .head()
-                    .url(newUrl)
-                    .build();
-            response = httpClient.build().newCall(request).execute();
-            if (response.isRedirect()) {
-                newUrl = response.header("Location");
-                isRedirect = response.isRedirect();
-                redirectCount++;
-            }
-            if (redirectCount > MAX_REDIRECTS) {
-                throw new ProxyCacheException("Too many redirects: " + redirectCount);
-            }
-        } while (isRedirect);
+        injectCustomHeaders(requestBuilder, url);
+        return execute(requestBuilder);
+    }
 
-        return response;
+    private Response openConnection(long offset, int timeout) throws IOException {
+        setTimeout(timeout);
+        MyLog.d(LOG_TAG, "Open connection" + (offset > 0 ? " with offset " + offset : "") + " to " + url);
+        Request.Builder requestBuilder = new Request.Builder().get();
+        if (offset > 0) {
+            requestBuilder.addHeader("Range", "bytes=" + offset + "-");
+            String ifRange = resumeValidator != null ? resumeValidator : getValidator();
+            if (ifRange != null) {
+                requestBuilder.addHeader("If-Range", ifRange);
+            }
+        }
+        injectCustomHeaders(requestBuilder, url);
+        return execute(requestBuilder);
     }
 
-    private Response openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+    private void setTimeout(int timeout) {
         if (timeout > 0) {
             httpClient.connectTimeout(timeout, TimeUnit.MILLISECONDS);
             httpClient.readTimeout(timeout, TimeUnit.MILLISECONDS);
             httpClient.writeTimeout(timeout, TimeUnit.MILLISECONDS);
         }
-        Response response;
-        boolean isRedirect = false;
-        String newUrl = this.url;
-        int redirectCount = 0;
-        do {
-            MyLog.d(LOG_TAG, "Open connection" + (offset > 0 ? " with offset " + offset : "") + " to " + url);
-            Request.Builder requestBuilder = new Request.Builder();
-            requestBuilder.get();
-            requestBuilder.url(newUrl);
-            if (offset > 0) {
-                requestBuilder.addHeader("Range", "bytes=" + offset + "-");
-            }
-            requestBuilder.addHeader("Connection", "close");
-            injectCustomHeaders(requestBuilder, url);
-            response = httpClient.build().newCall(requestBuilder.build()).execute();
-            if (response.isRedirect()) {
-                newUrl = response.header("Location");
-                isRedirect = response.isRedirect();
-                redirectCount++;
-            }
-            if (redirectCount > MAX_REDIRECTS) {
-                throw new ProxyCacheException("Too many redirects: " + redirectCount);
-            }
-        } while (isRedirect);
+    }
 
+    /**
+     * Executes request to resolved url if redirect chain was passed recently, otherwise to original url
+     * (redirects are followed by OkHttp itself). Client error or server error from resolved url means it is
+     * not valid any more, so request is repeated with original url.
+     */
+    private Response execute(Request.Builder requestBuilder) throws IOException {
+        String resolvedUrl = resolvedUrlCache.get(cacheKey);
+        if (resolvedUrl != null) {
+            Response response = httpClient.build().newCall(requestBuilder.url(resolvedUrl).build()).execute();
+            if (response.code() < HTTP_BAD_REQUEST) {
+                return response;
+            }
+            MyLog.w(LOG_TAG, "Resolved url " + resolvedUrl + " responds with code " + response.code() + ", try original url " + url);
+            ProxyCacheUtils.close(response);
+            resolvedUrlCache.remove(cacheKey);
+        }
+        Response response = httpClient.build().newCall(requestBuilder.url(url).build()).execute();
+        String finalUrl = response.request().url().toString();
+        if (response.code() < HTTP_BAD_REQUEST && !finalUrl.equals(url)) {
+            resolvedUrlCache.put(cacheKey, finalUrl);
+        }
         return response;
     }
 
+    private void injectValidators(Request.Builder requestBuilder, SourceInfo validators) {
+        if (!TextUtils.isEmpty(validators.etag)) {
+            requestBuilder.addHeader("If-None-Match", validators.etag);
+        }
+        if (!TextUtils.isEmpty(validators.lastModified)) {
+            requestBuilder.addHeader("If-Modified-Since", validators.lastModified);
+        }
+    }
+
+    /**
+     * Returns validator of source's data suitable for {@code If-Range} header: strong ETag if any, Last-Modified otherwise.
+     * Weak ETags are not allowed in {@code If-Range} (RFC 7233, 3.2).
+     *
+     * @return a validator or {@code null} if origin doesn't provide any.
+     */
+    public String getValidator() {
+        SourceInfo info = sourceInfo;
+        if (!TextUtils.isEmpty(info.etag) && !info.etag.startsWith("W/")) {
+            return info.etag;
+        }
+        return TextUtils.isEmpty(info.lastModified) ? null : info.lastModified;
+    }
+
+    /**
+     * Sets validator of data cached before, it is used for resuming instead of the last known source's validator.
+     *
+     * @param resumeValidator a validator, may be {@code null}.
+     */
+    public void setResumeValidator(String resumeValidator) {
+        this.resumeValidator = resumeValidator;
+    }
+
     private void injectCustomHeaders(Request.Builder connection, String url) {
         if (headerInjector == null)
             return;
@@ -207,13 +401,30 @@ public class OkHttpSource extends UrlSource {
         if (sourceInfo != null) {
             this.mime = sourceInfo.mime;
             this.length = sourceInfo.length;
-            this.url = sourceInfo.url;
         }
     }
 
-    private void tryPutMimeCache() {
-        if (sourceInfo != null) {
-            sourceInfo = new SourceInfo(url, length, mime);
+    /**
+     * Persists actual source's info, so next source for the same cache key knows length and mime without
+     * any network round trip.
+     */
+    private void tryPutMimeCache(Response response) {
+        String resolvedUrl = response.request().url().toString();
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        SourceInfo newSourceInfo = new SourceInfo(resolvedUrl, length, mime, etag, lastModified);
+        if (isChanged(sourceInfo, newSourceInfo)) {
+            sourceInfo = newSourceInfo;
+            sourceInfoStorage.put(cacheKey, sourceInfo);
         }
     }
+
+    private boolean isChanged(SourceInfo oldInfo, SourceInfo newInfo) {
+        return oldInfo == null
+                || oldInfo.length != newInfo.length
+                || !TextUtils.equals(oldInfo.url, newInfo.url)
+                || !TextUtils.equals(oldInfo.mime, newInfo.mime)
+                || !TextUtils.equals(oldInfo.etag, newInfo.etag)
+                || !TextUtils.equals(oldInfo.lastModified, newInfo.lastModified);
+    }
 }
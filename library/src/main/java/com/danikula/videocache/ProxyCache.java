@@ -20,6 +20,7 @@ class ProxyCache {
 
     private final    Source        source;
     private final    Cache         cache;
+    private final    BufferPool    bufferPool;
     private final    Object        wc = new Object();
     private final    Object        stopLock = new Object();
     private final    AtomicInteger readSourceErrorsCount;
@@ -28,8 +29,13 @@ class ProxyCache {
     private volatile int           percentsAvailable = -1;
 
     public ProxyCache(Source source, Cache cache) {
+        this(source, cache, BufferPool.getDefault());
+    }
+
+    ProxyCache(Source source, Cache cache, BufferPool bufferPool) {
         this.source = checkNotNull(source);
         this.cache = checkNotNull(cache);
+        this.bufferPool = checkNotNull(bufferPool);
         this.readSourceErrorsCount = new AtomicInteger();
     }
 
@@ -111,23 +117,34 @@ class ProxyCache {
     protected void onCachePercentsAvailableChanged(int percentsAvailable) {
     }
 
+    /**
+     * Called by source reader thread when source is opened and data from {@code offset} is going to be cached.
+     *
+     * @param offset an offset source is opened with.
+     * @throws ProxyCacheException if error occurs while preparing cache.
+     */
+    protected void onSourceOpened(long offset) throws ProxyCacheException {
+    }
+
     private void readSource() {
         long sourceAvailable = -1;
         long offset = 0;
+        AdaptiveBuffer buffer = new AdaptiveBuffer(bufferPool);
         try {
-            offset = cache.available();
-            source.open(offset);
+            offset = openSource(cache.available());
+            onSourceOpened(offset);
             sourceAvailable = source.length();
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+            reserveCache(sourceAvailable);
             int readBytes;
-            while ((readBytes = source.read(buffer)) != -1) {
+            while ((readBytes = source.read(buffer.array())) != -1) {
                 synchronized (stopLock) {
                     if (isStopped()) {
                         return;
                     }
-                    cache.append(buffer, readBytes);
+                    cache.append(buffer.array(), readBytes);
                 }
                 offset += readBytes;
+                buffer.onRead(readBytes);
                 notifyNewCacheDataAvailable(offset, sourceAvailable);
             }
             tryComplete();
@@ -136,11 +153,39 @@ class ProxyCache {
             readSourceErrorsCount.incrementAndGet();
             onError(e);
         } finally {
+            buffer.release();
             closeSource();
             notifyNewCacheDataAvailable(offset, sourceAvailable);
         }
     }
 
+    private long openSource(long offset) throws ProxyCacheException {
+        try {
+            source.open(offset);
+            return offset;
+        } catch (SourceChangedException e) {
+            HttpProxyCacheDebuger.printfWarning("Source " + source + " can't be resumed, cached data is discarded: " + e.getMessage());
+            synchronized (stopLock) {
+                if (isStopped()) {
+                    throw new InterruptedProxyCacheException("Source reading is stopped");
+                }
+                cache.clear();
+            }
+            source.open(0);
+            return 0;
+        }
+    }
+
+    private void reserveCache(long sourceLength) throws ProxyCacheException {
+        if (sourceLength > 0) {
+            synchronized (stopLock) {
+                if (!isStopped()) {
+                    cache.reserve(sourceLength);
+                }
+            }
+        }
+    }
+
     private void onSourceRead() {
         // guaranteed notify listeners after source read and cache completed
         percentsAvailable = 100;
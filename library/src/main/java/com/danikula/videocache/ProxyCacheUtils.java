@@ -4,10 +4,13 @@ import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -24,6 +27,12 @@ public class ProxyCacheUtils {
 
     static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
     static final int MAX_ARRAY_PREVIEW = 16;
+    static final long MAX_FILL_TIME = 50;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long MURMUR3_C1 = 0x87c37b91114253d5L;
+    private static final long MURMUR3_C2 = 0x4cf5ad432745937fL;
 
     static String getSupposablyMime(String url) {
         MimeTypeMap mimes = MimeTypeMap.getSingleton();
@@ -63,6 +72,54 @@ public class ProxyCacheUtils {
         }
     }
 
+    /**
+     * Reads stream into buffer until buffer is full, stream is ended or {@link #MAX_FILL_TIME} milliseconds are passed.
+     * Network streams return at most a few kilobytes per read, so filling lets big buffers save work per read
+     * while time limit bounds delay of data for slow connection.
+     *
+     * @param inputStream a stream to read.
+     * @param buffer      a buffer to fill.
+     * @return count of read bytes or {@code -1} if stream is ended.
+     * @throws IOException if error occurs while reading.
+     */
+    static int fill(InputStream inputStream, byte[] buffer) throws IOException {
+        long deadline = System.currentTimeMillis() + MAX_FILL_TIME;
+        int filled = 0;
+        while (filled < buffer.length) {
+            int readBytes = inputStream.read(buffer, filled, buffer.length - filled);
+            if (readBytes == -1) {
+                return filled > 0 ? filled : -1;
+            }
+            filled += readBytes;
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * Skips exactly {@code count} bytes of stream.
+     *
+     * @param inputStream a stream to skip data of.
+     * @param count       a count of bytes to skip.
+     * @throws EOFException if stream is ended before {@code count} bytes are skipped.
+     * @throws IOException  if error occurs while reading.
+     */
+    static void skip(InputStream inputStream, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long skippedBytes = inputStream.skip(count - skipped);
+            if (skippedBytes <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new EOFException("Stream is ended after " + skipped + " of " + count + " skipped bytes");
+                }
+                skippedBytes = 1;
+            }
+            skipped += skippedBytes;
+        }
+    }
+
     static void close(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -83,11 +140,116 @@ public class ProxyCacheUtils {
         }
     }
 
+    /**
+     * Computes 128-bit MurmurHash3 (x64 variant, zero seed) of utf-8 representation of string.
+     * It is much cheaper than MD5 and is good enough for cache keys, but it is not cryptographic hash.
+     *
+     * @param string a string to be hashed.
+     * @return 32 hex chars of hash, bytes order is the same as Guava's {@code Hashing.murmur3_128()} produces.
+     */
+    public static String computeMurmur3(String string) {
+        byte[] data = string.getBytes(UTF_8);
+        int length = data.length;
+        int blocksCount = length / 16;
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < blocksCount; i++) {
+            long k1 = getLongLittleEndian(data, i * 16);
+            long k2 = getLongLittleEndian(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocksCount * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9: k2 ^= (long) (data[tail + 8] & 0xff);
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1: k1 ^= (long) (data[tail] & 0xff);
+                h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] hash = new byte[16];
+        putLongLittleEndian(hash, 0, h1);
+        putLongLittleEndian(hash, 8, h2);
+        return bytesToHexString(hash);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= MURMUR3_C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= MURMUR3_C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= MURMUR3_C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= MURMUR3_C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--) {
+            result = (result << 8) | (data[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+    private static void putLongLittleEndian(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
     private static String bytesToHexString(byte[] bytes) {
-        StringBuffer sb = new StringBuffer();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int value = bytes[i] & 0xff;
+            chars[i * 2] = HEX_DIGITS[value >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[value & 0x0f];
         }
-        return sb.toString();
+        return new String(chars);
     }
 }
@@ -0,0 +1,14 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+
+/**
+ * Indicates that request's headers exceed size supported by proxy, request can't be parsed without truncation
+ * and should be rejected with {@code 431 Request Header Fields Too Large}.
+ */
+public class RequestHeadersTooLargeException extends IOException {
+
+    public RequestHeadersTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,80 @@
+package com.danikula.videocache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers final urls of redirect chains (short links, CDN steering, etc.) for a while,
+ * so next opening of the same source goes directly to resolved url without extra round trips.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class ResolvedUrlCache {
+
+    static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int MAX_ENTRIES = 256;
+
+    private final long                     ttl;
+    private final Map<String, ResolvedUrl> resolvedUrls = new LinkedHashMap<String, ResolvedUrl>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedUrl> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    ResolvedUrlCache() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * @param ttl time in milliseconds resolved url is valid for, {@code 0} disables caching.
+     */
+    ResolvedUrlCache(long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Ttl must be non-negative number!");
+        }
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns resolved url for the key if it is known and not expired.
+     *
+     * @param key a source's key.
+     * @return a resolved url or {@code null}.
+     */
+    synchronized String get(String key) {
+        ResolvedUrl resolvedUrl = resolvedUrls.get(key);
+        if (resolvedUrl == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= resolvedUrl.expirationTime) {
+            resolvedUrls.remove(key);
+            return null;
+        }
+        return resolvedUrl.url;
+    }
+
+    synchronized void put(String key, String url) {
+        if (ttl > 0) {
+            resolvedUrls.put(key, new ResolvedUrl(url, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    synchronized void remove(String key) {
+        resolvedUrls.remove(key);
+    }
+
+    private static final class ResolvedUrl {
+
+        final String url;
+        final long   expirationTime;
+
+        ResolvedUrl(String url, long expirationTime) {
+            this.url = url;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.danikula.videocache;
+
+/**
+ * Indicates that {@link Source} can't be opened with requested offset, because origin's data has been changed since
+ * previous reading (validators don't match) or origin doesn't support partial requests.
+ * Data read before is not consistent with source any more and should be discarded.
+ */
+public class SourceChangedException extends ProxyCacheException {
+
+    public SourceChangedException(String message) {
+        super(message);
+    }
+}
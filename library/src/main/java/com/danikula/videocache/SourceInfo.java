@@ -10,11 +10,28 @@ public class SourceInfo {
     public final String url;
     public final long length;
     public final String mime;
+    public final String etag;
+    public final String lastModified;
 
     public SourceInfo(String url, long length, String mime) {
+        this(url, length, mime, null, null);
+    }
+
+    /**
+     * Creates source's info.
+     *
+     * @param url          an url data was fetched from (after all redirects).
+     * @param length       a length of source in bytes or negative value if length is unknown.
+     * @param mime         a mime type, may be {@code null}.
+     * @param etag         a value of origin's {@code ETag} header, may be {@code null}.
+     * @param lastModified a value of origin's {@code Last-Modified} header, may be {@code null}.
+     */
+    public SourceInfo(String url, long length, String mime, String etag, String lastModified) {
         this.url = url;
         this.length = length;
         this.mime = mime;
+        this.etag = etag;
+        this.lastModified = lastModified;
     }
 
     @Override
@@ -23,6 +40,8 @@ public class SourceInfo {
                 "url='" + url + '\'' +
                 ", length=" + length +
                 ", mime='" + mime + '\'' +
+                ", etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,636 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of fully cached files in cache directory.
+ * <p>
+ * Allows to check whether file is cached with single hash lookup instead of file system call.
+ * Index is shared between {@link FileCache} (that adds completed files) and {@link LruDiskUsage} (that removes evicted
+ * files), so there is single index per cache directory, see {@link #of(File)}.
+ * Until index is loaded (see {@link #load()}) all checks fall back to file system.
+ * <p>
+ * Index also knows which entries must not be evicted: entries leased by open {@link FileCache}s and entries
+ * pinned by user (e.g. favourites or offline items). Pins are persisted in cache directory.
+ * <p>
+ * Entries may have expiration time, expired entries are deleted by {@link #sweepExpired()} without listing
+ * cache directory. Expiration times are persisted lazily, while sweeping.
+ * <p>
+ * Index keeps time of the last access to entries for LRU ordering instead of modifying files' dates, so reading
+ * cached file doesn't cause any writing to storage. Access times are persisted rarely (see {@link #flushLazily()}),
+ * if they are lost, files' modification dates are used.
+ * <p>
+ * Entries may be grouped (e.g. segments of HLS stream under its master playlist), access to any entry of group
+ * is access to group's entry too, so group is evicted as a whole instead of scattered entries.
+ * <p>
+ * Index may have lower tier (see {@link CacheTiers}), then completed files evicted from its directory are moved
+ * to lower tier's directory instead of deleting.
+ */
+public class CacheIndex {
+
+    private static final Map<File, CacheIndex> INDEXES               = new HashMap<>();
+    private static final String                PINS_FILE_NAME        = ".pins";
+    private static final String                EXPIRATIONS_FILE_NAME = ".expirations";
+    private static final String                ACCESS_FILE_NAME      = ".access";
+    private static final String                GROUPS_FILE_NAME      = ".groups";
+    private static final long                  ACCESS_SAVE_INTERVAL  = 10 * 60 * 1000;
+
+    private final File                 directory;
+    private final Set<String>          completedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String, Integer> leases         = new HashMap<>();
+    private final Set<String>          pins           = new HashSet<>();
+    private final Map<String, Long>    expirations    = new HashMap<>();
+    private final Map<String, Long>    accessTimes    = new HashMap<>();
+    private final Map<String, String>  groups         = new HashMap<>();
+    private volatile boolean           loaded;
+    private boolean                    metadataLoaded;
+    private boolean                    expirationsChanged;
+    private boolean                    accessTimesChanged;
+    private boolean                    groupsChanged;
+    private long                       accessTimesSaveTime;
+    private CacheIndex                 lowerTier;
+    private DiskUsage                  lowerTierDiskUsage;
+
+    private CacheIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Checks whether file is service file of cache (e.g. persisted pins or frequencies), not a cached data.
+     */
+    static boolean isServiceFile(File file) {
+        String name = file.getName();
+        return name.startsWith(PINS_FILE_NAME) || name.startsWith(EXPIRATIONS_FILE_NAME) ||
+                name.startsWith(ACCESS_FILE_NAME) || name.startsWith(GROUPS_FILE_NAME) ||
+                name.startsWith(FrequencySketch.FILE_NAME);
+    }
+
+    /**
+     * Returns index for particular cache directory.
+     *
+     * @param directory a cache directory.
+     * @return an index, never {@code null}.
+     */
+    public static CacheIndex of(File directory) {
+        File key = directory.getAbsoluteFile();
+        synchronized (INDEXES) {
+            CacheIndex index = INDEXES.get(key);
+            if (index == null) {
+                index = new CacheIndex(key);
+                INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Drops in-memory index of cache directory, so the next {@link #of(File)} call creates index that reads
+     * persisted metadata again like after app's restart. Used by tests.
+     *
+     * @param directory a cache directory.
+     */
+    static void reset(File directory) {
+        synchronized (INDEXES) {
+            INDEXES.remove(directory.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * Loads index by scanning cache directory. Does nothing if index is already loaded.
+     */
+    public synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!FileCache.isTempFile(file) && !DownloadJournal.isJournalFile(file) && !isServiceFile(file)) {
+                    completedFiles.add(file.getName());
+                }
+            }
+        }
+        loadMetadata();
+        loaded = true;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Checks whether file is fully cached.
+     *
+     * @param file a cache file (not a temporary one).
+     * @return {@code true} if file is fully cached.
+     */
+    public boolean isCompleted(File file) {
+        return loaded ? completedFiles.contains(file.getName()) : file.exists();
+    }
+
+    /**
+     * Deletes fully cached file, e.g. if it is stale.
+     *
+     * @param file a cache file to be deleted.
+     * @return {@code true} if file is deleted.
+     */
+    public boolean delete(File file) {
+        boolean deleted = file.delete();
+        if (deleted) {
+            onDeleted(file);
+        }
+        return deleted;
+    }
+
+    /**
+     * Pins cache entry, so it is never evicted by disk usage strategy. Pin is persisted and kept until
+     * {@link #unpin(File)} is called, it doesn't matter whether file is cached already or not.
+     *
+     * @param file a cache file.
+     */
+    public synchronized void pin(File file) {
+        loadMetadata();
+        if (pins.add(FileCache.getEntryName(file))) {
+            savePins();
+        }
+    }
+
+    public synchronized void unpin(File file) {
+        loadMetadata();
+        if (pins.remove(FileCache.getEntryName(file))) {
+            savePins();
+        }
+    }
+
+    /**
+     * Checks whether cache entry is protected from eviction: it is pinned by user or used by open cache.
+     *
+     * @param file a cache file, completed or temporary one.
+     * @return {@code true} if file must not be evicted.
+     */
+    public synchronized boolean isPinned(File file) {
+        loadMetadata();
+        String entryName = FileCache.getEntryName(file);
+        return pins.contains(entryName) || leases.containsKey(entryName);
+    }
+
+    /**
+     * Protects cache entry from eviction while it is used. Every lease must be released with {@link #release(File)}.
+     */
+    synchronized void lease(File file) {
+        String entryName = FileCache.getEntryName(file);
+        Integer count = leases.get(entryName);
+        leases.put(entryName, count == null ? 1 : count + 1);
+    }
+
+    synchronized void release(File file) {
+        String entryName = FileCache.getEntryName(file);
+        Integer count = leases.get(entryName);
+        if (count == null || count <= 1) {
+            leases.remove(entryName);
+        } else {
+            leases.put(entryName, count - 1);
+        }
+    }
+
+    /**
+     * Sets time when cache entry expires. If entry already has expiration time, the earliest one is kept,
+     * so expiration is counted from the first setting.
+     *
+     * @param file           a cache file.
+     * @param expirationTime time in milliseconds since epoch.
+     */
+    public synchronized void expireAt(File file, long expirationTime) {
+        loadMetadata();
+        String entryName = FileCache.getEntryName(file);
+        Long current = expirations.get(entryName);
+        if (current == null || expirationTime < current) {
+            expirations.put(entryName, expirationTime);
+            expirationsChanged = true;
+        }
+    }
+
+    /**
+     * Checks whether cache entry is expired.
+     *
+     * @param file a cache file.
+     * @return {@code true} if entry has expiration time and it is passed.
+     */
+    public synchronized boolean isExpired(File file) {
+        loadMetadata();
+        Long expirationTime = expirations.get(FileCache.getEntryName(file));
+        return expirationTime != null && expirationTime <= System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes files of expired entries except pinned and used ones. Only entries having expiration time are checked,
+     * so sweeping is cheap and doesn't touch file system if there is nothing to delete. Changes are persisted
+     * with {@link #flushLazily()}.
+     *
+     * @return count of deleted entries.
+     */
+    public synchronized int sweepExpired() {
+        loadMetadata();
+        long now = System.currentTimeMillis();
+        int deletedCount = 0;
+        Iterator<Map.Entry<String, Long>> iterator = expirations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            File file = new File(directory, entry.getKey());
+            if (entry.getValue() > now || isPinned(file)) {
+                continue;
+            }
+            if (deleteEntry(file)) {
+                iterator.remove();
+                accessTimes.remove(entry.getKey());
+                if (groups.remove(entry.getKey()) != null) {
+                    groupsChanged = true;
+                }
+                expirationsChanged = true;
+                accessTimesChanged = true;
+                deletedCount++;
+            }
+        }
+        return deletedCount;
+    }
+
+    private boolean deleteEntry(File file) {
+        File tempFile = FileCache.getTempFile(file);
+        File[] entryFiles = {file, tempFile, DownloadJournal.getJournalFile(tempFile), TailCache.getTailFile(file)};
+        boolean deleted = true;
+        for (File entryFile : entryFiles) {
+            if (entryFile.exists() && !entryFile.delete()) {
+                HttpProxyCacheDebuger.printfError("Error deleting expired cache file " + entryFile);
+                deleted = false;
+            }
+        }
+        completedFiles.remove(file.getName());
+        return deleted;
+    }
+
+    /**
+     * Returns expiration time of cache entry.
+     *
+     * @param file a cache file.
+     * @return time in milliseconds since epoch or {@code null} if entry doesn't expire.
+     */
+    synchronized Long getExpirationTime(File file) {
+        loadMetadata();
+        return expirations.get(FileCache.getEntryName(file));
+    }
+
+    synchronized void setLowerTier(CacheIndex lowerTier, DiskUsage lowerTierDiskUsage) {
+        this.lowerTier = lowerTier;
+        this.lowerTierDiskUsage = lowerTierDiskUsage;
+    }
+
+    /**
+     * Evicts cache file exceeding cache limit. Completed file is moved to lower tier if index has it,
+     * otherwise (or if moving fails) file is deleted together with its journal.
+     *
+     * @param file a cache file, completed or temporary one.
+     * @return {@code true} if file is evicted.
+     */
+    boolean evict(File file) {
+        CacheIndex target;
+        DiskUsage targetDiskUsage;
+        synchronized (this) {
+            target = lowerTier;
+            targetDiskUsage = lowerTierDiskUsage;
+        }
+        if (target != null && !FileCache.isTempFile(file) && moveTo(file, target, targetDiskUsage)) {
+            return true;
+        }
+        boolean deleted = file.delete();
+        if (deleted) {
+            File journal = DownloadJournal.getJournalFile(file);
+            if (journal.exists() && !journal.delete()) {
+                HttpProxyCacheDebuger.printfError("Error deleting journal " + journal);
+            }
+            onDeleted(file);
+            HttpProxyCacheDebuger.printfLog("Cache file " + file + " is deleted because it exceeds cache limit");
+        }
+        return deleted;
+    }
+
+    private boolean moveTo(File file, CacheIndex target, DiskUsage targetDiskUsage) {
+        File targetFile = new File(target.directory, file.getName());
+        Long expirationTime = getExpirationTime(file);
+        File groupFile = getGroup(file);
+        try {
+            Files.move(file, targetFile);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error moving " + file + " to lower cache tier", e);
+            return false;
+        }
+        onDeleted(file);
+        target.onCompleted(targetFile);
+        if (expirationTime != null) {
+            target.expireAt(targetFile, expirationTime);
+        }
+        if (groupFile != null) {
+            target.setGroup(targetFile, new File(target.directory, groupFile.getName()));
+        }
+        try {
+            targetDiskUsage.touch(targetFile);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error touching file " + targetFile, e);
+        }
+        HttpProxyCacheDebuger.printfLog("Cache file " + file + " is moved to lower tier " + target.directory);
+        return true;
+    }
+
+    /**
+     * Adds cache entry to group, so entry and group's entry are evicted together. Group is persisted lazily,
+     * see {@link #flushLazily()}.
+     *
+     * @param file      a cache file.
+     * @param groupFile a cache file of group's entry (e.g. HLS master playlist), may be not cached yet.
+     */
+    public synchronized void setGroup(File file, File groupFile) {
+        loadMetadata();
+        String entryName = FileCache.getEntryName(file);
+        String groupName = FileCache.getEntryName(groupFile);
+        if (!entryName.equals(groupName) && !groupName.equals(groups.put(entryName, groupName))) {
+            groupsChanged = true;
+        }
+    }
+
+    /**
+     * Returns group of cache entry.
+     *
+     * @param file a cache file.
+     * @return a cache file of group's entry or {@code null} if entry is not grouped.
+     */
+    public synchronized File getGroup(File file) {
+        loadMetadata();
+        String groupName = groups.get(FileCache.getEntryName(file));
+        return groupName == null ? null : new File(directory, groupName);
+    }
+
+    /**
+     * Records access to cache entry and its group.
+     *
+     * @param file a cache file, completed or temporary one.
+     * @param time time of access in milliseconds since epoch.
+     */
+    synchronized void onAccessed(File file, long time) {
+        loadMetadata();
+        String entryName = FileCache.getEntryName(file);
+        accessTimes.put(entryName, time);
+        String groupName = groups.get(entryName);
+        if (groupName != null) {
+            Long groupTime = accessTimes.get(groupName);
+            accessTimes.put(groupName, groupTime == null ? time : Math.max(groupTime, time));
+        }
+        accessTimesChanged = true;
+    }
+
+    /**
+     * Returns time of the last access to cache entry, file's modification date is used if entry was never accessed.
+     *
+     * @param file a cache file, completed or temporary one.
+     * @return time in milliseconds since epoch.
+     */
+    synchronized long getAccessTime(File file) {
+        loadMetadata();
+        Long accessTime = accessTimes.get(FileCache.getEntryName(file));
+        return accessTime != null ? accessTime : file.lastModified();
+    }
+
+    /**
+     * Returns time of the last access to group of cache entry, it is time of access to entry itself if entry
+     * is not grouped.
+     *
+     * @param file a cache file, completed or temporary one.
+     * @return time in milliseconds since epoch.
+     */
+    synchronized long getGroupAccessTime(File file) {
+        loadMetadata();
+        String groupName = groups.get(FileCache.getEntryName(file));
+        if (groupName != null) {
+            Long groupTime = accessTimes.get(groupName);
+            if (groupTime != null) {
+                return groupTime;
+            }
+        }
+        return getAccessTime(file);
+    }
+
+    private void loadMetadata() {
+        if (metadataLoaded) {
+            return;
+        }
+        metadataLoaded = true;
+        pins.addAll(readLines(new File(directory, PINS_FILE_NAME)));
+        loadTimes(EXPIRATIONS_FILE_NAME, expirations);
+        loadTimes(ACCESS_FILE_NAME, accessTimes);
+        for (String line : readLines(new File(directory, GROUPS_FILE_NAME))) {
+            int separatorIndex = line.indexOf(' ');
+            if (separatorIndex > 0) {
+                groups.put(line.substring(separatorIndex + 1), line.substring(0, separatorIndex));
+            } else {
+                HttpProxyCacheDebuger.printfWarning("Malformed line in " + GROUPS_FILE_NAME + ": " + line);
+            }
+        }
+        accessTimesSaveTime = System.currentTimeMillis();
+    }
+
+    private void loadTimes(String fileName, Map<String, Long> times) {
+        for (String line : readLines(new File(directory, fileName))) {
+            int separatorIndex = line.indexOf(' ');
+            try {
+                long time = Long.parseLong(line.substring(0, separatorIndex));
+                times.put(line.substring(separatorIndex + 1), time);
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                HttpProxyCacheDebuger.printfWarning("Malformed line in " + fileName + ": " + line);
+            }
+        }
+    }
+
+    private boolean saveTimes(String fileName, Map<String, Long> times) {
+        List<String> lines = new ArrayList<>(times.size());
+        for (Map.Entry<String, Long> entry : times.entrySet()) {
+            lines.add(entry.getValue() + " " + entry.getKey());
+        }
+        return writeLines(new File(directory, fileName), lines);
+    }
+
+    private void savePins() {
+        writeLines(new File(directory, PINS_FILE_NAME), pins);
+    }
+
+    private void saveExpirations() {
+        if (saveTimes(EXPIRATIONS_FILE_NAME, expirations)) {
+            expirationsChanged = false;
+        }
+    }
+
+    private void saveGroups() {
+        List<String> lines = new ArrayList<>(groups.size());
+        for (Map.Entry<String, String> entry : groups.entrySet()) {
+            lines.add(entry.getValue() + " " + entry.getKey());
+        }
+        if (writeLines(new File(directory, GROUPS_FILE_NAME), lines)) {
+            groupsChanged = false;
+        }
+    }
+
+    private void saveAccessTimes() {
+        if (saveTimes(ACCESS_FILE_NAME, accessTimes)) {
+            accessTimesChanged = false;
+            accessTimesSaveTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Persists changed expiration times and groups. Access times are persisted not often than once per 10 minutes,
+     * so actively used cache doesn't cause writing to storage.
+     */
+    public synchronized void flushLazily() {
+        if (expirationsChanged) {
+            saveExpirations();
+        }
+        if (groupsChanged) {
+            saveGroups();
+        }
+        if (accessTimesChanged && System.currentTimeMillis() - accessTimesSaveTime >= ACCESS_SAVE_INTERVAL) {
+            saveAccessTimes();
+        }
+    }
+
+    /**
+     * Persists all changed metadata, e.g. before shutdown.
+     */
+    public synchronized void flush() {
+        if (expirationsChanged) {
+            saveExpirations();
+        }
+        if (groupsChanged) {
+            saveGroups();
+        }
+        if (accessTimesChanged) {
+            saveAccessTimes();
+        }
+    }
+
+    private List<String> readLines(File file) {
+        List<String> lines = new ArrayList<>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error reading cache metadata from " + file, e);
+        } finally {
+            close(reader);
+        }
+        return lines;
+    }
+
+    private boolean writeLines(File file, Collection<String> lines) {
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        Writer writer = null;
+        try {
+            Files.makeDir(directory);
+            writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Error renaming " + tempFile + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error saving cache metadata to " + file, e);
+            return false;
+        } finally {
+            close(writer);
+        }
+    }
+
+    private void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error closing resource", e);
+            }
+        }
+    }
+
+    void onCompleted(File file) {
+        completedFiles.add(file.getName());
+    }
+
+    void onDeleted(File file) {
+        completedFiles.remove(file.getName());
+        synchronized (this) {
+            String entryName = FileCache.getEntryName(file);
+            if (expirations.remove(entryName) != null) {
+                expirationsChanged = true;
+            }
+            if (accessTimes.remove(entryName) != null) {
+                accessTimesChanged = true;
+            }
+            if (groups.remove(entryName) != null) {
+                groupsChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Drops files that are absent in actual directory listing, e.g. deleted by user or system,
+     * and groups of entries having no files.
+     *
+     * @param files actual content of cache directory.
+     */
+    void sync(List<File> files) {
+        if (!loaded) {
+            return;
+        }
+        Set<String> actualFiles = new HashSet<>();
+        Set<String> actualEntries = new HashSet<>();
+        for (File file : files) {
+            actualFiles.add(file.getName());
+            actualEntries.add(FileCache.getEntryName(file));
+        }
+        completedFiles.retainAll(actualFiles);
+        synchronized (this) {
+            if (metadataLoaded && groups.keySet().retainAll(actualEntries)) {
+                groupsChanged = true;
+            }
+        }
+    }
+}
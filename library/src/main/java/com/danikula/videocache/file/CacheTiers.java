@@ -0,0 +1,226 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Cache storage consisting of small fast tier (e.g. internal storage) and optional large bulk tier
+ * (e.g. external storage), every tier is a cache directory with own {@link DiskUsage}.
+ * <p>
+ * Data is always cached to fast tier. Completed files evicted from fast tier are moved to bulk tier instead of
+ * deleting (see {@link CacheIndex#evict(File)}), so fast tier keeps recently and frequently used files and bulk tier
+ * keeps the rest. File used from bulk tier {@value #PROMOTION_USES} times is copied back to fast tier in background.
+ * Its copy in bulk tier is not deleted (file may be opened by player) and is evicted from bulk tier as usual.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class CacheTiers {
+
+    private static final int PROMOTION_USES    = 2;
+    private static final int MAX_TRACKED_FILES = 1024;
+
+    private final File                 fastDirectory;
+    private final DiskUsage            fastDiskUsage;
+    private final File                 bulkDirectory;
+    private final DiskUsage            bulkDiskUsage;
+    private final List<CacheIndex>     indexes = new ArrayList<>();
+    private final Map<String, Integer> bulkUses = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private final ExecutorService promotionExecutor;
+
+    public CacheTiers(File fastDirectory, DiskUsage fastDiskUsage) {
+        this(fastDirectory, fastDiskUsage, null, null);
+    }
+
+    /**
+     * @param fastDirectory a directory of fast tier.
+     * @param fastDiskUsage a disk usage of fast tier.
+     * @param bulkDirectory a directory of bulk tier or {@code null} if there is only fast tier.
+     * @param bulkDiskUsage a disk usage of bulk tier or {@code null} if there is only fast tier.
+     */
+    public CacheTiers(File fastDirectory, DiskUsage fastDiskUsage, File bulkDirectory, DiskUsage bulkDiskUsage) {
+        if ((bulkDirectory == null) != (bulkDiskUsage == null)) {
+            throw new IllegalArgumentException("Both directory and disk usage of bulk tier must be set!");
+        }
+        if (bulkDirectory != null && bulkDirectory.getAbsoluteFile().equals(fastDirectory.getAbsoluteFile())) {
+            throw new IllegalArgumentException("Tiers must use different directories!");
+        }
+        this.fastDirectory = fastDirectory;
+        this.fastDiskUsage = fastDiskUsage;
+        this.bulkDirectory = bulkDirectory;
+        this.bulkDiskUsage = bulkDiskUsage;
+        CacheIndex fastIndex = CacheIndex.of(fastDirectory);
+        indexes.add(fastIndex);
+        if (bulkDirectory != null) {
+            CacheIndex bulkIndex = CacheIndex.of(bulkDirectory);
+            indexes.add(bulkIndex);
+            fastIndex.setLowerTier(bulkIndex, bulkDiskUsage);
+            this.promotionExecutor = Executors.newSingleThreadExecutor();
+        } else {
+            fastIndex.setLowerTier(null, null);
+            this.promotionExecutor = null;
+        }
+    }
+
+    /**
+     * Returns indexes of all tiers, the fastest one is the first.
+     */
+    public List<CacheIndex> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    /**
+     * Returns fully cached file for cache entry from the fastest tier having it.
+     *
+     * @param file a cache file in fast tier.
+     * @return completed file in one of tiers or {@code null} if entry is not fully cached.
+     */
+    public File findCompleted(File file) {
+        if (CacheIndex.of(fastDirectory).isCompleted(file)) {
+            return file;
+        }
+        if (bulkDirectory != null) {
+            File bulkFile = new File(bulkDirectory, file.getName());
+            if (CacheIndex.of(bulkDirectory).isCompleted(bulkFile)) {
+                return bulkFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes fully cached files of cache entry from all tiers, e.g. if entry is stale.
+     *
+     * @param file a cache file in fast tier.
+     */
+    public void delete(File file) {
+        CacheIndex.of(fastDirectory).delete(file);
+        if (bulkDirectory != null) {
+            CacheIndex.of(bulkDirectory).delete(new File(bulkDirectory, file.getName()));
+        }
+    }
+
+    /**
+     * Returns disk usage of tier file belongs to.
+     *
+     * @param file a cache file from any tier.
+     * @return a disk usage, never {@code null}.
+     */
+    public DiskUsage getDiskUsage(File file) {
+        return isInBulkTier(file) ? bulkDiskUsage : fastDiskUsage;
+    }
+
+    /**
+     * Registers access to cache entry by client, see {@link LruDiskUsage#access(File)}. Entry is just touched
+     * if its disk usage doesn't distinguish accesses.
+     *
+     * @param file a cache file from any tier, completed or temporary one.
+     */
+    public void onAccessed(File file) {
+        DiskUsage diskUsage = getDiskUsage(file);
+        try {
+            if (diskUsage instanceof LruDiskUsage) {
+                ((LruDiskUsage) diskUsage).access(file);
+            } else {
+                diskUsage.touch(file);
+            }
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error touching file " + file, e);
+        }
+    }
+
+    /**
+     * Registers usage of completed cache file. File used from bulk tier too often is promoted to fast tier
+     * in background.
+     *
+     * @param file a completed cache file from any tier.
+     */
+    public void onUsed(File file) {
+        if (!isInBulkTier(file)) {
+            return;
+        }
+        String name = file.getName();
+        synchronized (bulkUses) {
+            Integer uses = bulkUses.get(name);
+            int count = uses == null ? 1 : uses + 1;
+            if (count < PROMOTION_USES) {
+                bulkUses.put(name, count);
+                return;
+            }
+            bulkUses.remove(name);
+        }
+        try {
+            promotionExecutor.submit(new PromoteRunnable(file));
+        } catch (RejectedExecutionException e) {
+            HttpProxyCacheDebuger.printfWarning("File " + file + " is not promoted, tiers are shut down");
+        }
+    }
+
+    /**
+     * Stops promoting files, promotion in progress is interrupted.
+     */
+    public void shutdown() {
+        if (promotionExecutor != null) {
+            promotionExecutor.shutdownNow();
+        }
+    }
+
+    private boolean isInBulkTier(File file) {
+        return bulkDirectory != null && bulkDirectory.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile());
+    }
+
+    private void promote(File bulkFile) throws IOException {
+        CacheIndex fastIndex = CacheIndex.of(fastDirectory);
+        CacheIndex bulkIndex = CacheIndex.of(bulkDirectory);
+        File fastFile = new File(fastDirectory, bulkFile.getName());
+        if (fastIndex.isCompleted(fastFile) || !bulkIndex.isCompleted(bulkFile)) {
+            return;
+        }
+        fastIndex.lease(fastFile); // protects partially copied file from trimming
+        try {
+            Files.copy(bulkFile, fastFile);
+        } finally {
+            fastIndex.release(fastFile);
+        }
+        fastIndex.onCompleted(fastFile);
+        Long expirationTime = bulkIndex.getExpirationTime(bulkFile);
+        if (expirationTime != null) {
+            fastIndex.expireAt(fastFile, expirationTime);
+        }
+        fastDiskUsage.touch(fastFile);
+        HttpProxyCacheDebuger.printfLog("Cache file " + bulkFile + " is promoted to fast tier " + fastDirectory);
+    }
+
+    private final class PromoteRunnable implements Runnable {
+
+        private final File file;
+
+        PromoteRunnable(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            try {
+                promote(file);
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error promoting " + file + " to fast tier", e);
+            }
+        }
+    }
+}
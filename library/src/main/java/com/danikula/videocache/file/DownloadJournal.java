@@ -0,0 +1,278 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only sidecar journal of not completed cache file.
+ * <p>
+ * Journal starts with header containing origin's validator (ETag or Last-Modified) data was downloaded for,
+ * followed by record for every portion of data written to cache file: offset, length and checksum of data.
+ * Every record is protected by own checksum, so torn record written while process was killed is ignored.
+ * Data is written before its record, so journal never claims data that is not written.
+ * <p>
+ * Data written but not forced to storage device may be lost in any order on power loss, not only in the end
+ * of file. So barrier record (record with zero length) is appended once data of all preceding records is synced,
+ * see {@link #sync(long)}. On recovery committed length is calculated from contiguous records, and data
+ * of every record following the last barrier is verified against its checksum.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class DownloadJournal {
+
+    private static final String  JOURNAL_POSTFIX      = ".journal";
+    private static final int     MAGIC                = 0x56434a32; // "VCJ2"
+    private static final int     CHUNK_RECORD_SIZE    = 8 + 4 + 4 + 4;
+    private static final int     TRUSTED_CHUNK_SIZE   = 256 * 1024;
+    private static final int     VERIFY_BUFFER_SIZE   = 64 * 1024;
+    private static final int     MAX_VALIDATOR_LENGTH = 1024;
+    private static final Charset UTF_8                = Charset.forName("UTF-8");
+
+    private final File             file;
+    private final byte[]           chunkRecord = new byte[CHUNK_RECORD_SIZE];
+    private final CRC32            crc32       = new CRC32();
+    private       byte[]           verifyBuffer;
+    private       RandomAccessFile journalFile;
+    private       String           validator;
+
+    DownloadJournal(File dataFile) {
+        this.file = getJournalFile(dataFile);
+    }
+
+    static File getJournalFile(File dataFile) {
+        return new File(dataFile.getParentFile(), dataFile.getName() + JOURNAL_POSTFIX);
+    }
+
+    static boolean isJournalFile(File file) {
+        return file.getName().endsWith(JOURNAL_POSTFIX);
+    }
+
+    boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Returns origin's validator data in cache file belongs to.
+     *
+     * @return validator or {@code null} if it is unknown.
+     */
+    String getValidator() {
+        return validator;
+    }
+
+    /**
+     * Restores journal's state and calculates count of verified bytes in data file.
+     * Broken or not verified records are dropped from journal.
+     *
+     * @param dataFile a cache file this journal belongs to.
+     * @return count of bytes in the beginning of data file that can be trusted.
+     * @throws IOException if error occurs while reading journal or data file.
+     */
+    long recover(RandomAccessFile dataFile) throws IOException {
+        byte[] content = readContent();
+        int position = readHeader(content);
+        if (position < 0) {
+            reset(null);
+            return 0;
+        }
+        long dataLength = dataFile.length();
+        long committedLength = 0;
+        List<Chunk> unsynced = new ArrayList<>();
+        while (content.length - position >= CHUNK_RECORD_SIZE) {
+            Chunk chunk = readChunk(content, position);
+            if (chunk == null || chunk.offset != committedLength || chunk.offset + chunk.length > dataLength) {
+                break;
+            }
+            if (chunk.length == 0) {
+                unsynced.clear();
+            } else {
+                unsynced.add(chunk);
+            }
+            committedLength += chunk.length;
+            position += CHUNK_RECORD_SIZE;
+        }
+        for (Chunk chunk : unsynced) {
+            if (!isDataValid(chunk, dataFile)) {
+                committedLength = chunk.offset;
+                position = chunk.position;
+                break;
+            }
+        }
+        RandomAccessFile journal = open();
+        journal.setLength(position);
+        journal.seek(position);
+        return committedLength;
+    }
+
+    /**
+     * Starts journal from scratch for empty data file. Journal is forced to storage device, so data file extended
+     * by preallocation after that is never left without journal.
+     *
+     * @param validator an origin's validator, may be {@code null}.
+     * @throws IOException if error occurs while writing journal.
+     */
+    void reset(String validator) throws IOException {
+        byte[] validatorBytes = validator == null ? new byte[0] : validator.getBytes(UTF_8);
+        if (validatorBytes.length > MAX_VALIDATOR_LENGTH) {
+            validator = null;
+            validatorBytes = new byte[0];
+        }
+        ByteBuffer header = ByteBuffer.allocate(4 + 2 + validatorBytes.length + 4);
+        header.putInt(MAGIC);
+        header.putShort((short) (validator == null ? -1 : validatorBytes.length));
+        header.put(validatorBytes);
+        header.putInt(checksum(header.array(), 0, header.position()));
+
+        RandomAccessFile journal = open();
+        journal.setLength(0);
+        journal.seek(0);
+        journal.write(header.array());
+        journal.getFD().sync();
+        this.validator = validator;
+    }
+
+    /**
+     * Records portion of data that has been just written to data file.
+     */
+    void appendChunk(long offset, byte[] data, int length) throws IOException {
+        appendRecord(offset, length, checksum(data, 0, length));
+    }
+
+    /**
+     * Records data written to data file before journaling, such data is trusted as is without reading it.
+     * Records are not verifiable, so {@link #sync(long)} must be called right after data file is synced.
+     *
+     * @param length a count of bytes in the beginning of data file.
+     */
+    void appendTrustedData(long length) throws IOException {
+        long offset = 0;
+        while (offset < length) {
+            int chunkLength = (int) Math.min(TRUSTED_CHUNK_SIZE, length - offset);
+            appendRecord(offset, chunkLength, 0);
+            offset += chunkLength;
+        }
+    }
+
+    /**
+     * Appends barrier and forces journal to storage device. Must be called only when data of all recorded chunks
+     * is forced to storage device, so these chunks are not verified on recovery anymore.
+     *
+     * @param length a count of recorded bytes.
+     */
+    void sync(long length) throws IOException {
+        appendRecord(length, 0, 0);
+        open().getFD().sync();
+    }
+
+    void close() throws IOException {
+        if (journalFile != null) {
+            journalFile.close();
+            journalFile = null;
+        }
+    }
+
+    void delete() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Error deleting journal " + file);
+        }
+    }
+
+    private void appendRecord(long offset, int length, int dataChecksum) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(chunkRecord);
+        record.putLong(offset);
+        record.putInt(length);
+        record.putInt(dataChecksum);
+        record.putInt(checksum(chunkRecord, 0, CHUNK_RECORD_SIZE - 4));
+        open().write(chunkRecord);
+    }
+
+    private byte[] readContent() throws IOException {
+        RandomAccessFile journal = open();
+        byte[] content = new byte[(int) journal.length()];
+        journal.seek(0);
+        journal.readFully(content);
+        return content;
+    }
+
+    private int readHeader(byte[] content) {
+        if (content.length < 4 + 2 + 4) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        int magic = buffer.getInt();
+        int validatorLength = buffer.getShort();
+        int validatorBytesCount = Math.max(0, validatorLength);
+        if (magic != MAGIC || validatorLength < -1 || buffer.remaining() < validatorBytesCount + 4) {
+            return -1;
+        }
+        int headerLength = 4 + 2 + validatorBytesCount;
+        buffer.position(headerLength);
+        if (buffer.getInt() != checksum(content, 0, headerLength)) {
+            return -1;
+        }
+        validator = validatorLength < 0 ? null : new String(content, 4 + 2, validatorLength, UTF_8);
+        return headerLength + 4;
+    }
+
+    private Chunk readChunk(byte[] content, int position) {
+        ByteBuffer buffer = ByteBuffer.wrap(content, position, CHUNK_RECORD_SIZE);
+        long offset = buffer.getLong();
+        int length = buffer.getInt();
+        int dataChecksum = buffer.getInt();
+        int recordChecksum = buffer.getInt();
+        boolean valid = length >= 0 && recordChecksum == checksum(content, position, CHUNK_RECORD_SIZE - 4);
+        return valid ? new Chunk(offset, length, dataChecksum, position) : null;
+    }
+
+    private boolean isDataValid(Chunk chunk, RandomAccessFile dataFile) throws IOException {
+        if (verifyBuffer == null) {
+            verifyBuffer = new byte[VERIFY_BUFFER_SIZE];
+        }
+        crc32.reset();
+        dataFile.seek(chunk.offset);
+        int remaining = chunk.length;
+        while (remaining > 0) {
+            int readBytes = Math.min(remaining, verifyBuffer.length);
+            dataFile.readFully(verifyBuffer, 0, readBytes);
+            crc32.update(verifyBuffer, 0, readBytes);
+            remaining -= readBytes;
+        }
+        return (int) crc32.getValue() == chunk.checksum;
+    }
+
+    private int checksum(byte[] data, int offset, int length) {
+        crc32.reset();
+        crc32.update(data, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (journalFile == null) {
+            journalFile = new RandomAccessFile(file, "rw");
+            journalFile.seek(journalFile.length());
+        }
+        return journalFile;
+    }
+
+    private static final class Chunk {
+
+        final long offset;
+        final int  length;
+        final int  checksum;
+        final int  position;
+
+        Chunk(long offset, int length, int checksum, int position) {
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.position = position;
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package com.danikula.videocache.file;
 
+import com.danikula.videocache.BufferPool;
 import com.danikula.videocache.Cache;
+import com.danikula.videocache.HttpProxyCacheDebuger;
 import com.danikula.videocache.ProxyCacheException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link Cache} that uses file for storing data.
@@ -14,69 +20,372 @@ import java.io.RandomAccessFile;
  */
 public class FileCache implements Cache {
 
-    private static final String TEMP_POSTFIX = ".download";
+    private static final String TEMP_POSTFIX                 = ".download";
+    private static final int    TOUCH_INTERVAL_BYTES = 8 * 1024 * 1024;
+    private static final ScheduledExecutorService FLUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Cache flusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private final DiskUsage        diskUsage;
+    private final FlushPolicy      flushPolicy;
+    private final boolean          preallocate;
+    private final BufferPool       bufferPool;
+    private final CacheIndex       index;
     public        File             file;
     private       RandomAccessFile dataFile;
+    private       long             flushedLength;
+    private       long             filePointer;
+    private       byte[]           writeBuffer;
+    private       int              buffered;
+    private       long             firstBufferedTime;
+    private       boolean          flushScheduled;
+    private       DownloadJournal  journal;
+    private       boolean          leased;
+    private       long             untouchedLength;
 
     public FileCache(File file) throws ProxyCacheException {
         this(file, new UnlimitedDiskUsage());
     }
 
     public FileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        this(file, diskUsage, FlushPolicy.newWriteThrough());
+    }
+
+    public FileCache(File file, DiskUsage diskUsage, FlushPolicy flushPolicy) throws ProxyCacheException {
+        this(file, diskUsage, flushPolicy, false);
+    }
+
+    /**
+     * Creates file cache.
+     *
+     * @param file        a file for caching data.
+     * @param diskUsage   a disk usage strategy.
+     * @param flushPolicy a policy of flushing appended data.
+     * @param preallocate {@code true} if file should be allocated with full source's length once it is known,
+     *                    it reduces fragmentation of file system. Requires journal, so it is enabled regardless of policy.
+     * @throws ProxyCacheException if file can't be used for caching.
+     */
+    public FileCache(File file, DiskUsage diskUsage, FlushPolicy flushPolicy, boolean preallocate) throws ProxyCacheException {
+        this(file, diskUsage, flushPolicy, preallocate, BufferPool.getDefault());
+    }
+
+    /**
+     * Creates file cache.
+     *
+     * @param file        a file for caching data.
+     * @param diskUsage   a disk usage strategy.
+     * @param flushPolicy a policy of flushing appended data.
+     * @param preallocate {@code true} if file should be allocated with full source's length once it is known.
+     * @param bufferPool  a pool staging buffer is taken from while there is data not flushed to file.
+     * @throws ProxyCacheException if file can't be used for caching.
+     */
+    public FileCache(File file, DiskUsage diskUsage, FlushPolicy flushPolicy, boolean preallocate, BufferPool bufferPool)
+            throws ProxyCacheException {
         try {
-            if (diskUsage == null) {
+            if (diskUsage == null || flushPolicy == null || bufferPool == null) {
                 throw new NullPointerException();
             }
             this.diskUsage = diskUsage;
+            this.flushPolicy = flushPolicy;
+            this.preallocate = preallocate;
+            this.bufferPool = bufferPool;
+            this.index = CacheIndex.of(file.getParentFile());
             File directory = file.getParentFile();
             Files.makeDir(directory);
             boolean completed = file.exists();
-            this.file = completed ? file : new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+            this.file = completed ? file : getTempFile(file);
             this.dataFile = new RandomAccessFile(this.file, completed ? "r" : "rw");
+            this.flushedLength = completed ? dataFile.length() : recoverCommittedLength();
+            this.index.lease(this.file);
+            this.leased = true;
         } catch (IOException e) {
             throw new ProxyCacheException("Error using file " + file + " as disc cache", e);
         }
     }
 
-    @Override
-    public synchronized long available() throws ProxyCacheException {
+    /**
+     * Restores state of not completed cache. If there is a journal, data is trusted only up to the last verified
+     * portion and not verified tail is truncated. Otherwise the whole file is trusted as it was before journaling,
+     * it is recorded in new journal without reading data. Preallocated file without journal is never trusted:
+     * zeros of reserved space can't be told apart from data, so such file is cached from scratch.
+     */
+    private long recoverCommittedLength() throws IOException {
+        long physicalLength = dataFile.length();
+        DownloadJournal existedJournal = new DownloadJournal(file);
+        boolean journaled = existedJournal.exists();
+        if (!journaled && !flushPolicy.journal && !preallocate) {
+            return physicalLength;
+        }
+        journal = existedJournal;
+        if (!journaled) {
+            journal.reset(null);
+            if (preallocate && physicalLength > 0) {
+                HttpProxyCacheDebuger.printfWarning("Cache file " + file + " has no journal and is cached from scratch");
+                dataFile.setLength(0);
+                return 0;
+            }
+            journalExistingData(physicalLength);
+            return physicalLength;
+        }
+        long committedLength = journal.recover(dataFile);
+        if (committedLength < physicalLength && !preallocate) {
+            dataFile.setLength(committedLength);
+        }
+        filePointer = -1;
+        if (committedLength < physicalLength) {
+            HttpProxyCacheDebuger.printfLog("Cache file " + file + " is recovered: " + committedLength + " of " +
+                    physicalLength + " bytes are verified");
+        }
+        return committedLength;
+    }
+
+    private void journalExistingData(long length) throws IOException {
+        journal.appendTrustedData(length);
+        dataFile.getFD().sync();
+        journal.sync(length);
+    }
+
+    /**
+     * Returns origin's validator (ETag or Last-Modified) cached data belongs to.
+     *
+     * @return a validator or {@code null} if it is unknown or cache is not journaled.
+     */
+    public synchronized String getOriginValidator() {
+        return journal == null ? null : journal.getValidator();
+    }
+
+    /**
+     * Remembers origin's validator for data to be cached. Validator can be set only while cache is empty,
+     * otherwise it is ignored.
+     *
+     * @param validator an origin's validator, may be {@code null}.
+     * @throws ProxyCacheException if error occurs while writing journal.
+     */
+    public synchronized void setOriginValidator(String validator) throws ProxyCacheException {
+        if (journal == null || isCompleted() || available() > 0) {
+            return;
+        }
         try {
-            return (int) dataFile.length();
+            journal.reset(validator);
         } catch (IOException e) {
-            throw new ProxyCacheException("Error reading length of file " + file, e);
+            throw new ProxyCacheException("Error writing journal of file " + file, e);
         }
     }
 
+    /**
+     * Sets time when cached data expires, see {@link CacheIndex#expireAt(File, long)}.
+     *
+     * @param expirationTime time in milliseconds since epoch.
+     */
+    public void expireAt(long expirationTime) {
+        index.expireAt(file, expirationTime);
+    }
+
+    /**
+     * Returns count of cached bytes including data staged in memory and not flushed to file yet.
+     * Doesn't touch file system.
+     */
+    @Override
+    public synchronized long available() throws ProxyCacheException {
+        return flushedLength + buffered;
+    }
+
     @Override
     public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        if (offset >= flushedLength) {
+            return readStaged(buffer, offset, length);
+        }
         try {
-            dataFile.seek(offset);
-            return dataFile.read(buffer, 0, length);
+            int fileLength = (int) Math.min(length, flushedLength - offset);
+            seek(offset);
+            int readBytes = dataFile.read(buffer, 0, fileLength);
+            filePointer = readBytes > 0 ? offset + readBytes : -1;
+            return readBytes;
         } catch (IOException e) {
             String format = "Error reading %d bytes with offset %d from file[%d bytes] to buffer[%d bytes]";
             throw new ProxyCacheException(String.format(format, length, offset, available(), buffer.length), e);
         }
     }
 
+    private int readStaged(byte[] buffer, long offset, int length) {
+        int stagedOffset = (int) (offset - flushedLength);
+        if (stagedOffset >= buffered) {
+            return -1;
+        }
+        int readBytes = Math.min(length, buffered - stagedOffset);
+        System.arraycopy(writeBuffer, stagedOffset, buffer, 0, readBytes);
+        return readBytes;
+    }
+
     @Override
     public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+        if (isCompleted()) {
+            throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
+        }
         try {
-            if (isCompleted()) {
-                throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
+            if (flushPolicy.isWriteThrough()) {
+                write(data, length);
+                return;
+            }
+            if (buffered + length > flushPolicy.bufferSize) {
+                flush();
+            }
+            if (length >= flushPolicy.bufferSize) {
+                write(data, length);
+                return;
+            }
+            stage(data, length);
+            boolean full = buffered == flushPolicy.bufferSize;
+            if (full || System.currentTimeMillis() - firstBufferedTime >= flushPolicy.maxDelay) {
+                flush();
             }
-            dataFile.seek(available());
-            dataFile.write(data, 0, length);
         } catch (IOException e) {
             String format = "Error writing %d bytes to %s from buffer with size %d";
             throw new ProxyCacheException(String.format(format, length, dataFile, data.length), e);
         }
     }
 
+    private void stage(byte[] data, int length) {
+        if (writeBuffer == null) {
+            writeBuffer = bufferPool.acquire(flushPolicy.bufferSize);
+            if (writeBuffer.length < flushPolicy.bufferSize) {
+                bufferPool.release(writeBuffer); // pool's buffers are too small for this policy
+                writeBuffer = new byte[flushPolicy.bufferSize];
+            }
+        }
+        if (buffered == 0) {
+            firstBufferedTime = System.currentTimeMillis();
+            scheduleFlush(flushPolicy.maxDelay);
+        }
+        System.arraycopy(data, 0, writeBuffer, buffered, length);
+        buffered += length;
+    }
+
+    /**
+     * Schedules check of staged data's age, so data is flushed in time even if source stalls
+     * and nothing is appended any more.
+     */
+    private void scheduleFlush(long delay) {
+        if (flushScheduled || flushPolicy.maxDelay == 0) {
+            return;
+        }
+        flushScheduled = true;
+        FLUSH_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushIfDue();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void flushIfDue() {
+        flushScheduled = false;
+        if (buffered == 0 || isCompleted()) {
+            return;
+        }
+        long delay = firstBufferedTime + flushPolicy.maxDelay - System.currentTimeMillis();
+        if (delay > 0) {
+            scheduleFlush(delay); // data staged after the last flush is not due yet
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfWarning("Error flushing file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void flush() throws IOException {
+        if (buffered > 0) {
+            write(writeBuffer, buffered);
+            buffered = 0;
+        }
+        releaseWriteBuffer();
+    }
+
+    private void releaseWriteBuffer() {
+        if (writeBuffer != null) {
+            bufferPool.release(writeBuffer);
+            writeBuffer = null;
+        }
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        seek(flushedLength);
+        dataFile.write(data, 0, length);
+        boolean sync = flushPolicy.sync == FlushPolicy.Sync.EVERY_FLUSH;
+        if (sync) {
+            dataFile.getFD().sync();
+        }
+        if (journal != null) {
+            journal.appendChunk(flushedLength, data, length);
+            if (sync) {
+                journal.sync(flushedLength + length);
+            }
+        }
+        flushedLength += length;
+        filePointer = flushedLength;
+        untouchedLength += length;
+        if (untouchedLength >= TOUCH_INTERVAL_BYTES) {
+            // let disk usage trim cache while long download is in progress, not after disk is full
+            untouchedLength = 0;
+            diskUsage.touch(file);
+        }
+    }
+
+    private void seek(long position) throws IOException {
+        if (filePointer != position) {
+            dataFile.seek(position);
+            filePointer = position;
+        }
+    }
+
     @Override
     public synchronized void close() throws ProxyCacheException {
         try {
+            syncJournaled();
+            closeFile();
+        } finally {
+            if (leased) {
+                index.release(file);
+                leased = false;
+            }
+        }
+    }
+
+    /**
+     * Forces journaled data to storage device on closing unless syncing is disabled by policy,
+     * so data cached before is not verified again when download is resumed. Failed syncing is not fatal:
+     * not synced data is just verified on resuming.
+     */
+    private void syncJournaled() {
+        if (journal == null || isCompleted() || flushPolicy.sync == FlushPolicy.Sync.NEVER) {
+            return;
+        }
+        try {
+            flush();
+            dataFile.getFD().sync();
+            journal.sync(flushedLength);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfWarning("Error syncing file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void closeFile() throws ProxyCacheException {
+        try {
+            if (!isCompleted()) {
+                flush();
+            }
+            releaseWriteBuffer();
+            if (journal != null) {
+                journal.close();
+            }
             dataFile.close();
             diskUsage.touch(file);
         } catch (IOException e) {
@@ -90,7 +399,19 @@ public class FileCache implements Cache {
             return;
         }
 
-        close();
+        try {
+            flush();
+            if (journal != null) {
+                dataFile.setLength(flushedLength);
+            }
+            if (flushPolicy.sync != FlushPolicy.Sync.NEVER) {
+                dataFile.getFD().sync();
+            }
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error flushing file " + file, e);
+        }
+        closeFile();
+        deleteJournal();
         String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
         File completedFile = new File(file.getParentFile(), fileName);
         boolean renamed = file.renameTo(completedFile);
@@ -98,14 +419,66 @@ public class FileCache implements Cache {
             throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
         }
         file = completedFile;
+        index.onCompleted(file);
         try {
             dataFile = new RandomAccessFile(file, "r");
+            filePointer = 0;
             diskUsage.touch(file);
         } catch (IOException e) {
             throw new ProxyCacheException("Error opening " + file + " as disc cache", e);
         }
     }
 
+    @Override
+    public synchronized void clear() throws ProxyCacheException {
+        if (isCompleted()) {
+            throw new ProxyCacheException("Error clearing cache: cache file " + file + " is completed!");
+        }
+        try {
+            buffered = 0;
+            releaseWriteBuffer();
+            dataFile.setLength(0);
+            flushedLength = 0;
+            filePointer = -1;
+            if (journal != null) {
+                journal.reset(null);
+            }
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error clearing cache file " + file, e);
+        }
+    }
+
+    /**
+     * Preallocates file with full source's length if preallocation is enabled. Disk usage is notified right after
+     * reserving, so cache is trimmed with respect to reserved bytes before downloading.
+     */
+    @Override
+    public synchronized void reserve(long length) throws ProxyCacheException {
+        if (!preallocate || isCompleted()) {
+            return;
+        }
+        try {
+            if (length <= dataFile.length()) {
+                return;
+            }
+            dataFile.setLength(length);
+            diskUsage.touch(file);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error reserving " + length + " bytes for file " + file, e);
+        }
+    }
+
+    private void deleteJournal() throws ProxyCacheException {
+        if (journal != null) {
+            try {
+                journal.delete();
+                journal = null;
+            } catch (IOException e) {
+                throw new ProxyCacheException("Error deleting journal of file " + file, e);
+            }
+        }
+    }
+
     @Override
     public synchronized boolean isCompleted() {
         return !isTempFile(file);
@@ -120,8 +493,26 @@ public class FileCache implements Cache {
         return file;
     }
 
-    private boolean isTempFile(File file) {
-        return file.getName().endsWith(TEMP_POSTFIX);
+    static File getTempFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
+    }
+
+    /**
+     * Returns name of cache entry file belongs to, the same for temporary and completed file.
+     */
+    static String getEntryName(File file) {
+        String name = file.getName();
+        if (name.endsWith(TEMP_POSTFIX)) {
+            return name.substring(0, name.length() - TEMP_POSTFIX.length());
+        }
+        return TailCache.isTailFile(file) ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+
+    /**
+     * Checks whether file keeps partially cached data of entry: it is temporary file or {@link TailCache}'s file.
+     */
+    static boolean isTempFile(File file) {
+        return file.getName().endsWith(TEMP_POSTFIX) || TailCache.isTailFile(file);
     }
 
 }
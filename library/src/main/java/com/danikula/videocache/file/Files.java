@@ -3,14 +3,16 @@ package com.danikula.videocache.file;
 import com.danikula.videocache.HttpProxyCacheDebuger;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Utils for work with files.
@@ -33,57 +35,104 @@ class Files {
         }
     }
 
-    static List<File> getLruListFiles(File directory) {
-        List<File> result = new LinkedList<>();
-        File[] files = directory.listFiles();
-        if (files != null) {
-            result = Arrays.asList(files);
-            Collections.sort(result, new LastModifiedComparator());
+    /**
+     * Moves file, e.g. to another cache tier. If file can't be renamed (directories are on different volumes),
+     * it is copied and then deleted. Existing target file is replaced.
+     */
+    static void move(File source, File target) throws IOException {
+        makeDir(target.getParentFile());
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Error deleting " + target);
+        }
+        if (source.renameTo(target)) {
+            return;
+        }
+        copy(source, target);
+        if (!source.delete()) {
+            throw new IOException("Error deleting " + source + " after copying");
         }
-        return result;
     }
 
-    static void setLastModifiedNow(File file) throws IOException {
-        if (file.exists()) {
-            long now = System.currentTimeMillis();
-            boolean modified = file.setLastModified(now); // on some devices (e.g. Nexus 5) doesn't work
-            if (!modified) {
-                modify(file);
-                if (file.lastModified() < now) {
-                    // NOTE: apparently this is a known issue (see: http://stackoverflow.com/questions/6633748/file-lastmodified-is-never-what-was-set-with-file-setlastmodified)
-                    HttpProxyCacheDebuger.printfWarning("Last modified date {} is not set for file {}", new Date(file.lastModified()).toString() + "\n" + file.getAbsolutePath());
-
+    /**
+     * Copies file via temporary file, so partially copied file is never taken as completed one.
+     */
+    static void copy(File source, File target) throws IOException {
+        makeDir(target.getParentFile());
+        File tempFile = FileCache.getTempFile(target);
+        FileChannel input = null;
+        FileChannel output = null;
+        boolean copied = false;
+        try {
+            input = new FileInputStream(source).getChannel();
+            output = new FileOutputStream(tempFile).getChannel();
+            long size = input.size();
+            long position = 0;
+            while (position < size) {
+                position += input.transferTo(position, size - position, output);
+            }
+            copied = true;
+        } finally {
+            try {
+                if (input != null) {
+                    input.close();
+                }
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+                if (!copied && tempFile.exists() && !tempFile.delete()) {
+                    HttpProxyCacheDebuger.printfError("Error deleting partially copied file " + tempFile);
                 }
             }
         }
-    }
-
-    static void modify(File file) throws IOException {
-        long size = file.length();
-        if (size == 0) {
-            recreateZeroSizeFile(file);
-            return;
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Error deleting " + target);
+        }
+        if (!tempFile.renameTo(target)) {
+            throw new IOException("Error renaming " + tempFile + " to " + target);
         }
-
-        RandomAccessFile accessFile = new RandomAccessFile(file, "rwd");
-        accessFile.seek(size - 1);
-        byte lastByte = accessFile.readByte();
-        accessFile.seek(size - 1);
-        accessFile.write(lastByte);
-        accessFile.close();
     }
 
-    private static void recreateZeroSizeFile(File file) throws IOException {
-        if (!file.delete() || !file.createNewFile()) {
-            throw new IOException("Error recreate zero-size file " + file);
+    /**
+     * Returns cache files sorted by time of the last access to their groups and then to files themselves
+     * (see {@link CacheIndex#getAccessTime(File)}), so grouped files are evicted together.
+     * Journals and service files are not cache files, journals are deleted together with their cache files.
+     */
+    static List<File> getLruListFiles(File directory) {
+        List<File> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!DownloadJournal.isJournalFile(file) && !CacheIndex.isServiceFile(file)) {
+                    result.add(file);
+                }
+            }
+            CacheIndex index = CacheIndex.of(directory);
+            Map<File, Long> groupAccessTimes = new HashMap<>(result.size());
+            Map<File, Long> accessTimes = new HashMap<>(result.size());
+            for (File file : result) {
+                groupAccessTimes.put(file, index.getGroupAccessTime(file));
+                accessTimes.put(file, index.getAccessTime(file));
+            }
+            Collections.sort(result, new AccessTimeComparator(groupAccessTimes, accessTimes));
         }
+        return result;
     }
 
-    private static final class LastModifiedComparator implements Comparator<File> {
+    private static final class AccessTimeComparator implements Comparator<File> {
+
+        private final Map<File, Long> groupAccessTimes;
+        private final Map<File, Long> accessTimes;
+
+        AccessTimeComparator(Map<File, Long> groupAccessTimes, Map<File, Long> accessTimes) {
+            this.groupAccessTimes = groupAccessTimes;
+            this.accessTimes = accessTimes;
+        }
 
         @Override
         public int compare(File lhs, File rhs) {
-            return compareLong(lhs.lastModified(), rhs.lastModified());
+            int result = compareLong(groupAccessTimes.get(lhs), groupAccessTimes.get(rhs));
+            return result != 0 ? result : compareLong(accessTimes.get(lhs), accessTimes.get(rhs));
         }
 
         private int compareLong(long first, long second) {
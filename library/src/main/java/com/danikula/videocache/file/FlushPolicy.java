@@ -0,0 +1,93 @@
+package com.danikula.videocache.file;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Declares how {@link FileCache} stages appended data in memory before writing it to file.
+ * <p>
+ * Data is flushed to file when staging buffer is full or when the oldest staged data is older than max delay,
+ * even if source stalls and nothing is appended any more.
+ * Staged data is visible for readers of cache immediately. {@link Sync} declares when written data is forced
+ * to storage device with {@code fsync}. Journaled cache keeps checksums of flushed data in sidecar journal,
+ * so partial download broken by process kill is resumed from the last verified data.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public final class FlushPolicy {
+
+    public enum Sync {
+        /**
+         * Data is never forced to storage device explicitly, OS does it on its own.
+         */
+        NEVER,
+        /**
+         * Data is forced to storage device once file is fully cached.
+         */
+        ON_COMPLETE,
+        /**
+         * Data is forced to storage device on every flush. The most durable and the slowest mode.
+         */
+        EVERY_FLUSH
+    }
+
+    private static final int  DEFAULT_BUFFER_SIZE = 128 * 1024;
+    private static final long DEFAULT_MAX_DELAY   = 1000;
+
+    public final int  bufferSize;
+    public final long maxDelay;
+    public final Sync    sync;
+    public final boolean journal;
+
+    /**
+     * @param bufferSize size of staging buffer in bytes, {@code 0} means data is written to file on every append.
+     * @param maxDelay   max time data is kept in memory before flushing.
+     * @param unit       time unit of max delay.
+     * @param sync       when data should be forced to storage device.
+     */
+    public FlushPolicy(int bufferSize, long maxDelay, TimeUnit unit, Sync sync) {
+        this(bufferSize, maxDelay, unit, sync, false);
+    }
+
+    /**
+     * @param bufferSize size of staging buffer in bytes, {@code 0} means data is written to file on every append.
+     * @param maxDelay   max time data is kept in memory before flushing.
+     * @param unit       time unit of max delay.
+     * @param sync       when data should be forced to storage device.
+     * @param journal    {@code true} if flushed data should be recorded in journal for validated resuming.
+     */
+    public FlushPolicy(int bufferSize, long maxDelay, TimeUnit unit, Sync sync, boolean journal) {
+        if (bufferSize < 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("Buffer size and max delay must be non-negative numbers!");
+        }
+        if (sync == null) {
+            throw new NullPointerException("Sync mode can't be null!");
+        }
+        this.bufferSize = bufferSize;
+        this.maxDelay = unit.toMillis(maxDelay);
+        this.sync = sync;
+        this.journal = journal;
+    }
+
+    /**
+     * Returns default policy: 128 Kb staging buffer flushed at least once a second, no explicit syncing
+     * until file is fully cached, journaling is enabled.
+     *
+     * @return a default policy.
+     */
+    public static FlushPolicy newDefault() {
+        return new FlushPolicy(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_DELAY, TimeUnit.MILLISECONDS, Sync.ON_COMPLETE, true);
+    }
+
+    /**
+     * Returns policy that writes every appended portion of data to file immediately without syncing and journaling.
+     *
+     * @return a write-through policy.
+     */
+    public static FlushPolicy newWriteThrough() {
+        return new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, Sync.NEVER);
+    }
+
+    boolean isWriteThrough() {
+        return bufferSize == 0;
+    }
+}
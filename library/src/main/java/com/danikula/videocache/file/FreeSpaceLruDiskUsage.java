@@ -0,0 +1,89 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DiskUsage} that uses LRU (Least Recently Used) strategy and trims cache to size computed from free space
+ * on cache's volume.
+ * <p>
+ * Max size of cache is a part of space available for cache: free space plus space occupied by cache itself
+ * (otherwise growing cache would shrink own limit). Max size is bounded with floor and ceiling and is re-evaluated
+ * once per evaluation interval in background, even if cache is not used, so cache shrinks when other apps fill storage.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class FreeSpaceLruDiskUsage extends LruDiskUsage {
+
+    private static final long DEFAULT_EVALUATION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final float freeSpaceRatio;
+    private final long  minSize;
+    private final long  maxSize;
+    private final long  evaluationInterval;
+    private long        evaluatedMaxSize;
+    private long        evaluationTime;
+
+    public FreeSpaceLruDiskUsage(float freeSpaceRatio, long minSize, long maxSize) {
+        this(freeSpaceRatio, minSize, maxSize, DEFAULT_EVALUATION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates disk usage.
+     *
+     * @param freeSpaceRatio     part of space available for cache to be used by cache, in range (0..1].
+     * @param minSize            floor of cache's size in bytes, cache is never trimmed below it.
+     * @param maxSize            ceiling of cache's size in bytes.
+     * @param evaluationInterval min interval between evaluations of cache's size.
+     * @param unit               unit of evaluation interval.
+     */
+    public FreeSpaceLruDiskUsage(float freeSpaceRatio, long minSize, long maxSize, long evaluationInterval, TimeUnit unit) {
+        if (freeSpaceRatio <= 0 || freeSpaceRatio > 1) {
+            throw new IllegalArgumentException("Free space ratio must be in range (0..1]!");
+        }
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Min size must be positive number not greater than max size!");
+        }
+        if (evaluationInterval < 0) {
+            throw new IllegalArgumentException("Evaluation interval must be non-negative number!");
+        }
+        this.freeSpaceRatio = freeSpaceRatio;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.evaluationInterval = unit.toMillis(evaluationInterval);
+        if (evaluationInterval > 0) {
+            scheduleLimitCheck(evaluationInterval, unit);
+        }
+    }
+
+    @Override
+    protected boolean accept(File file, long totalSize, int totalCount) {
+        return totalSize <= getMaxSize(file.getParentFile(), totalSize);
+    }
+
+    private synchronized long getMaxSize(File directory, long totalSize) {
+        long now = System.currentTimeMillis();
+        if (evaluationTime == 0 || now - evaluationTime >= evaluationInterval) {
+            long availableSize = getUsableSpace(directory) + totalSize;
+            long evaluated = Math.max(minSize, Math.min(maxSize, (long) (availableSize * freeSpaceRatio)));
+            if (evaluated != evaluatedMaxSize) {
+                HttpProxyCacheDebuger.printfLog("Max size of cache " + directory + " is " + evaluated + " bytes");
+            }
+            evaluatedMaxSize = evaluated;
+            evaluationTime = now;
+        }
+        return evaluatedMaxSize;
+    }
+
+    /**
+     * Returns count of bytes available for writing on cache's volume.
+     *
+     * @param directory a cache directory.
+     * @return free space in bytes.
+     */
+    protected long getUsableSpace(File directory) {
+        return directory.getUsableSpace();
+    }
+}
@@ -0,0 +1,150 @@
+package com.danikula.videocache.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Count-Min sketch estimating how often cache entries are accessed, used by {@link TinyLfuDiskUsage}.
+ * <p>
+ * Every entry is counted in {@link #DEPTH} rows of 4-bit counters, estimation is minimum of entry's counters.
+ * To keep sketch fresh all counters are halved after {@code 10 * width} increments, so popularity of entries
+ * not accessed anymore fades out. Sketch is small (one byte per counter) and can be persisted to survive restarts.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+final class FrequencySketch {
+
+    static final String FILE_NAME = ".frequency";
+
+    private static final int    MAGIC       = 0x56434653; // "VCFS"
+    private static final int    DEPTH       = 4;
+    private static final int    MAX_COUNTER = 15;
+    private static final long[] SEEDS       = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private final int    width;
+    private final int    sampleSize;
+    private final byte[] counters;
+    private int          additions;
+    private boolean      changed;
+
+    /**
+     * @param capacity expected count of distinct entries, it is rounded up to power of two.
+     */
+    FrequencySketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive number!");
+        }
+        int width = 1;
+        while (width < capacity) {
+            width <<= 1;
+        }
+        this.width = width;
+        this.sampleSize = 10 * width;
+        this.counters = new byte[DEPTH * width];
+    }
+
+    synchronized void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if (counters[index] < MAX_COUNTER) {
+                counters[index]++;
+                incremented = true;
+            }
+        }
+        changed = true;
+        if (incremented && ++additions >= sampleSize) {
+            halve();
+        }
+    }
+
+    synchronized int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNTER;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void halve() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = (byte) (counters[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return row * width + ((int) h & (width - 1));
+    }
+
+    private int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    /**
+     * Loads counters persisted by {@link #save(File)}. Sketch is left empty if file is absent or it is saved
+     * by sketch of another size.
+     *
+     * @param directory a cache directory.
+     * @throws IOException if file can't be read.
+     */
+    synchronized void load(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != width) {
+                return;
+            }
+            int savedAdditions = input.readInt();
+            byte[] savedCounters = new byte[counters.length];
+            input.readFully(savedCounters);
+            System.arraycopy(savedCounters, 0, counters, 0, counters.length);
+            additions = savedAdditions;
+            changed = false;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Persists counters to cache directory if they are changed since last saving or loading.
+     *
+     * @param directory a cache directory.
+     * @throws IOException if file can't be written.
+     */
+    synchronized void save(File directory) throws IOException {
+        if (!changed) {
+            return;
+        }
+        File file = new File(directory, FILE_NAME);
+        File tempFile = new File(directory, FILE_NAME + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(width);
+            output.writeInt(additions);
+            output.write(counters);
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Error renaming " + tempFile + " to " + file);
+        }
+        changed = false;
+    }
+}
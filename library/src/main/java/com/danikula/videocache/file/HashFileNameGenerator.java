@@ -0,0 +1,33 @@
+package com.danikula.videocache.file;
+
+import android.text.TextUtils;
+
+/**
+ * Base {@link FileNameGenerator} that uses hash of url as file name and keeps url's extension if it is short enough.
+ */
+public abstract class HashFileNameGenerator implements FileNameGenerator {
+
+    private static final int MAX_EXTENSION_LENGTH = 4;
+
+    @Override
+    public String generate(String url) {
+        String extension = getExtension(url);
+        String name = hash(url);
+        return TextUtils.isEmpty(extension) ? name : name + "." + extension;
+    }
+
+    /**
+     * Computes hash of url to be used as file name.
+     *
+     * @param url an url to be hashed.
+     * @return a hash, must contain only chars acceptable for file name.
+     */
+    protected abstract String hash(String url);
+
+    private String getExtension(String url) {
+        int dotIndex = url.lastIndexOf('.');
+        int slashIndex = url.lastIndexOf('/');
+        return dotIndex != -1 && dotIndex > slashIndex && dotIndex + 2 + MAX_EXTENSION_LENGTH > url.length() ?
+                url.substring(dotIndex + 1, url.length()) : "";
+    }
+}
@@ -4,73 +4,287 @@ import com.danikula.videocache.HttpProxyCacheDebuger;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@link DiskUsage} that uses LRU (Least Recently Used) strategy to trim cache.
+ * Subclasses may change eviction order, see {@link #sortForEviction(File, List)}.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public abstract class LruDiskUsage implements DiskUsage {
 
+    private static final long DEFAULT_TRIM_INTERVAL = 5 * 1000;
 
-    private final ExecutorService workerThread = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService  workerThread    = Executors.newSingleThreadScheduledExecutor();
+    private final Map<File, Long>           pendingTouches  = new LinkedHashMap<>();
+    private final Set<File>                 pendingAccesses = new LinkedHashSet<>();
+    private final Map<File, DirectoryUsage> usages          = new HashMap<>();
+    private final long                      trimInterval;
+    private long                            lastTrimTime;
+    private long                            scheduledBatchTime = -1;
 
+    public LruDiskUsage() {
+        this(DEFAULT_TRIM_INTERVAL);
+    }
+
+    /**
+     * @param trimInterval min interval in milliseconds between trims of cache, until cache limit is exceeded.
+     */
+    protected LruDiskUsage(long trimInterval) {
+        if (trimInterval < 0) {
+            throw new IllegalArgumentException("Trim interval must be non-negative number!");
+        }
+        this.trimInterval = trimInterval;
+    }
+
+    /**
+     * Records access to file in memory and schedules its processing in background. Touches are coalesced:
+     * cache directory is listed and trimmed not often than once per trim interval, unless touched file
+     * (e.g. growing download) makes cache exceed its limit according to the last known cache's state.
+     */
     @Override
     public void touch(File file) throws IOException {
-        workerThread.submit(new TouchCallable(file));
+        touch(file, false);
+    }
+
+    /**
+     * Records real access to file by client, e.g. player gets url of cached file or requests it from proxy.
+     * Unlike {@link #touch(File)} that is called on every change of file (download's progress, completion
+     * and so on), access means file is used. Access is processed like touch and is passed to {@link #onAccessed(File)},
+     * several accesses to the same file processed by the same batch are counted once.
+     *
+     * @param file an accessed cache file.
+     * @throws IOException if error occurs while processing access.
+     */
+    public void access(File file) throws IOException {
+        touch(file, true);
+    }
+
+    private void touch(File file, boolean accessed) {
+        long now = System.currentTimeMillis();
+        long batchTime;
+        synchronized (pendingTouches) {
+            pendingTouches.put(file, now);
+            if (accessed) {
+                pendingAccesses.add(file);
+            }
+            boolean limitExceeded = isLimitExceeded(file);
+            batchTime = limitExceeded ? now : Math.max(now, lastTrimTime + trimInterval);
+            if (scheduledBatchTime >= 0 && scheduledBatchTime <= batchTime) {
+                return; // touch will be processed by already scheduled batch
+            }
+            scheduledBatchTime = batchTime;
+        }
+        workerThread.schedule(new TouchCallable(), batchTime - now, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isLimitExceeded(File file) {
+        DirectoryUsage usage = usages.get(file.getParentFile());
+        if (usage == null) {
+            return true; // directory is not trimmed yet, so its state is unknown
+        }
+        usage.update(file, file.length());
+        return !accept(file, usage.totalSize, usage.sizes.size());
+    }
+
+    private void touchInBackground() throws IOException {
+        Map<File, Long> touches;
+        Set<File> accesses;
+        synchronized (pendingTouches) {
+            touches = new LinkedHashMap<>(pendingTouches);
+            accesses = new LinkedHashSet<>(pendingAccesses);
+            pendingTouches.clear();
+            pendingAccesses.clear();
+            scheduledBatchTime = -1;
+            lastTrimTime = System.currentTimeMillis();
+        }
+        Set<File> directories = new LinkedHashSet<>();
+        for (Map.Entry<File, Long> touch : touches.entrySet()) {
+            File file = touch.getKey();
+            CacheIndex.of(file.getParentFile()).onAccessed(file, touch.getValue());
+            onTouched(file);
+            if (accesses.contains(file)) {
+                onAccessed(file);
+            }
+            directories.add(file.getParentFile());
+        }
+        for (File directory : directories) {
+            trim(directory);
+        }
+    }
+
+    /**
+     * Schedules periodic check of limit for every cache directory trimmed before. Directory is trimmed
+     * in worker thread if its last known state is not accepted any more. Subclasses which limit changes
+     * without touching cache (e.g. depends on free space) use it to shrink cache in time.
+     *
+     * @param interval interval between checks.
+     * @param unit     unit of interval.
+     */
+    protected void scheduleLimitCheck(long interval, TimeUnit unit) {
+        workerThread.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkLimit();
+            }
+        }, interval, interval, unit);
+    }
+
+    private void checkLimit() {
+        List<File> exceedingDirectories = new ArrayList<>();
+        synchronized (pendingTouches) {
+            for (DirectoryUsage usage : usages.values()) {
+                if (!usage.sizes.isEmpty()) {
+                    File anyFile = usage.sizes.keySet().iterator().next();
+                    if (!accept(anyFile, usage.totalSize, usage.sizes.size())) {
+                        exceedingDirectories.add(anyFile.getParentFile());
+                    }
+                }
+            }
+        }
+        for (File directory : exceedingDirectories) {
+            trim(directory);
+        }
+    }
+
+    /**
+     * Lists cache directory and trims it synchronously.
+     *
+     * @param directory a cache directory.
+     */
+    void trim(File directory) {
+        List<File> files = Files.getLruListFiles(directory);
+        CacheIndex.of(directory).sync(files);
+        Map<File, Long> remainingFiles = trim(directory, sortForEviction(directory, files));
+        synchronized (pendingTouches) {
+            usages.put(directory, new DirectoryUsage(remainingFiles));
+        }
+        onTrimmed(directory);
+    }
+
+    /**
+     * Called in worker thread for every touched file before trimming.
+     *
+     * @param file a touched cache file.
+     */
+    protected void onTouched(File file) {
+    }
+
+    /**
+     * Called in worker thread for every accessed file before trimming, see {@link #access(File)}.
+     *
+     * @param file an accessed cache file.
+     */
+    protected void onAccessed(File file) {
     }
 
-    private void touchInBackground(File file) throws IOException {
-        Files.setLastModifiedNow(file);
-        List<File> files = Files.getLruListFiles(file.getParentFile());
-        trim(files);
+    /**
+     * Returns files in order they should be checked for eviction, first files are evicted first.
+     * LRU order is used by default.
+     *
+     * @param directory a cache directory.
+     * @param files     cache files sorted from least to most recently used.
+     * @return files to be checked for eviction.
+     */
+    protected List<File> sortForEviction(File directory, List<File> files) {
+        return files;
+    }
+
+    /**
+     * Called in worker thread after cache directory is trimmed.
+     *
+     * @param directory a cache directory.
+     */
+    protected void onTrimmed(File directory) {
     }
 
     protected abstract boolean accept(File file, long totalSize, int totalCount);
 
-    private void trim(List<File> files) {
-        long totalSize = countTotalSize(files);
+    private Map<File, Long> trim(File directory, List<File> files) {
+        CacheIndex index = CacheIndex.of(directory);
+        Map<File, Long> sizes = new HashMap<>();
+        long totalSize = 0;
+        for (File file : files) {
+            long fileSize = file.length();
+            sizes.put(file, fileSize);
+            totalSize += fileSize;
+        }
         int totalCount = files.size();
+        File pinnedExceeding = null;
         for (File file : files) {
             boolean accepted = accept(file, totalSize, totalCount);
             if (!accepted) {
-                long fileSize = file.length();
-                boolean deleted = file.delete();
-                if (deleted) {
+                if (index.isPinned(file)) {
+                    pinnedExceeding = file;
+                    continue;
+                }
+                long fileSize = sizes.get(file);
+                boolean evicted = index.evict(file);
+                if (evicted) {
+                    sizes.remove(file);
                     totalCount--;
                     totalSize -= fileSize;
-                    HttpProxyCacheDebuger.printfLog("Cache file " + file + " is deleted because it exceeds cache limit");
                 } else {
                     HttpProxyCacheDebuger.printfError("Error deleting file " + file + " for trimming cache");
                 }
             }
         }
+        if (pinnedExceeding != null && !accept(pinnedExceeding, totalSize, totalCount)) {
+            onQuotaNotMet(directory, totalSize, totalCount);
+        }
+        return sizes;
     }
 
-    private long countTotalSize(List<File> files) {
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
-        }
-        return totalSize;
+    /**
+     * Called when cache can't be trimmed to limit because remaining files are pinned or used right now.
+     *
+     * @param directory  a cache directory.
+     * @param totalSize  total size of cache files after trimming.
+     * @param totalCount total count of cache files after trimming.
+     */
+    protected void onQuotaNotMet(File directory, long totalSize, int totalCount) {
+        HttpProxyCacheDebuger.printfWarning("Cache limit can't be met for " + directory + ": " + totalCount +
+                " files with total size " + totalSize + " remain because of pinned or used files");
     }
 
     private class TouchCallable implements Callable<Void> {
 
-        private final File file;
-
-        public TouchCallable(File file) {
-            this.file = file;
-        }
-
         @Override
         public Void call() throws Exception {
-            touchInBackground(file);
+            touchInBackground();
             return null;
         }
     }
+
+    /**
+     * Last known state of cache directory: sizes of cache files listed while trimming and updated by touches.
+     */
+    private static final class DirectoryUsage {
+
+        private final Map<File, Long> sizes;
+        private long                  totalSize;
+
+        DirectoryUsage(Map<File, Long> sizes) {
+            this.sizes = sizes;
+            for (long size : sizes.values()) {
+                totalSize += size;
+            }
+        }
+
+        void update(File file, long size) {
+            Long knownSize = sizes.put(file, size);
+            totalSize += size - (knownSize == null ? 0 : knownSize);
+        }
+    }
 }
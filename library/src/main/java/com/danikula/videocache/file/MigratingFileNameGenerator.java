@@ -0,0 +1,82 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+
+/**
+ * {@link FileNameGenerator} that allows to switch file naming without loosing already cached files.
+ * <p>
+ * Names are generated by new generator, but if there is no file with such name in cache directory and there is file
+ * (completed or not) named by legacy generator, legacy file is renamed to new name.
+ * Legacy name is looked up once per entry and only if there is no file with new name, so cached entries cost
+ * a single name's generation after the first call.
+ */
+public class MigratingFileNameGenerator implements FileNameGenerator {
+
+    private static final int MAX_CHECKED_NAMES = 1024;
+
+    private final File              directory;
+    private final FileNameGenerator generator;
+    private final FileNameGenerator legacyGenerator;
+    private final Set<String>       checkedNames = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_CHECKED_NAMES;
+        }
+    });
+
+    public MigratingFileNameGenerator(File directory, FileNameGenerator generator, FileNameGenerator legacyGenerator) {
+        checkAllNotNull(directory, generator, legacyGenerator);
+        this.directory = directory;
+        this.generator = generator;
+        this.legacyGenerator = legacyGenerator;
+    }
+
+    @Override
+    public String generate(String url) {
+        String name = generator.generate(url);
+        synchronized (checkedNames) {
+            if (checkedNames.add(name)) {
+                migrateIfAbsent(url, name);
+            }
+        }
+        return name;
+    }
+
+    private void migrateIfAbsent(String url, String name) {
+        File file = new File(directory, name);
+        File tempFile = FileCache.getTempFile(file);
+        if (file.exists() || tempFile.exists()) {
+            return;
+        }
+        String legacyName = legacyGenerator.generate(url);
+        if (!name.equals(legacyName)) {
+            migrate(new File(directory, legacyName), file);
+            File legacyTempFile = FileCache.getTempFile(new File(directory, legacyName));
+            migrate(legacyTempFile, tempFile);
+            migrate(DownloadJournal.getJournalFile(legacyTempFile), DownloadJournal.getJournalFile(tempFile));
+        }
+    }
+
+    private void migrate(File legacyFile, File file) {
+        if (legacyFile.exists() && !file.exists()) {
+            if (legacyFile.renameTo(file)) {
+                CacheIndex index = CacheIndex.of(directory);
+                index.onDeleted(legacyFile);
+                if (!FileCache.isTempFile(file) && !DownloadJournal.isJournalFile(file)) {
+                    index.onCompleted(file);
+                }
+            } else {
+                HttpProxyCacheDebuger.printfError("Error renaming legacy cache file " + legacyFile + " to " + file);
+            }
+        }
+    }
+}
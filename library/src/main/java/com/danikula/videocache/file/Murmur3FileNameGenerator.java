@@ -0,0 +1,17 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.ProxyCacheUtils;
+
+/**
+ * Implementation of {@link FileNameGenerator} that uses 128-bit MurmurHash3 of url as file name.
+ * <p>
+ * It is several times faster than {@link Md5FileNameGenerator}, but produces different names, so use
+ * {@link MigratingFileNameGenerator} to keep files cached with {@link Md5FileNameGenerator} before.
+ */
+public class Murmur3FileNameGenerator extends HashFileNameGenerator {
+
+    @Override
+    protected String hash(String url) {
+        return ProxyCacheUtils.computeMurmur3(url);
+    }
+}
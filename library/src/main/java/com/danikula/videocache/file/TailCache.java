@@ -0,0 +1,239 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Tail of source cached apart from {@link FileCache}, e.g. index of MP4 file placed after media data.
+ * File cache is filled sequentially from the beginning, so tail requested by player before the whole source
+ * is cached is stored in sidecar file of cache entry and used until entry is completed.
+ * <p>
+ * Tail file starts with header: offset of tail in source, source's length and origin's validator (ETag or
+ * Last-Modified) tail was downloaded for, tail's data follows it. Like {@link DownloadJournal}, tail is trusted only
+ * for the same validator, so tail of previous version of source is never mixed with actual data.
+ * Tail file belongs to cache entry like temporary file does: it is counted by disk usage and evicted with entry.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class TailCache {
+
+    private static final String  TAIL_POSTFIX         = ".tail";
+    private static final int     MAX_VALIDATOR_LENGTH = 1024;
+    private static final Charset UTF_8                = Charset.forName("UTF-8");
+
+    private final File       file;
+    private RandomAccessFile dataFile;
+    private long             offset       = -1;
+    private long             sourceLength = -1;
+    private String           validator;
+    private long             headerSize;
+    private long             available;
+
+    /**
+     * @param cacheFile a cache file of entry, completed or temporary one.
+     */
+    public TailCache(File cacheFile) {
+        this.file = getTailFile(cacheFile);
+    }
+
+    /**
+     * Starts caching of tail from scratch, previously cached tail is discarded.
+     *
+     * @param offset       an offset of tail in source.
+     * @param sourceLength a source's length.
+     * @param validator    an origin's validator of data, may be {@code null}.
+     * @throws ProxyCacheException if tail file can't be created.
+     */
+    public synchronized void begin(long offset, long sourceLength, String validator) throws ProxyCacheException {
+        if (offset < 0 || offset >= sourceLength) {
+            throw new IllegalArgumentException("Wrong tail offset " + offset + " for source of " + sourceLength + " bytes");
+        }
+        byte[] validatorBytes = validator == null ? new byte[0] : validator.getBytes(UTF_8);
+        if (validatorBytes.length > MAX_VALIDATOR_LENGTH) {
+            throw new IllegalArgumentException("Validator is too long: " + validator);
+        }
+        try {
+            closeFile();
+            Files.makeDir(file.getParentFile());
+            dataFile = new RandomAccessFile(file, "rw");
+            dataFile.setLength(0);
+            dataFile.writeLong(offset);
+            dataFile.writeLong(sourceLength);
+            dataFile.writeShort(validator == null ? -1 : validatorBytes.length);
+            dataFile.write(validatorBytes);
+            this.offset = offset;
+            this.sourceLength = sourceLength;
+            this.validator = validator;
+            this.headerSize = dataFile.getFilePointer();
+            this.available = 0;
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error creating tail cache " + file, e);
+        }
+    }
+
+    public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+        if (dataFile == null || offset < 0) {
+            throw new ProxyCacheException("Error appending tail cache " + file + ": caching is not started");
+        }
+        if (available + length > sourceLength - offset) {
+            throw new ProxyCacheException("Error appending tail cache " + file + ": data exceeds source's length");
+        }
+        try {
+            dataFile.seek(headerSize + available);
+            dataFile.write(data, 0, length);
+            available += length;
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error writing " + length + " bytes to tail cache " + file, e);
+        }
+    }
+
+    /**
+     * Reads cached tail's data. Tail cached before is loaded from disk.
+     *
+     * @param buffer   a buffer to read data to.
+     * @param position a position in source to read from.
+     * @param length   max count of bytes to read.
+     * @return count of read bytes or {@code -1} if data at position is not cached.
+     * @throws ProxyCacheException if error occurs while reading tail file.
+     */
+    public synchronized int read(byte[] buffer, long position, int length) throws ProxyCacheException {
+        load();
+        if (offset < 0 || position < offset || position >= offset + available) {
+            return -1;
+        }
+        int readBytes = (int) Math.min(length, offset + available - position);
+        try {
+            if (dataFile == null) {
+                dataFile = new RandomAccessFile(file, "r");
+            }
+            dataFile.seek(headerSize + position - offset);
+            dataFile.readFully(buffer, 0, readBytes);
+            return readBytes;
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error reading " + readBytes + " bytes from tail cache " + file, e);
+        }
+    }
+
+    /**
+     * Returns offset of tail in source.
+     *
+     * @return an offset or {@code -1} if there is no cached tail.
+     */
+    public synchronized long getOffset() {
+        load();
+        return offset;
+    }
+
+    /**
+     * Returns origin's validator tail was downloaded for.
+     *
+     * @return a validator or {@code null} if it is unknown or there is no cached tail.
+     */
+    public synchronized String getValidator() {
+        load();
+        return validator;
+    }
+
+    /**
+     * Returns position in source tail is cached up to, i.e. tail's offset plus count of cached bytes.
+     *
+     * @return a position or {@code -1} if there is no cached tail.
+     */
+    public synchronized long available() {
+        load();
+        return offset < 0 ? -1 : offset + available;
+    }
+
+    /**
+     * Checks whether tail is cached up to the end of source.
+     */
+    public synchronized boolean isCompleted() {
+        load();
+        return offset >= 0 && available == sourceLength - offset;
+    }
+
+    public synchronized void close() {
+        closeFile();
+    }
+
+    /**
+     * Deletes cached tail, e.g. when the whole source is cached.
+     */
+    public synchronized void delete() {
+        closeFile();
+        offset = -1;
+        sourceLength = -1;
+        validator = null;
+        available = 0;
+        if (file.exists() && !file.delete()) {
+            HttpProxyCacheDebuger.printfWarning("Error deleting tail cache " + file);
+        }
+    }
+
+    private void load() {
+        if (offset >= 0 || !file.exists()) {
+            return;
+        }
+        RandomAccessFile tailFile = null;
+        try {
+            tailFile = new RandomAccessFile(file, "r");
+            long tailOffset = tailFile.readLong();
+            long tailSourceLength = tailFile.readLong();
+            int validatorLength = tailFile.readShort();
+            if (tailOffset < 0 || validatorLength < -1 || validatorLength > MAX_VALIDATOR_LENGTH) {
+                HttpProxyCacheDebuger.printfWarning("Tail cache " + file + " is corrupted and ignored");
+                return;
+            }
+            byte[] validatorBytes = new byte[Math.max(0, validatorLength)];
+            tailFile.readFully(validatorBytes);
+            long tailHeaderSize = tailFile.getFilePointer();
+            long dataLength = tailFile.length() - tailHeaderSize;
+            if (dataLength > tailSourceLength - tailOffset) {
+                HttpProxyCacheDebuger.printfWarning("Tail cache " + file + " is corrupted and ignored");
+                return;
+            }
+            this.offset = tailOffset;
+            this.sourceLength = tailSourceLength;
+            this.validator = validatorLength < 0 ? null : new String(validatorBytes, UTF_8);
+            this.headerSize = tailHeaderSize;
+            this.available = dataLength;
+            this.dataFile = tailFile;
+            tailFile = null;
+        } catch (EOFException e) {
+            HttpProxyCacheDebuger.printfWarning("Tail cache " + file + " has torn header and is ignored");
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfWarning("Error loading tail cache " + file + ": " + e.getMessage());
+        } finally {
+            closeSilently(tailFile);
+        }
+    }
+
+    private void closeFile() {
+        closeSilently(dataFile);
+        dataFile = null;
+    }
+
+    private void closeSilently(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfWarning("Error closing tail cache " + this.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    static File getTailFile(File file) {
+        return new File(file.getParentFile(), FileCache.getEntryName(file) + TAIL_POSTFIX);
+    }
+
+    static boolean isTailFile(File file) {
+        return file.getName().endsWith(TAIL_POSTFIX);
+    }
+}
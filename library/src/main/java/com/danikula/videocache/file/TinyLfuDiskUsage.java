@@ -0,0 +1,145 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link DiskUsage} that trims cache to max size using size-aware W-TinyLFU (Window Tiny Least Frequently Used) strategy.
+ * <p>
+ * Recently used files that fit to small window (10% of max size by default) are never evicted, so new file has
+ * a chance to gain popularity. Other files are evicted in order of their value: estimated access frequency per byte,
+ * least recently used file is evicted first among equally valuable ones. So one-time watched long videos are
+ * evicted before short clips watched again and again, while pure LRU strategy flushes all clips after binge watching.
+ * <p>
+ * Frequencies are estimated with compact sketch, that remembers even evicted files and is persisted in cache
+ * directory to survive restarts. Only real accesses to files are counted (see {@link LruDiskUsage#access(File)}),
+ * not touches caused by downloading.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class TinyLfuDiskUsage extends LruDiskUsage {
+
+    private static final float DEFAULT_WINDOW_RATIO    = 0.1f;
+    private static final int   DEFAULT_SKETCH_CAPACITY = 4096;
+
+    private final long                       maxSize;
+    private final long                       windowSize;
+    private final int                        sketchCapacity;
+    private final Map<File, FrequencySketch> sketches = new HashMap<>();
+
+    public TinyLfuDiskUsage(long maxSize) {
+        this(maxSize, DEFAULT_WINDOW_RATIO, DEFAULT_SKETCH_CAPACITY);
+    }
+
+    /**
+     * Creates disk usage.
+     *
+     * @param maxSize        max size of cache in bytes.
+     * @param windowRatio    part of max size used for recently used files protected from eviction, in range [0..1].
+     * @param sketchCapacity expected count of distinct files accessed during sketch's lifetime, sketch uses 4 bytes
+     *                       per every expected file.
+     */
+    public TinyLfuDiskUsage(long maxSize, float windowRatio, int sketchCapacity) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive number!");
+        }
+        if (windowRatio < 0 || windowRatio > 1) {
+            throw new IllegalArgumentException("Window ratio must be in range [0..1]!");
+        }
+        if (sketchCapacity <= 0) {
+            throw new IllegalArgumentException("Sketch capacity must be positive number!");
+        }
+        this.maxSize = maxSize;
+        this.windowSize = (long) (maxSize * windowRatio);
+        this.sketchCapacity = sketchCapacity;
+    }
+
+    @Override
+    protected boolean accept(File file, long totalSize, int totalCount) {
+        return totalSize <= maxSize;
+    }
+
+    @Override
+    protected void onAccessed(File file) {
+        getSketch(file.getParentFile()).increment(FileCache.getEntryName(file));
+    }
+
+    @Override
+    protected List<File> sortForEviction(File directory, List<File> files) {
+        List<File> main = new ArrayList<>(files.size());
+        int windowStart = files.size();
+        long windowUsed = 0;
+        while (windowStart > 0 && windowUsed + files.get(windowStart - 1).length() <= windowSize) {
+            windowStart--;
+            windowUsed += files.get(windowStart).length();
+        }
+        main.addAll(files.subList(0, windowStart));
+        Collections.sort(main, new ValueComparator(getSketch(directory)));
+        List<File> result = new ArrayList<>(files.size());
+        result.addAll(main);
+        result.addAll(files.subList(windowStart, files.size()));
+        return result;
+    }
+
+    @Override
+    protected void onTrimmed(File directory) {
+        try {
+            getSketch(directory).save(directory);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error saving access frequencies to " + directory, e);
+        }
+    }
+
+    private FrequencySketch getSketch(File directory) {
+        synchronized (sketches) {
+            FrequencySketch sketch = sketches.get(directory);
+            if (sketch == null) {
+                sketch = new FrequencySketch(sketchCapacity);
+                try {
+                    sketch.load(directory);
+                } catch (IOException e) {
+                    HttpProxyCacheDebuger.printfError("Error loading access frequencies from " + directory, e);
+                    sketch = new FrequencySketch(sketchCapacity);
+                }
+                sketches.put(directory, sketch);
+            }
+            return sketch;
+        }
+    }
+
+    /**
+     * Orders files by access frequency per byte, sorting is stable, so LRU order is kept for equally valuable files.
+     */
+    private static final class ValueComparator implements Comparator<File> {
+
+        private final FrequencySketch   sketch;
+        private final Map<File, Double> values = new HashMap<>();
+
+        ValueComparator(FrequencySketch sketch) {
+            this.sketch = sketch;
+        }
+
+        @Override
+        public int compare(File lhs, File rhs) {
+            return Double.compare(valueOf(lhs), valueOf(rhs));
+        }
+
+        private double valueOf(File file) {
+            Double value = values.get(file);
+            if (value == null) {
+                int frequency = sketch.frequency(FileCache.getEntryName(file));
+                value = (double) frequency / Math.max(1, file.length());
+                values.put(file, value);
+            }
+            return value;
+        }
+    }
+}
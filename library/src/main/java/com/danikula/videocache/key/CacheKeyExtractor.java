@@ -0,0 +1,20 @@
+package com.danikula.videocache.key;
+
+/**
+ * Derives cache key from url.
+ * <p>
+ * Cache key identifies cached content: it is used for naming cache files and for storing source's info,
+ * while original url is still used for fetching data from origin. So urls with different mutable parts
+ * (e.g. signature or expiration time of CDN url) may share same cache entry.
+ */
+public interface CacheKeyExtractor {
+
+    /**
+     * Returns cache key for url.
+     *
+     * @param url an url to get key for.
+     * @return a cache key, {@code null} is not acceptable!
+     */
+    String extract(String url);
+
+}
@@ -0,0 +1,136 @@
+package com.danikula.videocache.key;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * {@link CacheKeyExtractor} that normalizes url: filters query parameters, replaces host aliases and drops fragment.
+ * <p>
+ * Useful for signed or expiring CDN urls, e.g. to cache
+ * {@code http://cdn1.example.com/video.mp4?id=1&token=abc&expires=123} and
+ * {@code http://cdn2.example.com/video.mp4?id=1&token=xyz&expires=456} as single entry:
+ * <pre><code>
+ * new NormalizingCacheKeyExtractor.Builder()
+ *      .denyQueryParameters("token", "expires")
+ *      .aliasHost("cdn2.example.com", "cdn1.example.com")
+ *      .build();
+ * </code></pre>
+ */
+public class NormalizingCacheKeyExtractor implements CacheKeyExtractor {
+
+    private final Set<String>         allowedParameters;
+    private final Set<String>         deniedParameters;
+    private final Map<String, String> hostAliases;
+
+    private NormalizingCacheKeyExtractor(Builder builder) {
+        this.allowedParameters = Collections.unmodifiableSet(new HashSet<>(builder.allowedParameters));
+        this.deniedParameters = Collections.unmodifiableSet(new HashSet<>(builder.deniedParameters));
+        this.hostAliases = Collections.unmodifiableMap(new HashMap<>(builder.hostAliases));
+    }
+
+    @Override
+    public String extract(String url) {
+        checkNotNull(url);
+        int fragmentIndex = url.indexOf('#');
+        String withoutFragment = fragmentIndex == -1 ? url : url.substring(0, fragmentIndex);
+        int queryIndex = withoutFragment.indexOf('?');
+        String base = queryIndex == -1 ? withoutFragment : withoutFragment.substring(0, queryIndex);
+        String query = queryIndex == -1 ? "" : withoutFragment.substring(queryIndex + 1);
+
+        StringBuilder key = new StringBuilder(replaceHost(base));
+        char separator = '?';
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int valueIndex = parameter.indexOf('=');
+            String name = valueIndex == -1 ? parameter : parameter.substring(0, valueIndex);
+            if (isParameterAccepted(name)) {
+                key.append(separator).append(parameter);
+                separator = '&';
+            }
+        }
+        return key.toString();
+    }
+
+    private boolean isParameterAccepted(String name) {
+        boolean allowed = allowedParameters.isEmpty() || allowedParameters.contains(name);
+        return allowed && !deniedParameters.contains(name);
+    }
+
+    private String replaceHost(String base) {
+        if (hostAliases.isEmpty()) {
+            return base;
+        }
+        int schemeEnd = base.indexOf("://");
+        int authorityStart = schemeEnd == -1 ? 0 : schemeEnd + 3;
+        int authorityEnd = base.indexOf('/', authorityStart);
+        authorityEnd = authorityEnd == -1 ? base.length() : authorityEnd;
+        int hostStart = base.lastIndexOf('@', authorityEnd - 1);
+        hostStart = hostStart < authorityStart ? authorityStart : hostStart + 1;
+        int portIndex = base.indexOf(':', hostStart);
+        int hostEnd = portIndex == -1 || portIndex > authorityEnd ? authorityEnd : portIndex;
+        String host = base.substring(hostStart, hostEnd).toLowerCase(Locale.US);
+        String alias = hostAliases.get(host);
+        return alias == null ? base : base.substring(0, hostStart) + alias + base.substring(hostEnd);
+    }
+
+    /**
+     * Builder for {@link NormalizingCacheKeyExtractor}.
+     */
+    public static final class Builder {
+
+        private final Set<String>         allowedParameters = new HashSet<>();
+        private final Set<String>         deniedParameters  = new HashSet<>();
+        private final Map<String, String> hostAliases       = new HashMap<>();
+
+        /**
+         * Sets query parameters to be kept in key. All others are dropped.
+         * By default all parameters are kept except denied ones (see {@link #denyQueryParameters(String...)}).
+         *
+         * @param names names of parameters, case sensitive.
+         * @return a builder.
+         */
+        public Builder allowQueryParameters(String... names) {
+            checkAllNotNull((Object[]) names);
+            Collections.addAll(allowedParameters, names);
+            return this;
+        }
+
+        /**
+         * Sets query parameters to be dropped from key, e.g. tokens, signatures or expiration times.
+         *
+         * @param names names of parameters, case sensitive.
+         * @return a builder.
+         */
+        public Builder denyQueryParameters(String... names) {
+            checkAllNotNull((Object[]) names);
+            Collections.addAll(deniedParameters, names);
+            return this;
+        }
+
+        /**
+         * Makes urls with host {@code host} to have the same key as urls with host {@code alias}.
+         *
+         * @param host  a host to be replaced, case insensitive.
+         * @param alias a host to be used in key instead.
+         * @return a builder.
+         */
+        public Builder aliasHost(String host, String alias) {
+            checkAllNotNull(host, alias);
+            hostAliases.put(host.toLowerCase(Locale.US), alias);
+            return this;
+        }
+
+        public NormalizingCacheKeyExtractor build() {
+            return new NormalizingCacheKeyExtractor(this);
+        }
+    }
+}
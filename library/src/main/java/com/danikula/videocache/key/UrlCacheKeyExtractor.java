@@ -0,0 +1,13 @@
+package com.danikula.videocache.key;
+
+/**
+ * Default {@link CacheKeyExtractor} that uses url as is.
+ */
+public class UrlCacheKeyExtractor implements CacheKeyExtractor {
+
+    @Override
+    public String extract(String url) {
+        return url;
+    }
+
+}
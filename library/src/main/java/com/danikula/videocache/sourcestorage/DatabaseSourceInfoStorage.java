@@ -5,14 +5,30 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.danikula.videocache.HttpProxyCacheDebuger;
 import com.danikula.videocache.SourceInfo;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
 /**
- * Database based {@link SourceInfoStorage}.
+ * Database based {@link SourceInfoStorage}. Rows are keyed by storage's key (cache key), while url column keeps
+ * url data was fetched from, it may differ after redirects or for normalized keys.
+ * <p>
+ * Recently used infos are kept in memory, so most of {@link #get(String)} calls don't touch database.
+ * {@link #put(String, SourceInfo)} doesn't block caller: infos are written by background thread, all puts
+ * accumulated while previous write is in progress are written in single transaction.
+ * Infos are removed from pending ones only when transaction is committed, so infos of failed write are written
+ * again by next write. Pending writes are flushed on {@link #release()}.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
@@ -20,79 +36,226 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
 
     private static final String TABLE = "SourceInfo";
     private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_KEY = "key";
     private static final String COLUMN_URL = "url";
     private static final String COLUMN_LENGTH = "length";
     private static final String COLUMN_MIME = "mime";
-    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME};
+    private static final String COLUMN_ETAG = "etag";
+    private static final String COLUMN_LAST_MODIFIED = "lastModified";
+    private static final String[] ALL_COLUMNS = new String[]{COLUMN_ID, COLUMN_KEY, COLUMN_URL, COLUMN_LENGTH, COLUMN_MIME, COLUMN_ETAG, COLUMN_LAST_MODIFIED};
+    private static final String INDEX_URL = TABLE + "_" + COLUMN_URL;
+    private static final String INDEX_KEY = TABLE + "_" + COLUMN_KEY;
+    private static final int VERSION = 4;
+    private static final int MEMORY_CACHE_SIZE = 256;
+    private static final long RELEASE_TIMEOUT_SEC = 5;
     private static final String CREATE_SQL =
             "CREATE TABLE " + TABLE + " (" +
                     COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
+                    COLUMN_KEY + " TEXT," +
                     COLUMN_URL + " TEXT NOT NULL," +
                     COLUMN_MIME + " TEXT," +
-                    COLUMN_LENGTH + " INTEGER" +
+                    COLUMN_LENGTH + " INTEGER," +
+                    COLUMN_ETAG + " TEXT," +
+                    COLUMN_LAST_MODIFIED + " TEXT" +
                     ");";
+    private static final String[] MIGRATION_TO_2_SQL = new String[]{
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_ETAG + " TEXT;",
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_LAST_MODIFIED + " TEXT;"
+    };
+    private static final String CREATE_INDEX_SQL = "CREATE INDEX IF NOT EXISTS " + INDEX_URL + " ON " + TABLE + " (" + COLUMN_URL + ");";
+    // rows were keyed by url before, so url is the best known key for them
+    private static final String[] MIGRATION_TO_4_SQL = new String[]{
+            "ALTER TABLE " + TABLE + " ADD COLUMN " + COLUMN_KEY + " TEXT;",
+            "UPDATE " + TABLE + " SET " + COLUMN_KEY + "=" + COLUMN_URL + ";",
+            "DROP INDEX IF EXISTS " + INDEX_URL + ";"
+    };
+    private static final String CREATE_KEY_INDEX_SQL = "CREATE INDEX IF NOT EXISTS " + INDEX_KEY + " ON " + TABLE + " (" + COLUMN_KEY + ");";
+
+    private final ExecutorService         writer        = Executors.newSingleThreadExecutor();
+    private final Map<String, SourceInfo> pendingWrites = new LinkedHashMap<>();
+    private       boolean                 writeScheduled;
+    private final Map<String, SourceInfo> memoryCache   = new LinkedHashMap<String, SourceInfo>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SourceInfo> eldest) {
+            return size() > MEMORY_CACHE_SIZE;
+        }
+    };
 
     DatabaseSourceInfoStorage(Context context) {
-        super(context, "AndroidVideoCache.db", null, 1);
+        super(context, "AndroidVideoCache.db", null, VERSION);
         checkNotNull(context);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         checkNotNull(db);
         db.execSQL(CREATE_SQL);
+        db.execSQL(CREATE_KEY_INDEX_SQL);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Should not be called. There is no any migration");
+        if (oldVersion < 2) {
+            for (String sql : MIGRATION_TO_2_SQL) {
+                db.execSQL(sql);
+            }
+        }
+        if (oldVersion < 3) {
+            db.execSQL(CREATE_INDEX_SQL);
+        }
+        if (oldVersion < 4) {
+            for (String sql : MIGRATION_TO_4_SQL) {
+                db.execSQL(sql);
+            }
+            db.execSQL(CREATE_KEY_INDEX_SQL);
+        }
     }
 
     @Override
     public SourceInfo get(String url) {
         checkNotNull(url);
-        Cursor cursor = null;
-        try {
-            cursor = getReadableDatabase().query(TABLE, ALL_COLUMNS, COLUMN_URL + "=?", new String[]{url}, null, null, null);
-            return cursor == null || !cursor.moveToFirst() ? null : convert(cursor);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        synchronized (memoryCache) {
+            SourceInfo sourceInfo = memoryCache.get(url);
+            if (sourceInfo == null) {
+                sourceInfo = pendingWrites.get(url);
+            }
+            if (sourceInfo != null) {
+                return sourceInfo;
             }
         }
+        SourceInfo sourceInfo = query(url);
+        if (sourceInfo != null) {
+            synchronized (memoryCache) {
+                if (!memoryCache.containsKey(url) && !pendingWrites.containsKey(url)) {
+                    memoryCache.put(url, sourceInfo);
+                }
+            }
+        }
+        return sourceInfo;
     }
 
     @Override
     public void put(String url, SourceInfo sourceInfo) {
         checkAllNotNull(url, sourceInfo);
-        SourceInfo sourceInfoFromDb = get(url);
-        boolean exist = sourceInfoFromDb != null;
-        ContentValues contentValues = convert(sourceInfo);
-        if (exist) {
-            getWritableDatabase().update(TABLE, contentValues, COLUMN_URL + "=?", new String[]{url});
-        } else {
-            getWritableDatabase().insert(TABLE, null, contentValues);
+        boolean scheduleWrite;
+        synchronized (memoryCache) {
+            memoryCache.put(url, sourceInfo);
+            pendingWrites.put(url, sourceInfo);
+            scheduleWrite = !writeScheduled;
+            writeScheduled = true;
+        }
+        if (scheduleWrite) {
+            try {
+                writer.submit(new WriteRunnable());
+            } catch (RejectedExecutionException e) {
+                HttpProxyCacheDebuger.printfWarning("Source info for " + url + " is not saved, storage is released");
+            }
         }
     }
 
     @Override
     public void release() {
+        boolean scheduleWrite;
+        synchronized (memoryCache) {
+            scheduleWrite = !writeScheduled && !pendingWrites.isEmpty();
+            writeScheduled |= scheduleWrite;
+        }
+        if (scheduleWrite) {
+            try {
+                writer.submit(new WriteRunnable());
+            } catch (RejectedExecutionException e) {
+                HttpProxyCacheDebuger.printfWarning("Pending source infos are not saved, storage is already released");
+            }
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(RELEASE_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                HttpProxyCacheDebuger.printfWarning("Pending source infos are not saved in " + RELEASE_TIMEOUT_SEC + " sec");
+            }
+        } catch (InterruptedException e) {
+            HttpProxyCacheDebuger.printfWarning("Releasing source info storage is interrupted");
+        }
         close();
     }
 
+    private SourceInfo query(String key) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE, ALL_COLUMNS, COLUMN_KEY + "=?", new String[]{key}, null, null, null);
+            return cursor == null || !cursor.moveToFirst() ? null : convert(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void writePendingInfos() {
+        Map<String, SourceInfo> infos;
+        synchronized (memoryCache) {
+            writeScheduled = false;
+            infos = new LinkedHashMap<>(pendingWrites);
+        }
+        SQLiteDatabase database = getWritableDatabase();
+        database.beginTransaction();
+        try {
+            for (Map.Entry<String, SourceInfo> info : infos.entrySet()) {
+                String[] args = new String[]{info.getKey()};
+                ContentValues contentValues = convert(info.getKey(), info.getValue());
+                int updated = database.update(TABLE, contentValues, COLUMN_KEY + "=?", args);
+                if (updated == 0) {
+                    database.insert(TABLE, null, contentValues);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // infos of failed transaction stay pending and are written again by next put or on release
+        synchronized (memoryCache) {
+            for (Map.Entry<String, SourceInfo> info : infos.entrySet()) {
+                // remove only written infos, not the ones put again while writing
+                if (pendingWrites.get(info.getKey()) == info.getValue()) {
+                    pendingWrites.remove(info.getKey());
+                }
+            }
+        }
+    }
+
     private SourceInfo convert(Cursor cursor) {
         return new SourceInfo(
                 cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_URL)),
                 cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_LENGTH)),
-                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME))
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_ETAG)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_LAST_MODIFIED))
         );
     }
 
-    private ContentValues convert(SourceInfo sourceInfo) {
+    private final class WriteRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                writePendingInfos();
+            } catch (RuntimeException e) {
+                HttpProxyCacheDebuger.printfError("Error saving source infos", e);
+            }
+        }
+    }
+
+    private ContentValues convert(String key, SourceInfo sourceInfo) {
         ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, key);
         values.put(COLUMN_URL, sourceInfo.url);
         values.put(COLUMN_LENGTH, sourceInfo.length);
         values.put(COLUMN_MIME, sourceInfo.mime);
+        values.put(COLUMN_ETAG, sourceInfo.etag);
+        values.put(COLUMN_LAST_MODIFIED, sourceInfo.lastModified);
         return values;
     }
 }
@@ -0,0 +1,290 @@
+package com.danikula.videocache.sourcestorage;
+
+import com.danikula.videocache.HttpProxyCacheDebuger;
+import com.danikula.videocache.SourceInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceInfoStorage} based on append-only binary log file with in-memory index.
+ * <p>
+ * It is much cheaper to open than {@link DatabaseSourceInfoStorage}: file is not touched until first access,
+ * then it is read at once through memory-mapped buffer. Every {@link #put(String, SourceInfo)} appends single
+ * record to the log, so log is compacted in background when it contains too many outdated records. Compacted log
+ * is written from snapshot of index without blocking storage, records put meanwhile are appended to it before
+ * it replaces the log.
+ * <p>
+ * Every record is protected by checksum: torn or corrupted tail of log (e.g. after process kill while writing)
+ * is dropped on loading.
+ */
+class MappedSourceInfoStorage implements SourceInfoStorage {
+
+    private static final int MAGIC                   = 0x41564331; // "AVC1"
+    private static final int HEADER_SIZE             = 4;
+    private static final int RECORD_OVERHEAD         = 8; // length + checksum
+    private static final int COMPACTION_MIN_RECORDS  = 256;
+    private static final int COMPACTION_GARBAGE_RATE = 2;
+
+    private final File                    file;
+    private final Map<String, SourceInfo> index     = new HashMap<>();
+    private final ExecutorService         compactor = Executors.newSingleThreadExecutor();
+    private       RandomAccessFile        logFile;
+    private       int                     recordsCount;
+    private       boolean                 loaded;
+    private       boolean                 compactionScheduled;
+    private       Map<String, SourceInfo> putsWhileCompacting;
+
+    MappedSourceInfoStorage(File file) {
+        this.file = checkNotNull(file);
+    }
+
+    @Override
+    public synchronized SourceInfo get(String url) {
+        checkNotNull(url);
+        ensureLoaded();
+        return index.get(url);
+    }
+
+    @Override
+    public synchronized void put(String url, SourceInfo sourceInfo) {
+        checkAllNotNull(url, sourceInfo);
+        ensureLoaded();
+        index.put(url, sourceInfo);
+        if (putsWhileCompacting != null) {
+            putsWhileCompacting.put(url, sourceInfo);
+        }
+        if (logFile != null) {
+            try {
+                logFile.write(encode(url, sourceInfo));
+                recordsCount++;
+                scheduleCompactionIfNeeded();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error saving source info for " + url, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void release() {
+        compactor.shutdown();
+        closeLog();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Directory " + directory + " can't be created");
+            }
+            logFile = new RandomAccessFile(file, "rw");
+            long validLength = load(logFile.getChannel());
+            if (validLength < logFile.length()) {
+                HttpProxyCacheDebuger.printfWarning("Source info log " + file + " is truncated to " + validLength + " bytes");
+                logFile.setLength(validLength);
+            }
+            logFile.seek(validLength);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error loading source infos from " + file + ", they will not be persisted", e);
+            closeLog();
+        }
+    }
+
+    private long load(FileChannel channel) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer buffer = size < HEADER_SIZE ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (buffer == null || buffer.getInt() != MAGIC) {
+            logFile.setLength(0);
+            logFile.writeInt(MAGIC);
+            return HEADER_SIZE;
+        }
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int position = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining() - 4) {
+                return position;
+            }
+            byte[] record = new byte[length];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != buffer.getInt()) {
+                return position;
+            }
+            decode(record);
+            recordsCount++;
+        }
+        return buffer.position();
+    }
+
+    private void decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String key = in.readUTF();
+        String url = readString(in);
+        long length = in.readLong();
+        String mime = readString(in);
+        String etag = readString(in);
+        String lastModified = readString(in);
+        index.put(key, new SourceInfo(url, length, mime, etag, lastModified));
+    }
+
+    private byte[] encode(String key, SourceInfo sourceInfo) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeUTF(key);
+        writeString(record, sourceInfo.url);
+        record.writeLong(sourceInfo.length);
+        writeString(record, sourceInfo.mime);
+        writeString(record, sourceInfo.etag);
+        writeString(record, sourceInfo.lastModified);
+        byte[] payload = recordBytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteArrayOutputStream resultBytes = new ByteArrayOutputStream(payload.length + RECORD_OVERHEAD);
+        DataOutputStream result = new DataOutputStream(resultBytes);
+        result.writeInt(payload.length);
+        result.write(payload);
+        result.writeInt((int) crc.getValue());
+        return resultBytes.toByteArray();
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        boolean tooManyGarbage = recordsCount >= COMPACTION_MIN_RECORDS && recordsCount > index.size() * COMPACTION_GARBAGE_RATE;
+        if (tooManyGarbage && !compactionScheduled) {
+            try {
+                compactor.execute(new CompactionRunnable());
+                compactionScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // storage is released
+            }
+        }
+    }
+
+    private void compact() {
+        Map<String, SourceInfo> snapshot;
+        synchronized (this) {
+            compactionScheduled = false;
+            if (logFile == null) {
+                return;
+            }
+            snapshot = new HashMap<>(index);
+            putsWhileCompacting = new LinkedHashMap<>();
+        }
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            writeLog(tempFile, snapshot, false);
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error compacting source infos log " + file, e);
+            synchronized (this) {
+                putsWhileCompacting = null;
+            }
+            deleteTempFile(tempFile);
+            return;
+        }
+        replaceLog(tempFile, snapshot.size());
+    }
+
+    private synchronized void replaceLog(File tempFile, int compactedRecordsCount) {
+        Map<String, SourceInfo> lastPuts = putsWhileCompacting;
+        putsWhileCompacting = null;
+        if (logFile == null) { // storage is released
+            deleteTempFile(tempFile);
+            return;
+        }
+        try {
+            writeLog(tempFile, lastPuts, true);
+            closeLog();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Error renaming " + tempFile + " to " + file);
+            }
+            logFile = new RandomAccessFile(file, "rw");
+            logFile.seek(logFile.length());
+            recordsCount = compactedRecordsCount + lastPuts.size();
+        } catch (IOException e) {
+            HttpProxyCacheDebuger.printfError("Error compacting source infos log " + file, e);
+            closeLog();
+            loaded = false; // reload on next access
+            index.clear();
+            recordsCount = 0;
+        }
+    }
+
+    private void writeLog(File target, Map<String, SourceInfo> infos, boolean append) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(target, append);
+        OutputStream out = new BufferedOutputStream(fileOut);
+        try {
+            if (!append) {
+                new DataOutputStream(out).writeInt(MAGIC);
+            }
+            for (Map.Entry<String, SourceInfo> entry : infos.entrySet()) {
+                out.write(encode(entry.getKey(), entry.getValue()));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void deleteTempFile(File tempFile) {
+        if (tempFile.exists() && !tempFile.delete()) {
+            HttpProxyCacheDebuger.printfWarning("Error deleting " + tempFile);
+        }
+    }
+
+    private void closeLog() {
+        if (logFile != null) {
+            try {
+                logFile.close();
+            } catch (IOException e) {
+                HttpProxyCacheDebuger.printfError("Error closing source infos log " + file, e);
+            }
+            logFile = null;
+        }
+    }
+
+    private final class CompactionRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            compact();
+        }
+    }
+}
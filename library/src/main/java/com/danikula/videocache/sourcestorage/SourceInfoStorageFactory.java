@@ -2,6 +2,8 @@ package com.danikula.videocache.sourcestorage;
 
 import android.content.Context;
 
+import java.io.File;
+
 /**
  * Simple factory for {@link SourceInfoStorage}.
  *
@@ -13,6 +15,17 @@ public class SourceInfoStorageFactory {
         return new DatabaseSourceInfoStorage(context);
     }
 
+    /**
+     * Creates storage based on append-only memory-mapped log. It opens faster than default database based storage,
+     * so it suits apps sensitive to cold start time.
+     *
+     * @param context a context.
+     * @return a storage.
+     */
+    public static SourceInfoStorage newMappedSourceInfoStorage(Context context) {
+        return new MappedSourceInfoStorage(new File(context.getFilesDir(), "AndroidVideoCache.infos"));
+    }
+
     public static SourceInfoStorage newEmptySourceInfoStorage() {
         return new NoSourceInfoStorage();
     }
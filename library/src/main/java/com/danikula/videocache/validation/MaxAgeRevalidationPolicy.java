@@ -0,0 +1,43 @@
+package com.danikula.videocache.validation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RevalidationPolicy} that revalidates cached data if it was not revalidated for a while.
+ * <p>
+ * Revalidation times are kept in memory only, so every cached entry is revalidated once after app start.
+ * Use zero max age to revalidate data every time.
+ */
+public class MaxAgeRevalidationPolicy implements RevalidationPolicy {
+
+    private static final int MAX_TRACKED_ENTRIES = 1024;
+
+    private final long              maxAgeMs;
+    private final Map<String, Long> revalidationTimes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_ENTRIES;
+        }
+    };
+
+    public MaxAgeRevalidationPolicy(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("Max age must be non-negative number!");
+        }
+        this.maxAgeMs = unit.toMillis(maxAge);
+    }
+
+    @Override
+    public synchronized boolean shouldRevalidate(String cacheKey) {
+        Long revalidationTime = revalidationTimes.get(cacheKey);
+        return revalidationTime == null || System.currentTimeMillis() - revalidationTime >= maxAgeMs;
+    }
+
+    @Override
+    public synchronized void onRevalidated(String cacheKey) {
+        revalidationTimes.put(cacheKey, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,17 @@
+package com.danikula.videocache.validation;
+
+/**
+ * {@link RevalidationPolicy} that treats cached data as valid forever.
+ */
+public class NoRevalidationPolicy implements RevalidationPolicy {
+
+    @Override
+    public boolean shouldRevalidate(String cacheKey) {
+        return false;
+    }
+
+    @Override
+    public void onRevalidated(String cacheKey) {
+        // do nothing
+    }
+}
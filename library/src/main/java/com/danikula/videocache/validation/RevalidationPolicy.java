@@ -0,0 +1,25 @@
+package com.danikula.videocache.validation;
+
+/**
+ * Declares when fully cached data should be revalidated with origin (with help of conditional request with
+ * {@code If-None-Match}/{@code If-Modified-Since} headers) before using it.
+ */
+public interface RevalidationPolicy {
+
+    /**
+     * Checks whether cached data should be revalidated. Called on every {@code getProxyUrl} call,
+     * so it should be fast and must not do any I/O.
+     *
+     * @param cacheKey a key of cached data.
+     * @return {@code true} if data should be revalidated before using.
+     */
+    boolean shouldRevalidate(String cacheKey);
+
+    /**
+     * Notifies that cached data was revalidated, it doesn't matter data was actual or not.
+     *
+     * @param cacheKey a key of cached data.
+     */
+    void onRevalidated(String cacheKey);
+
+}
@@ -0,0 +1,73 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link BufferPool} and {@link AdaptiveBuffer}.
+ */
+public class BufferPoolTest extends BaseTest {
+
+    @Test
+    public void testBufferSizesArePowersOfTwoWithinLimits() throws Exception {
+        BufferPool pool = new BufferPool(8 * 1024, 200 * 1024);
+        assertThat(pool.acquire(1).length).isEqualTo(8 * 1024);
+        assertThat(pool.acquire(10 * 1024).length).isEqualTo(16 * 1024);
+        assertThat(pool.acquire(1024 * 1024).length).isEqualTo(256 * 1024);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4096);
+        byte[] buffer = pool.acquire(1024);
+        pool.release(buffer);
+        assertThat(pool.acquire(1024)).isSameAs(buffer);
+        assertThat(pool.acquire(1024)).isNotSameAs(buffer);
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4096, 2048);
+        byte[] first = pool.acquire(1024);
+        byte[] second = pool.acquire(1024);
+        byte[] third = pool.acquire(1024);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertThat(pool.getStats().pooledBytes).isEqualTo(2048);
+    }
+
+    @Test
+    public void testHitRate() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4096);
+        assertThat(pool.getStats().getHitRate()).isEqualTo(0f);
+
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        BufferPoolStats stats = pool.getStats();
+        assertThat(stats.hits).isEqualTo(3);
+        assertThat(stats.misses).isEqualTo(1);
+        assertThat(stats.getHitRate()).isEqualTo(0.75f);
+    }
+
+    @Test
+    public void testAdaptiveBufferGrowsAndShrinks() throws Exception {
+        BufferPool pool = new BufferPool(1024, 4096);
+        AdaptiveBuffer buffer = new AdaptiveBuffer(pool);
+        assertThat(buffer.array().length).isEqualTo(1024);
+
+        for (int i = 0; i < 100; i++) {
+            buffer.onRead(buffer.array().length);
+        }
+        assertThat(buffer.array().length).isEqualTo(4096);
+
+        for (int i = 0; i < 100; i++) {
+            buffer.onRead(10);
+        }
+        assertThat(buffer.array().length).isEqualTo(1024);
+        buffer.release();
+    }
+}
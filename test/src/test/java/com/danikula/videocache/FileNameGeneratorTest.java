@@ -2,11 +2,16 @@ package com.danikula.videocache;
 
 import com.danikula.videocache.file.FileNameGenerator;
 import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.MigratingFileNameGenerator;
+import com.danikula.videocache.file.Murmur3FileNameGenerator;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 
 import org.junit.Test;
 
 import java.io.File;
 
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Assertions.fail;
 
@@ -65,6 +70,90 @@ public class FileNameGeneratorTest extends BaseTest {
         fail("Url should be not null");
     }
 
+    @Test
+    public void testMd5HexEncoding() throws Exception {
+        assertThat(ProxyCacheUtils.computeMD5("")).isEqualTo("d41d8cd98f00b204e9800998ecf8427e");
+        assertThat(ProxyCacheUtils.computeMD5("abc")).isEqualTo("900150983cd24fb0d6963f7d28e17f72");
+    }
+
+    @Test
+    public void testMurmur3MatchesReferenceImplementation() throws Exception {
+        StringBuilder url = new StringBuilder("http://host.com/");
+        for (int i = 0; i < 64; i++) { // cover all tail lengths
+            String value = url.toString();
+            String expected = Hashing.murmur3_128().hashString(value, Charsets.UTF_8).toString();
+            assertThat(ProxyCacheUtils.computeMurmur3(value)).isEqualTo(expected);
+            url.append((char) ('a' + i % 26));
+        }
+        String unicode = "http://host.com/\u0432\u0438\u0434\u0435\u043e.mp4";
+        assertThat(ProxyCacheUtils.computeMurmur3(unicode)).isEqualTo(Hashing.murmur3_128().hashString(unicode, Charsets.UTF_8).toString());
+    }
+
+    @Test
+    public void testMurmur3Name() throws Exception {
+        String url = "http://host.com/videos/video.mpeg";
+        String name = new Murmur3FileNameGenerator().generate(url);
+        assertThat(name).isEqualTo(ProxyCacheUtils.computeMurmur3(url) + ".mpeg");
+    }
+
+    @Test
+    public void testMigrateLegacyFile() throws Exception {
+        File directory = newCacheFile();
+        assertThat(directory.mkdirs()).isTrue();
+        String url = "http://host.com/videos/video.mpeg";
+        File legacyFile = new File(directory, new Md5FileNameGenerator().generate(url));
+        assertThat(legacyFile.createNewFile()).isTrue();
+
+        FileNameGenerator generator = new MigratingFileNameGenerator(directory, new Murmur3FileNameGenerator(), new Md5FileNameGenerator());
+        String name = generator.generate(url);
+
+        assertThat(name).isEqualTo(new Murmur3FileNameGenerator().generate(url));
+        assertThat(new File(directory, name)).exists();
+        assertThat(legacyFile).doesNotExist();
+    }
+
+    @Test
+    public void testMigrateLegacyTempFile() throws Exception {
+        File directory = newCacheFile();
+        assertThat(directory.mkdirs()).isTrue();
+        String url = "http://host.com/video";
+        File legacyTempFile = new File(directory, new Md5FileNameGenerator().generate(url) + ".download");
+        assertThat(legacyTempFile.createNewFile()).isTrue();
+
+        FileNameGenerator generator = new MigratingFileNameGenerator(directory, new Murmur3FileNameGenerator(), new Md5FileNameGenerator());
+        String name = generator.generate(url);
+
+        assertThat(new File(directory, name)).doesNotExist();
+        assertThat(new File(directory, name + ".download")).exists();
+        assertThat(legacyTempFile).doesNotExist();
+    }
+
+    @Test
+    public void testLegacyNameIsLookedUpOncePerEntry() throws Exception {
+        File directory = newCacheFile();
+        assertThat(directory.mkdirs()).isTrue();
+        String url = "http://host.com/video.mp4";
+        final int[] legacyGenerations = {0};
+        FileNameGenerator legacyGenerator = new Md5FileNameGenerator() {
+
+            @Override
+            public String generate(String url) {
+                legacyGenerations[0]++;
+                return super.generate(url);
+            }
+        };
+
+        FileNameGenerator generator = new MigratingFileNameGenerator(directory, new Murmur3FileNameGenerator(), legacyGenerator);
+        String name = generator.generate(url);
+        generator.generate(url);
+
+        assertThat(legacyGenerations[0]).isEqualTo(1);
+        assertThat(new File(directory, name).createNewFile()).isTrue();
+        generator.generate("http://host.com/another.mp4");
+        new MigratingFileNameGenerator(directory, new Murmur3FileNameGenerator(), legacyGenerator).generate(url);
+        assertThat(legacyGenerations[0]).isEqualTo(2); // not looked up for existing file
+    }
+
     private String generateMd5Name(String rootFolder, String url) {
         FileNameGenerator nameGenerator = new Md5FileNameGenerator();
         String name = nameGenerator.generate(url);
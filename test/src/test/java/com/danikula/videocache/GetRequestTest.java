@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Assertions.fail;
@@ -36,6 +37,15 @@ public class GetRequestTest extends BaseTest {
         assertThat(getRequest.partial).isFalse();
     }
 
+    @Test
+    public void testPrefetchRequest() throws Exception {
+        GetRequest playerRequest = new GetRequest("GET /uri HTTP/1.1\r\nHost: 127.0.0.1:44684\r\n");
+        GetRequest prefetchRequest = new GetRequest("GET /uri HTTP/1.1\r\nHost: 127.0.0.1:44684\r\n" +
+                "x-videocache-prefetch: 1\r\n");
+        assertThat(playerRequest.prefetch).isFalse();
+        assertThat(prefetchRequest.prefetch).isTrue();
+    }
+
     @Test
     public void testReadStream() throws Exception {
         String requestString = "GET /uri HTTP/1.1\nRange: bytes=9860723-\n";
@@ -46,6 +56,33 @@ public class GetRequestTest extends BaseTest {
         assertThat(getRequest.partial).isTrue();
     }
 
+    @Test
+    public void testReadStreamUntilHeadersEnd() throws Exception {
+        String requestString = "GET /uri HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\nRange: bytes=9860723-\r\n";
+        InputStream stream = new ByteArrayInputStream(requestString.getBytes());
+        GetRequest getRequest = GetRequest.read(stream);
+        assertThat(getRequest.uri).isEqualTo("uri");
+        assertThat(getRequest.partial).isFalse();
+    }
+
+    @Test
+    public void testReadStreamWithLongHeaders() throws Exception {
+        String requestString = "GET /uri HTTP/1.1\r\nCookie: " + repeat('c', 20 * 1024) + "\r\n" +
+                "Range: bytes=9860723-\r\n\r\n";
+        InputStream stream = new ByteArrayInputStream(requestString.getBytes());
+        GetRequest getRequest = GetRequest.read(stream);
+        assertThat(getRequest.uri).isEqualTo("uri");
+        assertThat(getRequest.rangeOffset).isEqualTo(9860723);
+    }
+
+    @Test(expected = RequestHeadersTooLargeException.class)
+    public void testReadStreamWithTooLargeHeaders() throws Exception {
+        String requestString = "GET /uri HTTP/1.1\r\nCookie: " + repeat('c', GetRequest.MAX_HEADERS_SIZE) + "\r\n" +
+                "Range: bytes=9860723-\r\n\r\n";
+        GetRequest.read(new ByteArrayInputStream(requestString.getBytes()));
+        fail("Truncated request must not be parsed");
+    }
+
     @Test
     public void testMinimal() throws Exception {
         GetRequest getRequest = new GetRequest("GET /uri HTTP/1.1");
@@ -66,4 +103,9 @@ public class GetRequestTest extends BaseTest {
         fail("Invalid request");
     }
 
+    private String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
 }
@@ -0,0 +1,197 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.CacheIndex;
+import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.FlushPolicy;
+import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.UnlimitedDiskUsage;
+import com.danikula.videocache.headers.EmptyHeadersInjector;
+import com.danikula.videocache.key.UrlCacheKeyExtractor;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.support.HttpServerStub;
+import com.danikula.videocache.support.HttpServerStub.RecordedRequest;
+import com.danikula.videocache.support.HttpServerStub.StubResponse;
+import com.danikula.videocache.validation.NoRevalidationPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.getFileContent;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link HlsPlaylistProxy}.
+ */
+public class HlsPlaylistProxyTest extends BaseTest {
+
+    private static final String MASTER_PLAYLIST = "#EXTM3U\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=800000\n" +
+            "low/media.m3u8\n";
+    private static final String MEDIA_PLAYLIST = "#EXTM3U\n" +
+            "#EXT-X-TARGETDURATION:10\n" +
+            "#EXTINF:10,\nseg0.ts\n" +
+            "#EXTINF:10,\nseg1.ts\n" +
+            "#EXTINF:10,\nseg2.ts\n" +
+            "#EXTINF:10,\nseg3.ts\n" +
+            "#EXT-X-ENDLIST\n";
+
+    private HttpServerStub origin;
+    private HttpServerStub proxyStub;
+    private File           cacheRoot;
+    private String         masterUrl;
+    private String         mediaUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        origin = new HttpServerStub();
+        proxyStub = new HttpServerStub(); // receives prefetching requests addressed to proxy
+        cacheRoot = newCacheFile();
+        masterUrl = origin.url("/master.m3u8");
+        mediaUrl = origin.url("/low/media.m3u8");
+        origin.setResponse("/master.m3u8", playlistResponse(MASTER_PLAYLIST));
+        origin.setResponse("/low/media.m3u8", playlistResponse(MEDIA_PLAYLIST));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        origin.shutdown();
+        proxyStub.shutdown();
+    }
+
+    @Test
+    public void testPlaylistUrlsAreRewritten() throws Exception {
+        Config config = newConfig(0);
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(config, "127.0.0.1", proxyStub.getPort());
+
+        String response = request(proxy, masterUrl);
+
+        assertThat(response).startsWith("HTTP/1.1 200 OK");
+        assertThat(response).contains("Content-Type: " + HlsPlaylist.MIME);
+        assertThat(response).contains(toProxyUrl(mediaUrl));
+        assertThat(response).doesNotContain("\nlow/media.m3u8");
+        assertThat(config.findCompletedFile(masterUrl)).isNotNull();
+    }
+
+    @Test
+    public void testCompletedPlaylistIsServedFromCache() throws Exception {
+        Config config = newConfig(0);
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(config, "127.0.0.1", proxyStub.getPort());
+        request(proxy, mediaUrl);
+        origin.shutdown();
+
+        String response = request(proxy, mediaUrl);
+
+        assertThat(response).startsWith("HTTP/1.1 200 OK");
+        assertThat(response).contains(toProxyUrl(origin.url("/low/seg3.ts")));
+    }
+
+    @Test
+    public void testLeftoverOfInterruptedSavingIsDiscarded() throws Exception {
+        Config config = newConfig(0);
+        FileCache leftover = new FileCache(config.generateCacheFile(mediaUrl));
+        byte[] staleContent = "#EXTM3U\nstale".getBytes("UTF-8");
+        leftover.append(staleContent, staleContent.length);
+        leftover.close();
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(config, "127.0.0.1", proxyStub.getPort());
+
+        request(proxy, mediaUrl);
+
+        File completedFile = config.findCompletedFile(mediaUrl);
+        assertThat(completedFile).isNotNull();
+        assertThat(new String(getFileContent(completedFile), "UTF-8")).isEqualTo(MEDIA_PLAYLIST);
+    }
+
+    @Test
+    public void testSegmentsAreGroupedUnderMasterPlaylist() throws Exception {
+        Config config = newConfig(0);
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(config, "127.0.0.1", proxyStub.getPort());
+        request(proxy, masterUrl);
+        request(proxy, mediaUrl);
+
+        String segmentUrl = origin.url("/low/seg1.ts");
+        proxy.onSegmentRequested(segmentUrl, false);
+
+        CacheIndex index = CacheIndex.of(cacheRoot);
+        File masterFile = config.generateCacheFile(masterUrl);
+        assertThat(index.getGroup(config.generateCacheFile(mediaUrl))).isEqualTo(masterFile);
+        assertThat(index.getGroup(config.generateCacheFile(segmentUrl))).isEqualTo(masterFile);
+        assertThat(index.getGroup(config.generateCacheFile(origin.url("/other.ts")))).isNull();
+    }
+
+    @Test
+    public void testNextSegmentsArePrefetched() throws Exception {
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(newConfig(2), "127.0.0.1", proxyStub.getPort());
+        request(proxy, mediaUrl);
+
+        proxy.onSegmentRequested(origin.url("/low/seg0.ts"), false);
+
+        RecordedRequest first = proxyStub.takeRequest();
+        RecordedRequest second = proxyStub.takeRequest();
+        assertThat(first.path).isEqualTo("/" + ProxyCacheUtils.encode(origin.url("/low/seg1.ts")));
+        assertThat(second.path).isEqualTo("/" + ProxyCacheUtils.encode(origin.url("/low/seg2.ts")));
+        assertThat(first.getHeader(GetRequest.PREFETCH_HEADER)).isEqualTo("1");
+        proxy.shutdown();
+    }
+
+    @Test
+    public void testPrefetchingRequestIsGroupedButNotPrefetchedFurther() throws Exception {
+        Config config = newConfig(1);
+        HlsPlaylistProxy proxy = new HlsPlaylistProxy(config, "127.0.0.1", proxyStub.getPort());
+        request(proxy, masterUrl);
+        request(proxy, mediaUrl);
+
+        String prefetchedUrl = origin.url("/low/seg1.ts");
+        proxy.onSegmentRequested(prefetchedUrl, true);
+        proxy.onSegmentRequested(origin.url("/low/seg2.ts"), false);
+
+        RecordedRequest request = proxyStub.takeRequest();
+        assertThat(request.path).isEqualTo("/" + ProxyCacheUtils.encode(origin.url("/low/seg3.ts")));
+        File group = CacheIndex.of(cacheRoot).getGroup(config.generateCacheFile(prefetchedUrl));
+        assertThat(group).isEqualTo(config.generateCacheFile(masterUrl));
+        proxy.shutdown();
+    }
+
+    private Config newConfig(int prefetchCount) {
+        return new Config(cacheRoot, new Md5FileNameGenerator(), new UnlimitedDiskUsage(), null, null,
+                SourceInfoStorageFactory.newEmptySourceInfoStorage(), new EmptyHeadersInjector(),
+                new UrlCacheKeyExtractor(), new NoRevalidationPolicy(), ResolvedUrlCache.DEFAULT_TTL,
+                BufferPool.getDefault(), FlushPolicy.newDefault(), false, false, prefetchCount);
+    }
+
+    private String toProxyUrl(String url) {
+        return "http://127.0.0.1:" + proxyStub.getPort() + "/" + ProxyCacheUtils.encode(url);
+    }
+
+    private StubResponse playlistResponse(String playlist) {
+        return new StubResponse(200).setHeader("Content-Type", HlsPlaylist.MIME).setBody(playlist);
+    }
+
+    private String request(HlsPlaylistProxy proxy, String url) throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept();
+        try {
+            proxy.processRequest(url, socket);
+        } finally {
+            socket.close();
+            serverSocket.close();
+        }
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int readBytes;
+        while ((readBytes = in.read(buffer)) != -1) {
+            out.write(buffer, 0, readBytes);
+        }
+        client.close();
+        return out.toString("UTF-8");
+    }
+}
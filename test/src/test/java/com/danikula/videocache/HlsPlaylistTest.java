@@ -0,0 +1,91 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link HlsPlaylist}.
+ */
+public class HlsPlaylistTest extends BaseTest {
+
+    private static final HlsPlaylist.UrlRewriter PROXY_REWRITER = new HlsPlaylist.UrlRewriter() {
+
+        @Override
+        public String rewrite(String url) {
+            return "proxy/" + url;
+        }
+    };
+
+    @Test
+    public void testMasterPlaylist() throws Exception {
+        HlsPlaylist playlist = new HlsPlaylist("" +
+                "#EXTM3U\n" +
+                "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"en\",URI=\"audio/en.m3u8\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=1280000,AUDIO=\"aac\"\n" +
+                "low/index.m3u8\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=2560000,AUDIO=\"aac\"\n" +
+                "http://cdn.com/high/index.m3u8\n", "http://site.com/video/master.m3u8?token=1");
+
+        assertThat(playlist.isMaster()).isTrue();
+        assertThat(playlist.isComplete()).isTrue();
+        assertThat(playlist.getSegmentUrls()).isEmpty();
+        assertThat(playlist.getPlaylistUrls()).containsExactly("http://site.com/video/audio/en.m3u8",
+                "http://site.com/video/low/index.m3u8", "http://cdn.com/high/index.m3u8");
+        assertThat(playlist.rewrite(PROXY_REWRITER)).isEqualTo("" +
+                "#EXTM3U\n" +
+                "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"en\",URI=\"proxy/http://site.com/video/audio/en.m3u8\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=1280000,AUDIO=\"aac\"\n" +
+                "proxy/http://site.com/video/low/index.m3u8\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=2560000,AUDIO=\"aac\"\n" +
+                "proxy/http://cdn.com/high/index.m3u8\n");
+    }
+
+    @Test
+    public void testMediaPlaylist() throws Exception {
+        HlsPlaylist playlist = new HlsPlaylist("" +
+                "#EXTM3U\r\n" +
+                "#EXT-X-TARGETDURATION:10\r\n" +
+                "#EXT-X-MEDIA-SEQUENCE:0\r\n" +
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"/keys/1\"\r\n" +
+                "#EXT-X-MAP:URI=\"init.mp4\"\r\n" +
+                "#EXTINF:10.0,\r\n" +
+                "seg0.m4s\r\n" +
+                "#EXTINF:10.0,\r\n" +
+                "seg1.m4s\r\n" +
+                "#EXT-X-ENDLIST\r\n", "http://site.com/video/low/index.m3u8");
+
+        assertThat(playlist.isMaster()).isFalse();
+        assertThat(playlist.isComplete()).isTrue();
+        assertThat(playlist.getSegmentUrls()).containsExactly("http://site.com/video/low/init.mp4",
+                "http://site.com/video/low/seg0.m4s", "http://site.com/video/low/seg1.m4s");
+        assertThat(playlist.rewrite(PROXY_REWRITER)).isEqualTo("" +
+                "#EXTM3U\n" +
+                "#EXT-X-TARGETDURATION:10\n" +
+                "#EXT-X-MEDIA-SEQUENCE:0\n" +
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"http://site.com/keys/1\"\n" +
+                "#EXT-X-MAP:URI=\"proxy/http://site.com/video/low/init.mp4\"\n" +
+                "#EXTINF:10.0,\n" +
+                "proxy/http://site.com/video/low/seg0.m4s\n" +
+                "#EXTINF:10.0,\n" +
+                "proxy/http://site.com/video/low/seg1.m4s\n" +
+                "#EXT-X-ENDLIST\n");
+    }
+
+    @Test
+    public void testLivePlaylistIsNotComplete() throws Exception {
+        HlsPlaylist playlist = new HlsPlaylist("#EXTM3U\n#EXTINF:6.0,\nseg100.ts\n", "http://site.com/live.m3u8");
+
+        assertThat(playlist.isComplete()).isFalse();
+        assertThat(playlist.getSegmentUrls()).containsExactly("http://site.com/seg100.ts");
+    }
+
+    @Test
+    public void testPlaylistDetection() throws Exception {
+        assertThat(HlsPlaylist.isPlaylistUrl("http://site.com/master.m3u8")).isTrue();
+        assertThat(HlsPlaylist.isPlaylistUrl("http://site.com/Master.M3U8?token=a.mp4")).isTrue();
+        assertThat(HlsPlaylist.isPlaylistUrl("http://site.com/video.mp4?list=a.m3u8")).isFalse();
+        assertThat(HlsPlaylist.isPlaylist("#EXTM3U\n")).isTrue();
+        assertThat(HlsPlaylist.isPlaylist("<html>")).isFalse();
+    }
+}
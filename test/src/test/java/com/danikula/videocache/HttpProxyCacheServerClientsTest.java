@@ -0,0 +1,58 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.HttpProxyCacheServerClients.UiListenerHandler;
+
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Tests dispatching of cache events to listeners by {@link HttpProxyCacheServerClients}.
+ */
+public class HttpProxyCacheServerClientsTest extends BaseTest {
+
+    private static final String URL = "http://host.com/video.mp4";
+
+    @Test
+    public void testPercentsAreDispatchedToAllListeners() throws Exception {
+        CacheListener listener = mock(CacheListener.class);
+        MediaCacheListener mediaListener = mock(MediaCacheListener.class);
+        UiListenerHandler handler = newHandler(listener, mediaListener);
+        File file = new File("video.mp4");
+
+        handler.onCacheAvailable(file, "ignored", 42);
+        ShadowLooper.idleMainLooper();
+
+        verify(listener).onCacheAvailable(file, URL, 42);
+        verify(mediaListener).onCacheAvailable(file, URL, 42);
+        verify(mediaListener, never()).onCachedDurationAvailable(any(File.class), anyString(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testDurationIsDispatchedToMediaListenersOnly() throws Exception {
+        CacheListener listener = mock(CacheListener.class);
+        MediaCacheListener mediaListener = mock(MediaCacheListener.class);
+        UiListenerHandler handler = newHandler(listener, mediaListener);
+        File file = new File("video.mp4");
+
+        handler.onCachedDurationAvailable(file, "ignored", 15, 60);
+        ShadowLooper.idleMainLooper();
+
+        verify(mediaListener).onCachedDurationAvailable(file, URL, 15, 60);
+        verify(mediaListener, never()).onCacheAvailable(any(File.class), anyString(), anyInt());
+        verify(listener, never()).onCacheAvailable(any(File.class), anyString(), anyInt());
+    }
+
+    private UiListenerHandler newHandler(CacheListener... listeners) {
+        return new UiListenerHandler(URL, Arrays.asList(listeners));
+    }
+}
@@ -4,6 +4,7 @@ import android.net.Uri;
 import android.util.Pair;
 
 import com.danikula.android.garden.io.IoUtils;
+import com.danikula.videocache.file.CacheIndex;
 import com.danikula.videocache.file.FileNameGenerator;
 import com.danikula.videocache.file.Md5FileNameGenerator;
 import com.danikula.videocache.headers.HeaderInjector;
@@ -18,6 +19,7 @@ import org.robolectric.RuntimeEnvironment;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.android.garden.io.Files.cleanDirectory;
 import static com.danikula.android.garden.io.Files.createDirectory;
@@ -303,6 +305,24 @@ public class HttpProxyCacheServerTest extends BaseTest {
         proxy.shutdown();
     }
 
+    @Test
+    public void testTtlIsAppliedToDataCachedAgainAfterExpiration() throws Exception {
+        File cachedFile = file(cacheFolder, HTTP_DATA_URL);
+        IoUtils.saveToFile(ProxyCacheTestUtils.generate(1000), cachedFile);
+        CacheIndex index = CacheIndex.of(cacheFolder);
+        index.expireAt(cachedFile, System.currentTimeMillis() - 1000);
+        HttpProxyCacheServer proxy = newProxy(cacheFolder);
+
+        String proxyUrl = proxy.getProxyUrl(HTTP_DATA_URL, 300, TimeUnit.MILLISECONDS);
+
+        assertThat(proxyUrl).startsWith("http://127.0.0.1");
+        assertThat(cachedFile).doesNotExist();
+        assertThat(index.isExpired(cachedFile)).isFalse();
+        Thread.sleep(500);
+        assertThat(index.isExpired(cachedFile)).isTrue();
+        proxy.shutdown();
+    }
+
     @Test
     public void testTrimFileCacheForTotalCountLru() throws Exception {
         FileNameGenerator fileNameGenerator = new Md5FileNameGenerator();
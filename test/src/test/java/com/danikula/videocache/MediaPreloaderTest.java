@@ -0,0 +1,99 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.FlushPolicy;
+import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.UnlimitedDiskUsage;
+import com.danikula.videocache.headers.EmptyHeadersInjector;
+import com.danikula.videocache.key.UrlCacheKeyExtractor;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.support.HttpServerStub;
+import com.danikula.videocache.support.HttpServerStub.RecordedRequest;
+import com.danikula.videocache.support.HttpServerStub.StubResponse;
+import com.danikula.videocache.validation.NoRevalidationPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link MediaPreloader}. Stub server plays role of proxy media is read through.
+ */
+public class MediaPreloaderTest extends BaseTest {
+
+    private static final String URL = "http://host.com/video.mp4";
+
+    private HttpServerStub proxyStub;
+    private Config         config;
+    private MediaPreloader preloader;
+
+    @Before
+    public void setUp() throws Exception {
+        proxyStub = new HttpServerStub();
+        config = new Config(newCacheFile(), new Md5FileNameGenerator(), new UnlimitedDiskUsage(), null, null,
+                SourceInfoStorageFactory.newEmptySourceInfoStorage(), new EmptyHeadersInjector(),
+                new UrlCacheKeyExtractor(), new NoRevalidationPolicy(), ResolvedUrlCache.DEFAULT_TTL,
+                BufferPool.getDefault(), FlushPolicy.newDefault(), false, false, 0);
+        preloader = new MediaPreloader(config, "127.0.0.1", proxyStub.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        preloader.shutdown();
+        proxyStub.shutdown();
+    }
+
+    @Test
+    public void testPreloadBudget() throws Exception {
+        long defaultBytesPerSecond = MediaPreloader.DEFAULT_BITRATE / 8;
+
+        assertThat(MediaPreloader.getBudget(10000000, 100000, 5)).isEqualTo(500000);
+        assertThat(MediaPreloader.getBudget(10000000, 100000, 500)).isEqualTo(10000000);
+        assertThat(MediaPreloader.getBudget(10000000, -1, 5)).isEqualTo(defaultBytesPerSecond * 5);
+        assertThat(MediaPreloader.getBudget(-1, 100000, 5)).isEqualTo(defaultBytesPerSecond * 5);
+    }
+
+    @Test
+    public void testPreloadingStopsAtBudget() throws Exception {
+        int sourceLength = 4 * 1024 * 1024;
+        proxyStub.enqueue(new StubResponse(200).setHeader("Content-Type", "video/mp4").setBody(generate(sourceLength)));
+        config.setDurationHint(URL, 100 * 1000);
+
+        long preloaded = preloader.preloadMedia(URL, 10);
+
+        long budget = MediaPreloader.getBudget(sourceLength, 100 * 1000, 10);
+        assertThat(preloaded).isGreaterThanOrEqualTo(budget);
+        assertThat(preloaded).isLessThan(budget + BufferPool.DEFAULT_MAX_BUFFER_SIZE);
+        RecordedRequest request = proxyStub.takeRequest();
+        assertThat(request.path).isEqualTo("/" + ProxyCacheUtils.encode(URL));
+        assertThat(request.getHeader(GetRequest.PREFETCH_HEADER)).isEqualTo("1");
+    }
+
+    @Test
+    public void testShortMediaIsPreloadedEntirely() throws Exception {
+        proxyStub.enqueue(new StubResponse(200).setHeader("Content-Type", "video/mp4").setBody(generate(1000)));
+
+        assertThat(preloader.preloadMedia(URL, 10)).isEqualTo(1000);
+    }
+
+    @Test
+    public void testCompletedUrlIsSkipped() throws Exception {
+        FileCache cache = new FileCache(config.generateCacheFile(URL));
+        cache.append(generate(1000), 1000);
+        cache.complete();
+        cache.close();
+        String notCachedUrl = "http://host.com/another.mp4";
+        proxyStub.setResponse("/" + ProxyCacheUtils.encode(notCachedUrl), new StubResponse(200).setBody(generate(1000)));
+
+        preloader.preload(URL, 10);
+        preloader.preload(notCachedUrl, 10);
+
+        // preloads are performed one by one, so the first request would be for completed url if it is not skipped
+        RecordedRequest request = proxyStub.takeRequest();
+        assertThat(request.path).isEqualTo("/" + ProxyCacheUtils.encode(notCachedUrl));
+    }
+}
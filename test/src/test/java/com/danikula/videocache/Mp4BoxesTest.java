@@ -0,0 +1,119 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link Mp4Boxes}.
+ */
+public class Mp4BoxesTest extends BaseTest {
+
+    @Test
+    public void testTrailingIndexIsFound() throws Exception {
+        byte[] head = boxes("ftyp", 24, "free", 8, "mdat", 100000);
+        long sourceLength = 24 + 8 + 100000 + 5000;
+
+        assertThat(Mp4Boxes.findTailOffset(head, head.length, sourceLength)).isEqualTo(24 + 8 + 100000);
+    }
+
+    @Test
+    public void testLeadingIndexIsNotPrefetched() throws Exception {
+        byte[] head = boxes("ftyp", 24, "moov", 5000, "mdat", 100000);
+
+        assertThat(Mp4Boxes.findTailOffset(head, head.length, 105024)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testLargeMediaDataBox() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBox(out, "ftyp", 24);
+        out.writeInt(1);
+        out.writeBytes("mdat");
+        out.writeLong(5000000000L);
+        byte[] head = bytes.toByteArray();
+
+        assertThat(Mp4Boxes.findTailOffset(head, head.length, 5000100000L)).isEqualTo(24 + 5000000000L);
+    }
+
+    @Test
+    public void testNotMp4OrTruncatedHead() throws Exception {
+        byte[] notMp4 = boxes("RIFF", 24, "mdat", 100000);
+        byte[] truncated = boxes("ftyp", 24, "free", 70000, "mdat", 100000);
+        byte[] lastBox = boxes("ftyp", 24, "mdat", 0);
+
+        assertThat(Mp4Boxes.findTailOffset(notMp4, notMp4.length, 200000)).isEqualTo(-1);
+        assertThat(Mp4Boxes.findTailOffset(truncated, Mp4TailPrefetcher.HEAD_SIZE, 200000)).isEqualTo(-1);
+        assertThat(Mp4Boxes.findTailOffset(lastBox, lastBox.length, 200000)).isEqualTo(-1);
+    }
+
+    @Test
+    public void testDurationIsFoundInMovieHeader() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBox(out, "ftyp", 24);
+        out.writeInt(8 + 8 + 108);
+        out.writeBytes("moov");
+        writeBox(out, "iods", 8);
+        out.writeInt(108);
+        out.writeBytes("mvhd");
+        out.writeInt(0); // version and flags
+        out.writeInt(0); // creation time
+        out.writeInt(0); // modification time
+        out.writeInt(600); // time scale
+        out.writeInt(600 * 95 + 300); // duration
+        out.write(new byte[80]);
+        byte[] head = bytes.toByteArray();
+
+        assertThat(Mp4Boxes.findDuration(head, head.length)).isEqualTo(95500);
+        assertThat(Mp4Boxes.findDuration(head, head.length - 84)).isEqualTo(-1); // truncated header
+    }
+
+    @Test
+    public void testDurationOfVersion1MovieHeader() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBox(out, "ftyp", 24);
+        out.writeInt(8 + 120);
+        out.writeBytes("moov");
+        out.writeInt(120);
+        out.writeBytes("mvhd");
+        out.writeInt(1 << 24); // version 1
+        out.writeLong(0); // creation time
+        out.writeLong(0); // modification time
+        out.writeInt(1000); // time scale
+        out.writeLong(7200000L); // duration
+        out.write(new byte[80]);
+        byte[] head = bytes.toByteArray();
+
+        assertThat(Mp4Boxes.findDuration(head, head.length)).isEqualTo(7200000L);
+    }
+
+    @Test
+    public void testDurationOfTrailingIndexIsUnknown() throws Exception {
+        byte[] head = boxes("ftyp", 24, "mdat", 100000);
+
+        assertThat(Mp4Boxes.findDuration(head, head.length)).isEqualTo(-1);
+    }
+
+    private byte[] boxes(Object... typesAndSizes) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < typesAndSizes.length; i += 2) {
+            writeBox(out, (String) typesAndSizes[i], (Integer) typesAndSizes[i + 1]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeBox(DataOutputStream out, String type, int size) throws Exception {
+        out.writeInt(size);
+        out.writeBytes(type);
+        if (!"mdat".equals(type)) {
+            out.write(new byte[Math.max(0, size - 8)]); // headers of media data are enough for parsing
+        }
+    }
+}
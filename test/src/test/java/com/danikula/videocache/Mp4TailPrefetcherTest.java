@@ -0,0 +1,65 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.TailCache;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link Mp4TailPrefetcher}.
+ */
+public class Mp4TailPrefetcherTest extends BaseTest {
+
+    @Test
+    public void testTailOfSameVersionIsUsed() throws Exception {
+        File file = newCacheFile();
+        Mp4TailPrefetcher prefetcher = newPrefetcher(file, "\"v1\"");
+
+        assertThat(prefetcher.isTail(950, "\"v1\"")).isTrue();
+        assertThat(prefetcher.isTail(899, "\"v1\"")).isFalse();
+        assertThat(prefetcher.canServe(950)).isTrue();
+    }
+
+    @Test
+    public void testCachedTailIsReadWithoutWaiting() throws Exception {
+        File file = newCacheFile();
+        Mp4TailPrefetcher prefetcher = newPrefetcher(file, "\"v1\"");
+
+        byte[] buffer = new byte[100];
+        assertThat(prefetcher.read(buffer, 950, buffer.length)).isEqualTo(50);
+        assertThat(prefetcher.read(buffer, 1000, buffer.length)).isEqualTo(-1);
+        assertThat(prefetcher.canServe(1000)).isFalse();
+    }
+
+    @Test
+    public void testTailOfOtherVersionIsDiscarded() throws Exception {
+        File file = newCacheFile();
+        Mp4TailPrefetcher prefetcher = newPrefetcher(file, "\"v1\"");
+
+        assertThat(prefetcher.isTail(950, "\"v2\"")).isFalse();
+        assertThat(new TailCache(file).getOffset()).isEqualTo(-1);
+    }
+
+    @Test
+    public void testTailWithoutValidatorIsDiscardedForKnownValidator() throws Exception {
+        File file = newCacheFile();
+        Mp4TailPrefetcher prefetcher = newPrefetcher(file, null);
+
+        prefetcher.discardIfStale("\"v1\"");
+        assertThat(prefetcher.isTail(950, "\"v1\"")).isFalse();
+        assertThat(new TailCache(file).getOffset()).isEqualTo(-1);
+    }
+
+    private Mp4TailPrefetcher newPrefetcher(File file, String validator) throws ProxyCacheException {
+        TailCache tailCache = new TailCache(file);
+        tailCache.begin(900, 1000, validator);
+        tailCache.append(generate(100), 100);
+        tailCache.close();
+        return new Mp4TailPrefetcher(new TailCache(file), BufferPool.getDefault());
+    }
+}
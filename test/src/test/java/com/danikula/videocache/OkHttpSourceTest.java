@@ -0,0 +1,291 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.FileCache;
+import com.danikula.videocache.file.FlushPolicy;
+import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.UnlimitedDiskUsage;
+import com.danikula.videocache.headers.EmptyHeadersInjector;
+import com.danikula.videocache.key.UrlCacheKeyExtractor;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+import com.danikula.videocache.support.HttpServerStub;
+import com.danikula.videocache.support.HttpServerStub.RecordedRequest;
+import com.danikula.videocache.support.HttpServerStub.StubResponse;
+import com.danikula.videocache.validation.MaxAgeRevalidationPolicy;
+import com.danikula.videocache.validation.NoRevalidationPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link OkHttpSource} against local http server with scripted responses.
+ */
+public class OkHttpSourceTest extends BaseTest {
+
+    private static final long CLOCK_TOLERANCE = 5000;
+
+    private HttpServerStub server;
+    private Config         config;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new HttpServerStub();
+        config = new Config(newCacheFile(), new Md5FileNameGenerator(), new UnlimitedDiskUsage(), null, null,
+                SourceInfoStorageFactory.newEmptySourceInfoStorage(), new EmptyHeadersInjector(),
+                new UrlCacheKeyExtractor(), new NoRevalidationPolicy(), ResolvedUrlCache.DEFAULT_TTL,
+                BufferPool.getDefault(), FlushPolicy.newDefault(), false, true, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void testExpirationByMaxAgeMinusAge() throws Exception {
+        server.enqueue(dataResponse().setHeader("Cache-Control", "max-age=100").setHeader("Age", "40"));
+
+        long expirationTime = readExpirationTime();
+
+        assertExpiresIn(expirationTime, 60 * 1000);
+    }
+
+    @Test
+    public void testExpirationByMaxAgeTakesPrecedenceOverExpires() throws Exception {
+        Date date = new Date(System.currentTimeMillis());
+        server.enqueue(dataResponse()
+                .setHeader("Cache-Control", "public, max-age=100")
+                .setHeader("Date", formatDate(date))
+                .setHeader("Expires", formatDate(new Date(date.getTime() + 1000 * 1000))));
+
+        assertExpiresIn(readExpirationTime(), 100 * 1000);
+    }
+
+    @Test
+    public void testExpirationByExpiresRelativeToOriginDate() throws Exception {
+        // origin's clock is far behind device's one, only difference between Expires and Date matters
+        Date originDate = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000);
+        server.enqueue(dataResponse()
+                .setHeader("Date", formatDate(originDate))
+                .setHeader("Expires", formatDate(new Date(originDate.getTime() + 30 * 1000))));
+
+        assertExpiresIn(readExpirationTime(), 30 * 1000);
+    }
+
+    @Test
+    public void testInvalidExpiresMeansExpired() throws Exception {
+        server.enqueue(dataResponse().setHeader("Expires", "0"));
+
+        long expirationTime = readExpirationTime();
+
+        assertThat(expirationTime).isGreaterThan(0);
+        assertThat(expirationTime).isLessThanOrEqualTo(System.currentTimeMillis());
+    }
+
+    @Test
+    public void testNoExpirationWithoutHeaders() throws Exception {
+        server.enqueue(dataResponse());
+
+        assertThat(readExpirationTime()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadFillsBufferWithSeveralNetworkReads() throws Exception {
+        byte[] data = generate(64 * 1024);
+        server.enqueue(dataResponse(data));
+        OkHttpSource source = new OkHttpSource(server.url("/data"), config);
+        source.open(0);
+
+        byte[] buffer = new byte[data.length];
+        int readBytes = source.read(buffer);
+        source.close();
+
+        assertThat(readBytes).isGreaterThan(ProxyCacheUtils.DEFAULT_BUFFER_SIZE); // okio returns 8 Kb per read
+        assertThat(Arrays.copyOf(buffer, readBytes)).isEqualTo(Arrays.copyOf(data, readBytes));
+    }
+
+    @Test
+    public void testPartialFileIsRefetchedWhenIfRangeIsRejected() throws Exception {
+        byte[] changedData = generate(1000);
+        server.setResponse("/data", dataResponse(changedData).setHeader("ETag", "\"v2\""));
+        FileCache cache = new FileCache(newCacheFile());
+        cache.append(new byte[500], 500); // data of previous version
+        OkHttpSource source = new OkHttpSource(server.url("/data"), config);
+        source.setResumeValidator("\"v1\"");
+
+        ProxyCache proxyCache = new ProxyCache(source, cache);
+        byte[] content = new byte[changedData.length];
+        int offset = 0;
+        while (offset < content.length) {
+            offset += proxyCache.read(content, offset, content.length - offset);
+        }
+        proxyCache.shutdown();
+
+        RecordedRequest resumeRequest = server.takeRequest();
+        assertThat(resumeRequest.getHeader("Range")).isEqualTo("bytes=500-");
+        assertThat(resumeRequest.getHeader("If-Range")).isEqualTo("\"v1\"");
+        RecordedRequest refetchRequest = server.takeRequest();
+        assertThat(refetchRequest.getHeader("Range")).isNull();
+        assertThat(content).isEqualTo(changedData);
+        assertThat(source.getValidator()).isEqualTo("\"v2\"");
+    }
+
+    @Test
+    public void testNotModifiedEntryIsKept() throws Exception {
+        byte[] cachedData = generate(1000);
+        String url = server.url("/data");
+        Config config = newRevalidatingConfig(url, "\"v1\"");
+        File file = newCompletedFile(config, url, cachedData);
+        server.enqueue(new StubResponse(304).setHeader("ETag", "\"v1\""));
+
+        byte[] response = request(config, url);
+
+        RecordedRequest revalidation = server.takeRequest();
+        assertThat(revalidation.method).isEqualTo("HEAD");
+        assertThat(revalidation.getHeader("If-None-Match")).isEqualTo("\"v1\"");
+        assertThat(server.getRequestCount()).isEqualTo(0);
+        assertThat(response).isEqualTo(cachedData);
+        assertThat(file).exists();
+    }
+
+    @Test
+    public void testEntryWithChangedEtagIsDeleted() throws Exception {
+        byte[] changedData = generate(1000);
+        String url = server.url("/data");
+        Config config = newRevalidatingConfig(url, "\"v1\"");
+        newCompletedFile(config, url, generate(1000));
+        server.setResponse("/data", dataResponse(changedData).setHeader("ETag", "\"v2\""));
+
+        byte[] response = request(config, url);
+
+        RecordedRequest revalidation = server.takeRequest();
+        assertThat(revalidation.method).isEqualTo("HEAD");
+        RecordedRequest refetch = server.takeRequest();
+        assertThat(refetch.method).isEqualTo("GET");
+        assertThat(refetch.getHeader("Range")).isNull();
+        assertThat(response).isEqualTo(changedData);
+    }
+
+    @Test
+    public void testFarSeekWithoutRangeSupport() throws Exception {
+        byte[] data = generate(1000);
+        String url = server.url("/data");
+        server.setResponse("/data", dataResponse(data)); // whole content for any range
+
+        byte[] response = request(config, url, 800);
+
+        assertThat(response).isEqualTo(Arrays.copyOfRange(data, 800, data.length));
+    }
+
+    private Config newRevalidatingConfig(String url, String etag) {
+        final Map<String, SourceInfo> infos = new HashMap<>();
+        SourceInfoStorage sourceInfoStorage = new SourceInfoStorage() {
+
+            @Override
+            public SourceInfo get(String key) {
+                return infos.get(key);
+            }
+
+            @Override
+            public void put(String key, SourceInfo sourceInfo) {
+                infos.put(key, sourceInfo);
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+        sourceInfoStorage.put(url, new SourceInfo(url, 1000, "video/mp4", etag, null));
+        return new Config(newCacheFile(), new Md5FileNameGenerator(), new UnlimitedDiskUsage(), null, null,
+                sourceInfoStorage, new EmptyHeadersInjector(), new UrlCacheKeyExtractor(),
+                new MaxAgeRevalidationPolicy(0, TimeUnit.SECONDS), ResolvedUrlCache.DEFAULT_TTL,
+                BufferPool.getDefault(), FlushPolicy.newDefault(), false, false, 0);
+    }
+
+    private File newCompletedFile(Config config, String url, byte[] data) throws ProxyCacheException {
+        FileCache cache = new FileCache(config.generateCacheFile(url));
+        cache.append(data, data.length);
+        cache.complete();
+        cache.close();
+        return cache.getFile();
+    }
+
+    private byte[] request(Config config, String url) throws Exception {
+        return request(config, url, -1);
+    }
+
+    private byte[] request(Config config, String url, long rangeOffset) throws Exception {
+        HttpProxyCacheServerClients clients = new HttpProxyCacheServerClients(url, config);
+        ServerSocket serverSocket = new ServerSocket(0);
+        Socket client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept();
+        String range = rangeOffset >= 0 ? "Range: bytes=" + rangeOffset + "-\n" : "";
+        try {
+            clients.processRequest(new GetRequest("GET /" + ProxyCacheUtils.encode(url) + " HTTP/1.1\n" + range), socket);
+        } finally {
+            socket.close();
+            serverSocket.close();
+            clients.shutdown();
+        }
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int readBytes;
+        while ((readBytes = in.read(buffer)) != -1) {
+            out.write(buffer, 0, readBytes);
+        }
+        client.close();
+        byte[] response = out.toByteArray();
+        int headersLength = out.toString("ISO-8859-1").indexOf("\n\n") + 2;
+        return Arrays.copyOfRange(response, headersLength, response.length);
+    }
+
+    private long readExpirationTime() throws ProxyCacheException {
+        OkHttpSource source = new OkHttpSource(server.url("/data"), config);
+        try {
+            source.open(0);
+            return source.getExpirationTime();
+        } finally {
+            source.close();
+        }
+    }
+
+    private void assertExpiresIn(long expirationTime, long expectedTtl) {
+        long ttl = expirationTime - System.currentTimeMillis();
+        assertThat(ttl).isGreaterThan(expectedTtl - CLOCK_TOLERANCE);
+        assertThat(ttl).isLessThanOrEqualTo(expectedTtl);
+    }
+
+    private StubResponse dataResponse() {
+        return dataResponse(generate(1000));
+    }
+
+    private StubResponse dataResponse(byte[] data) {
+        return new StubResponse(200).setHeader("Content-Type", "video/mp4").setBody(data);
+    }
+
+    private String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+}
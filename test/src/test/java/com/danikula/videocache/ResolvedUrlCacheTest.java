@@ -0,0 +1,38 @@
+package com.danikula.videocache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link ResolvedUrlCache}.
+ */
+public class ResolvedUrlCacheTest extends BaseTest {
+
+    @Test
+    public void testResolvedUrl() throws Exception {
+        ResolvedUrlCache cache = new ResolvedUrlCache();
+        assertThat(cache.get("key")).isNull();
+
+        cache.put("key", "http://cdn.host.com/video.mp4");
+        assertThat(cache.get("key")).isEqualTo("http://cdn.host.com/video.mp4");
+
+        cache.remove("key");
+        assertThat(cache.get("key")).isNull();
+    }
+
+    @Test
+    public void testExpiredResolvedUrl() throws Exception {
+        ResolvedUrlCache cache = new ResolvedUrlCache(1);
+        cache.put("key", "http://cdn.host.com/video.mp4");
+        Thread.sleep(10);
+        assertThat(cache.get("key")).isNull();
+    }
+
+    @Test
+    public void testDisabledResolvedUrlCache() throws Exception {
+        ResolvedUrlCache cache = new ResolvedUrlCache(0);
+        cache.put("key", "http://cdn.host.com/video.mp4");
+        assertThat(cache.get("key")).isNull();
+    }
+}
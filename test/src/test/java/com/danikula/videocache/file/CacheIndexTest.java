@@ -0,0 +1,151 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.BaseTest;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link CacheIndex}.
+ */
+public class CacheIndexTest extends BaseTest {
+
+    @Test
+    public void testLoadSkipsTempFiles() throws Exception {
+        File directory = newCacheFile();
+        File file = new File(directory, "file");
+        FileCache completedCache = new FileCache(file);
+        completedCache.append(generate(42), 42);
+        completedCache.complete();
+        completedCache.close();
+        FileCache partialCache = new FileCache(new File(directory, "partial"));
+        partialCache.append(generate(42), 42);
+        partialCache.close();
+
+        CacheIndex index = CacheIndex.of(directory);
+        index.load();
+
+        assertThat(index.isLoaded()).isTrue();
+        assertThat(index.isCompleted(file)).isTrue();
+        assertThat(index.isCompleted(new File(directory, "partial"))).isFalse();
+    }
+
+    @Test
+    public void testCompletionUpdatesIndex() throws Exception {
+        File directory = newCacheFile();
+        CacheIndex index = CacheIndex.of(directory);
+        index.load();
+        File file = new File(directory, "file");
+        assertThat(index.isCompleted(file)).isFalse();
+
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(generate(42), 42);
+        fileCache.complete();
+        fileCache.close();
+
+        assertThat(index.isCompleted(file)).isTrue();
+    }
+
+    @Test
+    public void testEvictionUpdatesIndex() throws Exception {
+        File directory = newCacheFile();
+        File file = new File(directory, "file");
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(generate(42), 42);
+        fileCache.complete();
+        fileCache.close();
+        CacheIndex index = CacheIndex.of(directory);
+        index.load();
+
+        new TotalSizeLruDiskUsage(1).trim(directory);
+
+        assertThat(file).doesNotExist();
+        assertThat(index.isCompleted(file)).isFalse();
+    }
+
+    @Test
+    public void testFallbackToFileSystemIfNotLoaded() throws Exception {
+        File directory = newCacheFile();
+        File file = new File(directory, "file");
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(generate(42), 42);
+        fileCache.complete();
+        fileCache.close();
+
+        CacheIndex index = CacheIndex.of(directory);
+        assertThat(index.isLoaded()).isFalse();
+        assertThat(index.isCompleted(file)).isTrue();
+        assertThat(index.isCompleted(new File(directory, "absent"))).isFalse();
+    }
+
+    @Test
+    public void testSweepExpired() throws Exception {
+        File directory = newCacheFile();
+        File expired = new File(directory, "expired");
+        File actual = new File(directory, "actual");
+        File pinned = new File(directory, "pinned");
+        for (File file : new File[]{expired, actual, pinned}) {
+            FileCache fileCache = new FileCache(file);
+            fileCache.append(generate(42), 42);
+            fileCache.complete();
+            fileCache.close();
+        }
+        CacheIndex index = CacheIndex.of(directory);
+        index.load();
+        long now = System.currentTimeMillis();
+        index.expireAt(expired, now - 1000);
+        index.expireAt(expired, now + 60000); // the earliest expiration is kept
+        index.expireAt(actual, now + 60000);
+        index.expireAt(pinned, now - 1000);
+        index.pin(pinned);
+
+        assertThat(index.isExpired(expired)).isTrue();
+        assertThat(index.isExpired(actual)).isFalse();
+        assertThat(index.sweepExpired()).isEqualTo(1);
+        assertThat(expired).doesNotExist();
+        assertThat(index.isCompleted(expired)).isFalse();
+        assertThat(index.isExpired(expired)).isFalse();
+        assertThat(actual).exists();
+        assertThat(pinned).exists();
+        index.flushLazily();
+        assertThat(new File(directory, ".expirations")).exists();
+        assertThat(Files.getLruListFiles(directory)).containsOnly(actual, pinned);
+    }
+
+    @Test
+    public void testGroupedFilesAreEvictedTogether() throws Exception {
+        File directory = newCacheFile();
+        File master = new File(directory, "master");
+        File segment = new File(directory, "segment");
+        File other = new File(directory, "other");
+        for (File file : new File[]{master, segment, other}) {
+            FileCache fileCache = new FileCache(file);
+            fileCache.append(generate(42), 42);
+            fileCache.complete();
+            fileCache.close();
+        }
+        CacheIndex index = CacheIndex.of(directory);
+        index.load();
+        long now = System.currentTimeMillis();
+        index.setGroup(segment, master);
+        index.onAccessed(master, now - 30000);
+        index.onAccessed(other, now - 20000);
+        index.onAccessed(segment, now - 10000);
+        assertThat(index.getGroup(segment)).isEqualTo(master);
+        assertThat(index.getGroupAccessTime(master)).isEqualTo(now - 10000);
+        assertThat(Files.getLruListFiles(directory).get(0)).isEqualTo(other);
+
+        new TotalCountLruDiskUsage(2).trim(directory);
+        assertThat(other).doesNotExist();
+        assertThat(master).exists();
+        assertThat(segment).exists();
+        index.flush();
+        assertThat(new File(directory, ".groups")).exists();
+        assertThat(Files.getLruListFiles(directory)).containsOnly(master, segment);
+    }
+}
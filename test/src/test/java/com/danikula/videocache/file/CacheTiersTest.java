@@ -0,0 +1,104 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.BaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.getFileContent;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link CacheTiers}.
+ */
+public class CacheTiersTest extends BaseTest {
+
+    private File fastDirectory;
+    private File bulkDirectory;
+
+    @Before
+    public void setup() throws Exception {
+        fastDirectory = newCacheFile();
+        bulkDirectory = newCacheFile();
+    }
+
+    @Test
+    public void testEvictedFilesAreMovedToBulkTier() throws Exception {
+        LruDiskUsage fastDiskUsage = new TotalCountLruDiskUsage(1);
+        CacheTiers tiers = new CacheTiers(fastDirectory, fastDiskUsage, bulkDirectory, new TotalCountLruDiskUsage(10));
+        long now = System.currentTimeMillis();
+        File old = createCompletedFile(fastDirectory, "old", 42);
+        File recent = createCompletedFile(fastDirectory, "recent", 43);
+        CacheIndex.of(fastDirectory).onAccessed(old, now - 10000);
+        CacheIndex.of(fastDirectory).expireAt(old, now + 60000);
+
+        fastDiskUsage.trim(fastDirectory);
+
+        File bulkFile = new File(bulkDirectory, "old");
+        assertThat(old).doesNotExist();
+        assertThat(bulkFile).exists();
+        assertThat(getFileContent(bulkFile)).isEqualTo(generate(42));
+        assertThat(CacheIndex.of(fastDirectory).isCompleted(old)).isFalse();
+        assertThat(CacheIndex.of(bulkDirectory).getExpirationTime(bulkFile)).isEqualTo(now + 60000);
+        assertThat(tiers.findCompleted(old)).isEqualTo(bulkFile);
+        assertThat(tiers.findCompleted(recent)).isEqualTo(recent);
+        assertThat(tiers.findCompleted(new File(fastDirectory, "absent"))).isNull();
+        assertThat(tiers.getDiskUsage(bulkFile)).isNotSameAs(fastDiskUsage);
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testFrequentlyUsedFilesArePromoted() throws Exception {
+        CacheTiers tiers = new CacheTiers(fastDirectory, new TotalCountLruDiskUsage(10), bulkDirectory,
+                new TotalCountLruDiskUsage(10));
+        File bulkFile = createCompletedFile(bulkDirectory, "file", 42);
+        File fastFile = new File(fastDirectory, "file");
+
+        tiers.onUsed(bulkFile);
+        assertThat(fastFile).doesNotExist(); // the first use doesn't schedule promotion
+
+        tiers.onUsed(bulkFile);
+        awaitCompleted(fastFile);
+        assertThat(getFileContent(fastFile)).isEqualTo(generate(42));
+        assertThat(bulkFile).exists(); // copy may be in use, it is evicted as usual
+        assertThat(tiers.findCompleted(fastFile)).isEqualTo(fastFile);
+        assertThat(FileCache.getTempFile(fastFile)).doesNotExist();
+        tiers.shutdown();
+    }
+
+    @Test
+    public void testWithoutBulkTier() throws Exception {
+        LruDiskUsage diskUsage = new TotalCountLruDiskUsage(1);
+        CacheTiers tiers = new CacheTiers(fastDirectory, diskUsage);
+        File old = createCompletedFile(fastDirectory, "old", 42);
+        File recent = createCompletedFile(fastDirectory, "recent", 43);
+        CacheIndex.of(fastDirectory).onAccessed(old, System.currentTimeMillis() - 10000);
+
+        diskUsage.trim(fastDirectory);
+
+        assertThat(old).doesNotExist();
+        assertThat(tiers.findCompleted(old)).isNull();
+        assertThat(tiers.getIndexes()).hasSize(1);
+    }
+
+    private File createCompletedFile(File directory, String name, int size) throws Exception {
+        File file = new File(directory, name);
+        FileCache fileCache = new FileCache(file);
+        fileCache.append(generate(size), size);
+        fileCache.complete();
+        fileCache.close();
+        return file;
+    }
+
+    private void awaitCompleted(File file) throws InterruptedException {
+        CacheIndex index = CacheIndex.of(file.getParentFile());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!index.isCompleted(file) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
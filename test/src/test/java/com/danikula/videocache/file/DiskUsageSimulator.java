@@ -0,0 +1,61 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Replays trace of accesses to cache against {@link LruDiskUsage} and measures hit ratio, used for comparing
+ * eviction strategies. Missed file is created with requested size (without real data), accesses are processed
+ * synchronously with virtual clock ticking one second per access.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+class DiskUsageSimulator {
+
+    private final File directory;
+
+    DiskUsageSimulator(File directory) {
+        this.directory = directory;
+    }
+
+    double replay(LruDiskUsage diskUsage, List<Access> trace) throws IOException {
+        long clock = System.currentTimeMillis() - trace.size() * 1000L;
+        int hits = 0;
+        for (Access access : trace) {
+            File file = new File(directory, access.name);
+            if (file.exists()) {
+                hits++;
+            } else {
+                create(file, access.size);
+            }
+            clock += 1000;
+            CacheIndex.of(directory).onAccessed(file, clock);
+            diskUsage.onTouched(file);
+            diskUsage.onAccessed(file);
+            diskUsage.trim(directory);
+        }
+        return (double) hits / trace.size();
+    }
+
+    private void create(File file, long size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static final class Access {
+
+        final String name;
+        final long   size;
+
+        Access(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.danikula.videocache.file;
 
 import com.danikula.videocache.BaseTest;
+import com.danikula.videocache.file.DiskUsageSimulator.Access;
 import com.danikula.videocache.support.ProxyCacheTestUtils;
 
 import org.junit.Before;
@@ -8,6 +9,11 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.android.garden.io.Files.cleanDirectory;
 import static com.danikula.android.garden.io.Files.createDirectory;
@@ -100,6 +106,270 @@ public class DiskUsageTest extends BaseTest {
         assertThat(file("b")).doesNotExist();
     }
 
+    @Test
+    public void testTouchesAreCoalesced() throws Exception {
+        final long trimInterval = 1000;
+        final List<Long> trimTimes = new CopyOnWriteArrayList<>();
+        final List<String> touchedFiles = new CopyOnWriteArrayList<>();
+        DiskUsage diskUsage = new LruDiskUsage(trimInterval) {
+
+            @Override
+            protected boolean accept(File file, long totalSize, int totalCount) {
+                return totalCount <= 3;
+            }
+
+            @Override
+            protected void onTouched(File file) {
+                touchedFiles.add(file.getName());
+            }
+
+            @Override
+            protected void onTrimmed(File directory) {
+                trimTimes.add(System.currentTimeMillis());
+            }
+        };
+        long now = System.currentTimeMillis();
+        createFile(file("b"), 101, now - 10000);
+        createFile(file("c"), 102, now - 8000);
+        createFile(file("a"), 104, now - 4000);
+
+        diskUsage.touch(file("b"));
+        awaitTrims(trimTimes, 1);
+
+        diskUsage.touch(file("c"));
+        diskUsage.touch(file("a"));
+        diskUsage.touch(file("c"));
+        awaitTrims(trimTimes, 2);
+        assertThat(touchedFiles).containsExactly("b", "c", "a"); // three touches are processed by single batch
+        // batch is postponed until trim interval is passed, small tolerance is for time of the first trimming
+        assertThat(trimTimes.get(1) - trimTimes.get(0)).isGreaterThanOrEqualTo(trimInterval - 50);
+        assertThat(CacheIndex.of(cacheFolder).getAccessTime(file("c"))).isGreaterThan(now - 1000);
+        assertThat(file("c").lastModified()).isLessThan(now - 1000); // file itself is not modified
+
+        createFile(file("d"), 103, now);
+        long touchTime = System.currentTimeMillis();
+        diskUsage.touch(file("d")); // exceeds limit, so cache is trimmed immediately
+        awaitTrims(trimTimes, 3);
+        assertThat(trimTimes.get(2) - touchTime).isLessThan(trimInterval);
+        assertThat(file("b")).doesNotExist();
+    }
+
+    @Test
+    public void testPinnedFilesAreNotTrimmed() throws Exception {
+        DiskUsage diskUsage = new TotalCountLruDiskUsage(3);
+        CacheIndex index = CacheIndex.of(cacheFolder);
+        long now = System.currentTimeMillis();
+        createFile(file("d"), 100, now - 12000);
+        createFile(file("b"), 101, now - 10000);
+        createFile(file("c.download"), 102, now - 8000);
+        createFile(file("a"), 104, now - 4000);
+
+        index.pin(file("b"));
+        FileCache openedCache = new FileCache(file("c"));
+        try {
+            diskUsage.touch(file("a"));
+            waitForAsyncTrimming();
+
+            assertThat(file("d")).doesNotExist();
+            assertThat(file("b")).exists();
+            assertThat(file("c.download")).exists();
+            assertThat(file("a")).exists();
+            assertThat(index.isPinned(file("c"))).isTrue();
+        } finally {
+            openedCache.close();
+            index.unpin(file("b"));
+        }
+
+        assertThat(index.isPinned(file("b"))).isFalse();
+        assertThat(index.isPinned(file("c"))).isFalse();
+        new TotalCountLruDiskUsage(1).touch(file("a"));
+        waitForAsyncTrimming();
+
+        assertThat(file("b")).doesNotExist();
+        assertThat(file("c.download")).doesNotExist();
+        assertThat(file("a")).exists();
+    }
+
+    @Test
+    public void testPinsArePersisted() throws Exception {
+        CacheIndex.of(cacheFolder).pin(file("a"));
+        try {
+            assertThat(new File(cacheFolder, ".pins")).exists();
+            assertThat(Files.getLruListFiles(cacheFolder)).isEmpty();
+
+            CacheIndex.reset(cacheFolder); // like app's restart
+            CacheIndex reloadedIndex = CacheIndex.of(cacheFolder);
+            reloadedIndex.load();
+            assertThat(reloadedIndex.isPinned(file("a"))).isTrue();
+            assertThat(reloadedIndex.isPinned(file("b"))).isFalse();
+        } finally {
+            CacheIndex.of(cacheFolder).unpin(file("a"));
+        }
+    }
+
+    @Test
+    public void testTinyLfuKeepsFrequentFilesAfterScan() throws Exception {
+        List<Access> trace = new ArrayList<>();
+        Random random = new Random(42);
+        addClipsAccesses(trace, random, 100);
+        for (int i = 0; i < 10; i++) {
+            trace.add(new Access("long" + i, 100 * 1024));
+        }
+        addClipsAccesses(trace, random, 100);
+
+        DiskUsageSimulator simulator = new DiskUsageSimulator(cacheFolder);
+        double lruHitRatio = simulator.replay(new TotalSizeLruDiskUsage(400 * 1024), trace);
+        cleanDirectory(cacheFolder);
+        double tinyLfuHitRatio = simulator.replay(new TinyLfuDiskUsage(400 * 1024), trace);
+
+        assertThat(tinyLfuHitRatio).isGreaterThan(lruHitRatio);
+        for (int i = 0; i < 10; i++) {
+            assertThat(file("clip" + i)).exists();
+        }
+    }
+
+    @Test
+    public void testOnlyAccessesArePassedToAccessHook() throws Exception {
+        createFile(file("downloading"), 100, System.currentTimeMillis());
+        createFile(file("watched"), 100, System.currentTimeMillis());
+        final List<String> accessed = new ArrayList<>();
+        LruDiskUsage diskUsage = new LruDiskUsage(0) {
+
+            @Override
+            protected boolean accept(File file, long totalSize, int totalCount) {
+                return true;
+            }
+
+            @Override
+            protected void onAccessed(File file) {
+                accessed.add(file.getName());
+            }
+        };
+
+        diskUsage.touch(file("downloading"));
+        diskUsage.access(file("watched"));
+        waitForAsyncTrimming();
+
+        assertThat(accessed).containsExactly("watched");
+    }
+
+    @Test
+    public void testTinyLfuCountsOnlyAccesses() throws Exception {
+        createFile(file("downloading"), 100, System.currentTimeMillis());
+        createFile(file("watched"), 100, System.currentTimeMillis());
+        TinyLfuDiskUsage diskUsage = new TinyLfuDiskUsage(1000);
+
+        for (int i = 0; i < 3; i++) {
+            diskUsage.onTouched(file("downloading"));
+        }
+        diskUsage.onAccessed(file("watched"));
+        diskUsage.trim(cacheFolder);
+
+        FrequencySketch sketch = new FrequencySketch(4096);
+        sketch.load(cacheFolder);
+        assertThat(sketch.frequency("downloading")).isEqualTo(0);
+        assertThat(sketch.frequency("watched")).isEqualTo(1);
+    }
+
+    @Test
+    public void testFrequencySketchIsPersisted() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        sketch.save(cacheFolder);
+
+        FrequencySketch loadedSketch = new FrequencySketch(16);
+        loadedSketch.load(cacheFolder);
+        assertThat(loadedSketch.frequency("a")).isEqualTo(5);
+        assertThat(loadedSketch.frequency("b")).isEqualTo(1);
+        assertThat(loadedSketch.frequency("c")).isEqualTo(0);
+        assertThat(Files.getLruListFiles(cacheFolder)).isEmpty();
+
+        FrequencySketch anotherSizeSketch = new FrequencySketch(64);
+        anotherSizeSketch.load(cacheFolder);
+        assertThat(anotherSizeSketch.frequency("a")).isEqualTo(0);
+    }
+
+    @Test
+    public void testFreeSpaceCacheLimit() throws Exception {
+        final long[] usableSpace = {200};
+        LruDiskUsage diskUsage = new FreeSpaceLruDiskUsage(0.5f, 150, 1000, 0, TimeUnit.MILLISECONDS) {
+
+            @Override
+            protected long getUsableSpace(File directory) {
+                return usableSpace[0];
+            }
+        };
+        long now = System.currentTimeMillis();
+        createFile(file("b"), 100, now - 10000);
+        createFile(file("c"), 100, now - 8000);
+        createFile(file("a"), 100, now - 4000);
+
+        diskUsage.trim(cacheFolder); // (200 + 300) * 0.5 = 250
+
+        assertThat(file("b")).doesNotExist();
+        assertThat(file("c")).exists();
+        assertThat(file("a")).exists();
+
+        usableSpace[0] = 0;
+        diskUsage.trim(cacheFolder); // (0 + 200) * 0.5 = 100, but not less than 150
+
+        assertThat(file("c")).doesNotExist();
+        assertThat(file("a")).exists();
+
+        usableSpace[0] = 100000;
+        createFile(file("d"), 100, now);
+        createFile(file("e"), 100, now);
+        diskUsage.trim(cacheFolder); // not more than 1000
+
+        assertThat(file("a")).exists();
+        assertThat(file("d")).exists();
+        assertThat(file("e")).exists();
+    }
+
+    @Test
+    public void testFreeSpaceCacheLimitIsReevaluatedInBackground() throws Exception {
+        final long[] usableSpace = {200};
+        LruDiskUsage diskUsage = new FreeSpaceLruDiskUsage(0.5f, 150, 1000, 100, TimeUnit.MILLISECONDS) {
+
+            @Override
+            protected long getUsableSpace(File directory) {
+                return usableSpace[0];
+            }
+        };
+        long now = System.currentTimeMillis();
+        createFile(file("b"), 100, now - 10000);
+        createFile(file("c"), 100, now - 8000);
+        createFile(file("a"), 100, now - 4000);
+        diskUsage.trim(cacheFolder); // (200 + 300) * 0.5 = 250
+        assertThat(file("c")).exists();
+
+        usableSpace[0] = 0; // other apps fill storage, cache is not used
+        long deadline = System.currentTimeMillis() + 2000;
+        while (file("c").exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertThat(file("c")).doesNotExist();
+        assertThat(file("a")).exists();
+    }
+
+    private void addClipsAccesses(List<Access> trace, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            trace.add(new Access("clip" + random.nextInt(10), 20 * 1024));
+        }
+    }
+
+    private void awaitTrims(List<Long> trimTimes, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (trimTimes.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(trimTimes).hasSize(count);
+    }
+
     private void waitForAsyncTrimming() throws InterruptedException {
         Thread.sleep(200);
     }
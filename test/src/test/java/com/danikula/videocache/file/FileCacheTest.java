@@ -11,7 +11,9 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static com.danikula.videocache.support.ProxyCacheTestUtils.ASSETS_DATA_NAME;
 import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
@@ -92,6 +94,219 @@ public class FileCacheTest extends BaseTest {
         assertThat(readData).isEqualTo(fileContent);
     }
 
+    @Test
+    public void testWriteBehindReadsStagedData() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(64 * 1024, 1, TimeUnit.HOURS, FlushPolicy.Sync.NEVER);
+        Cache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+
+        byte[] data = generate(50000);
+        fileCache.append(data, 20000);
+        fileCache.append(Arrays.copyOfRange(data, 20000, data.length), 30000);
+        assertThat(fileCache.available()).isEqualTo(50000);
+        assertThat(getTempFile(file).length()).isEqualTo(0);
+
+        byte[] readData = new byte[50000];
+        int read = fileCache.read(readData, 0, readData.length);
+        assertThat(read).isEqualTo(50000);
+        assertThat(readData).isEqualTo(data);
+        assertThat(fileCache.read(readData, 50000, 10)).isEqualTo(-1);
+
+        fileCache.close();
+        assertThat(getFileContent(getTempFile(file))).isEqualTo(data);
+    }
+
+    @Test
+    public void testWriteBehindFlushesStagedDataAfterMaxDelayWithoutAppends() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(64 * 1024, 50, TimeUnit.MILLISECONDS, FlushPolicy.Sync.NEVER);
+        Cache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+
+        byte[] data = generate(20000);
+        fileCache.append(data, data.length); // source stalls after this portion
+        assertThat(getTempFile(file).length()).isEqualTo(0);
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (getTempFile(file).length() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(getFileContent(getTempFile(file))).isEqualTo(data);
+        assertThat(fileCache.available()).isEqualTo(20000);
+        fileCache.close();
+    }
+
+    @Test
+    public void testWriteBehindFlushesWhenBufferIsFull() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(30000, 1, TimeUnit.HOURS, FlushPolicy.Sync.EVERY_FLUSH);
+        Cache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+
+        byte[] data = generate(50000);
+        fileCache.append(data, 20000);
+        fileCache.append(Arrays.copyOfRange(data, 20000, data.length), 30000);
+        assertThat(getTempFile(file).length()).isEqualTo(50000);
+
+        fileCache.append(generate(100), 100);
+        byte[] readData = new byte[50100];
+        byte[] buffer = new byte[8192];
+        int offset = 0;
+        int read;
+        while ((read = fileCache.read(buffer, offset, buffer.length)) > 0) {
+            System.arraycopy(buffer, 0, readData, offset, read);
+            offset += read;
+        }
+        assertThat(offset).isEqualTo(50100);
+        assertThat(Arrays.copyOfRange(readData, 0, 50000)).isEqualTo(data);
+
+        fileCache.complete();
+        assertThat(file.length()).isEqualTo(50100);
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        File file = newCacheFile();
+        File tempFile = getTempFile(file);
+        File journal = new File(tempFile.getParentFile(), tempFile.getName() + ".journal");
+        FlushPolicy flushPolicy = FlushPolicy.newWriteThrough();
+        Cache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy, true);
+        fileCache.reserve(50000);
+        assertThat(tempFile.length()).isEqualTo(50000);
+        assertThat(fileCache.available()).isEqualTo(0);
+
+        byte[] data = generate(30000);
+        fileCache.append(data, 20000);
+        fileCache.close();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy, true);
+        assertThat(fileCache.available()).isEqualTo(20000);
+        fileCache.append(Arrays.copyOfRange(data, 20000, data.length), 10000);
+        fileCache.complete();
+
+        assertThat(journal.exists()).isFalse();
+        assertThat(getFileContent(file)).isEqualTo(data);
+    }
+
+    @Test
+    public void testPreallocatedFileWithoutJournalIsNotTrusted() throws Exception {
+        File file = newCacheFile();
+        File tempFile = getTempFile(file);
+        File journal = new File(tempFile.getParentFile(), tempFile.getName() + ".journal");
+        FlushPolicy flushPolicy = FlushPolicy.newWriteThrough();
+        Cache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy, true);
+        fileCache.reserve(50000);
+        fileCache.append(generate(20000), 20000);
+        fileCache.close();
+        assertThat(journal.delete()).isTrue();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy, true);
+        assertThat(fileCache.available()).isEqualTo(0);
+        assertThat(tempFile.length()).isEqualTo(0);
+        fileCache.close();
+    }
+
+    @Test
+    public void testJournalRecoversTornTail() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, FlushPolicy.Sync.NEVER, true);
+        FileCache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        fileCache.setOriginValidator("\"etag\"");
+        byte[] data = generate(30000);
+        fileCache.append(data, 10000);
+        fileCache.append(Arrays.copyOfRange(data, 10000, data.length), 20000);
+        fileCache.close();
+
+        RandomAccessFile tempFile = new RandomAccessFile(getTempFile(file), "rw");
+        tempFile.seek(25000);
+        tempFile.write(generate(100));
+        tempFile.setLength(40000);
+        tempFile.close();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(fileCache.available()).isEqualTo(10000);
+        assertThat(fileCache.getOriginValidator()).isEqualTo("\"etag\"");
+        assertThat(getTempFile(file).length()).isEqualTo(10000);
+
+        fileCache.append(Arrays.copyOfRange(data, 10000, data.length), 20000);
+        fileCache.complete();
+        assertThat(getFileContent(file)).isEqualTo(data);
+    }
+
+    @Test
+    public void testJournalSkipsBrokenRecord() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, FlushPolicy.Sync.NEVER, true);
+        FileCache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        fileCache.append(generate(10000), 10000);
+        fileCache.append(generate(10000), 10000);
+        fileCache.close();
+
+        File journal = new File(file.getParentFile(), getTempFile(file).getName() + ".journal");
+        RandomAccessFile journalFile = new RandomAccessFile(journal, "rw");
+        journalFile.setLength(journalFile.length() - 1);
+        journalFile.close();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(fileCache.available()).isEqualTo(10000);
+    }
+
+    @Test
+    public void testJournalVerifiesEveryNotSyncedChunk() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, FlushPolicy.Sync.NEVER, true);
+        FileCache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        for (int i = 0; i < 4; i++) {
+            fileCache.append(generate(10000), 10000);
+        }
+        fileCache.close();
+
+        RandomAccessFile tempFile = new RandomAccessFile(getTempFile(file), "rw");
+        tempFile.seek(15000);
+        tempFile.write(generate(100));
+        tempFile.close();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(fileCache.available()).isEqualTo(10000);
+    }
+
+    @Test
+    public void testJournalVerifiesDataWrittenAfterSync() throws Exception {
+        File file = newCacheFile();
+        FlushPolicy flushPolicy = new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, FlushPolicy.Sync.ON_COMPLETE, true);
+        FileCache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        fileCache.append(generate(10000), 10000);
+        fileCache.close();
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        fileCache.append(generate(10000), 10000);
+        fileCache.append(generate(10000), 10000);
+        // process is killed before closing, so data written after the last sync is verified on recovery
+
+        RandomAccessFile tempFile = new RandomAccessFile(getTempFile(file), "rw");
+        tempFile.seek(12000);
+        tempFile.write(new byte[100]);
+        tempFile.close();
+
+        FileCache recovered = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(recovered.available()).isEqualTo(10000);
+    }
+
+    @Test
+    public void testNotJournaledDataIsTrusted() throws Exception {
+        File file = newCacheFile();
+        byte[] data = generate(30000);
+        write(data, getTempFile(file));
+        FlushPolicy flushPolicy = new FlushPolicy(0, 0, TimeUnit.MILLISECONDS, FlushPolicy.Sync.NEVER, true);
+
+        FileCache fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(fileCache.available()).isEqualTo(30000);
+        fileCache.close();
+
+        fileCache = new FileCache(file, new UnlimitedDiskUsage(), flushPolicy);
+        assertThat(fileCache.available()).isEqualTo(30000);
+        fileCache.append(generate(100), 100);
+        fileCache.complete();
+        assertThat(Arrays.copyOf(getFileContent(file), 30000)).isEqualTo(data);
+    }
+
     @Test
     public void testIsFileCacheCompleted() throws Exception {
         File file = newCacheFile();
@@ -17,41 +17,23 @@ import static org.fest.assertions.api.Assertions.assertThat;
 public class FilesTest extends BaseTest {
 
     @Test
-    public void testModify() throws Exception {
-        byte[] data = ProxyCacheTestUtils.generate(999);
-        File file = ProxyCacheTestUtils.newCacheFile();
-        com.google.common.io.Files.write(data, file);
-        long lastModified = file.lastModified();
-
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 1 sec
-        Files.modify(file);
-
-        assertThat(file).hasBinaryContent(data);
-        assertThat(file.lastModified()).isGreaterThan(lastModified);
-    }
-
-    @Test
-    public void testSetModifiedNow() throws Exception {
-        File file = ProxyCacheTestUtils.newCacheFile();
-        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), file);
-
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 1 sec
-        long nowRoundedToSecond = System.currentTimeMillis() / 1000 * 1000;
-        Files.setLastModifiedNow(file);
-
-        assertThat(file.lastModified()).isGreaterThanOrEqualTo(nowRoundedToSecond);
-    }
-
-    @Test
-    public void testModifyZeroSizeFile() throws Exception {
-        File file = ProxyCacheTestUtils.newCacheFile();
-        boolean created = file.createNewFile();
-        assertThat(created).isTrue();
-
-        Thread.sleep(1100); // file can store modification date in seconds. so wait for ~ 2 sec
-        long nowRoundedToSecond = System.currentTimeMillis() / 1000 * 1000;
-        Files.modify(file);
-
-        assertThat(file.lastModified()).isGreaterThanOrEqualTo(nowRoundedToSecond);
+    public void testLruListUsesAccessTimes() throws Exception {
+        File directory = ProxyCacheTestUtils.newCacheFile();
+        Files.makeDir(directory);
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        long now = System.currentTimeMillis();
+        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), first);
+        com.google.common.io.Files.write(ProxyCacheTestUtils.generate(22), second);
+        assertThat(first.setLastModified(now - 10000)).isTrue();
+        assertThat(second.setLastModified(now - 5000)).isTrue();
+        long firstLastModified = first.lastModified();
+
+        assertThat(Files.getLruListFiles(directory)).containsExactly(first, second);
+
+        CacheIndex.of(directory).onAccessed(first, now);
+
+        assertThat(Files.getLruListFiles(directory)).containsExactly(second, first);
+        assertThat(first.lastModified()).isEqualTo(firstLastModified);
     }
 }
@@ -0,0 +1,88 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.BaseTest;
+import com.danikula.videocache.ProxyCacheException;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.generate;
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests {@link TailCache}.
+ */
+public class TailCacheTest extends BaseTest {
+
+    @Test
+    public void testTailIsCachedAndRestored() throws Exception {
+        File file = newCacheFile();
+        byte[] data = generate(100);
+        TailCache tailCache = new TailCache(FileCache.getTempFile(file));
+        tailCache.begin(900, 1000, "\"v1\"");
+        tailCache.append(data, 60);
+        assertThat(tailCache.isCompleted()).isFalse();
+        tailCache.append(Arrays.copyOfRange(data, 60, 100), 40);
+        tailCache.close();
+
+        TailCache restored = new TailCache(file);
+        byte[] buffer = new byte[100];
+        assertThat(restored.isCompleted()).isTrue();
+        assertThat(restored.getOffset()).isEqualTo(900);
+        assertThat(restored.getValidator()).isEqualTo("\"v1\"");
+        assertThat(restored.read(buffer, 950, 100)).isEqualTo(50);
+        assertThat(Arrays.copyOf(buffer, 50)).isEqualTo(Arrays.copyOfRange(data, 50, 100));
+        assertThat(restored.read(buffer, 899, 100)).isEqualTo(-1);
+        assertThat(restored.read(buffer, 1000, 100)).isEqualTo(-1);
+        restored.delete();
+        assertThat(TailCache.getTailFile(file)).doesNotExist();
+    }
+
+    @Test
+    public void testTailWithoutValidatorIsRestored() throws Exception {
+        File file = newCacheFile();
+        TailCache tailCache = new TailCache(file);
+        tailCache.begin(900, 1000, null);
+        tailCache.append(generate(10), 10);
+        tailCache.close();
+
+        TailCache restored = new TailCache(file);
+        assertThat(restored.getOffset()).isEqualTo(900);
+        assertThat(restored.getValidator()).isNull();
+        assertThat(restored.isCompleted()).isFalse();
+    }
+
+    @Test
+    public void testTornHeaderIsIgnored() throws Exception {
+        File file = newCacheFile();
+        TailCache tailCache = new TailCache(file);
+        tailCache.begin(900, 1000, "\"v1\"");
+        tailCache.close();
+        RandomAccessFile tailFile = new RandomAccessFile(TailCache.getTailFile(file), "rw");
+        tailFile.setLength(18);
+        tailFile.close();
+
+        assertThat(new TailCache(file).getOffset()).isEqualTo(-1);
+    }
+
+    @Test(expected = ProxyCacheException.class)
+    public void testTailCantExceedSource() throws Exception {
+        TailCache tailCache = new TailCache(newCacheFile());
+        tailCache.begin(900, 1000, "\"v1\"");
+        tailCache.append(generate(101), 101);
+    }
+
+    @Test
+    public void testTailFileBelongsToEntry() throws Exception {
+        File file = new File("cache", "video.mp4");
+        File tailFile = TailCache.getTailFile(file);
+
+        assertThat(FileCache.getEntryName(tailFile)).isEqualTo("video.mp4");
+        assertThat(FileCache.isTempFile(tailFile)).isTrue();
+        assertThat(TailCache.getTailFile(FileCache.getTempFile(file))).isEqualTo(tailFile);
+    }
+}
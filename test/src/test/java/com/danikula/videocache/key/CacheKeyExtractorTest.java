@@ -0,0 +1,66 @@
+package com.danikula.videocache.key;
+
+import com.danikula.videocache.BaseTest;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link CacheKeyExtractor} implementations.
+ */
+public class CacheKeyExtractorTest extends BaseTest {
+
+    @Test
+    public void testUrlAsKey() throws Exception {
+        String url = "http://host.com/video.mp4?token=abc";
+        assertThat(new UrlCacheKeyExtractor().extract(url)).isEqualTo(url);
+    }
+
+    @Test
+    public void testDenyQueryParameters() throws Exception {
+        CacheKeyExtractor extractor = new NormalizingCacheKeyExtractor.Builder()
+                .denyQueryParameters("token", "expires", "sig")
+                .build();
+
+        assertThat(extractor.extract("http://host.com/video.mp4?id=1&token=abc&expires=123&sig=xyz"))
+                .isEqualTo("http://host.com/video.mp4?id=1");
+        assertThat(extractor.extract("http://host.com/video.mp4?token=abc&expires=123"))
+                .isEqualTo("http://host.com/video.mp4");
+        assertThat(extractor.extract("http://host.com/video.mp4?token=abc&id=1"))
+                .isEqualTo(extractor.extract("http://host.com/video.mp4?id=1&token=xyz"));
+    }
+
+    @Test
+    public void testAllowQueryParameters() throws Exception {
+        CacheKeyExtractor extractor = new NormalizingCacheKeyExtractor.Builder()
+                .allowQueryParameters("id", "quality")
+                .build();
+
+        assertThat(extractor.extract("http://host.com/video?session=1&id=42&quality=hd&flag"))
+                .isEqualTo("http://host.com/video?id=42&quality=hd");
+    }
+
+    @Test
+    public void testAliasHost() throws Exception {
+        CacheKeyExtractor extractor = new NormalizingCacheKeyExtractor.Builder()
+                .aliasHost("CDN2.example.com", "cdn1.example.com")
+                .build();
+
+        assertThat(extractor.extract("https://cdn2.example.com/a/video.mp4")).isEqualTo("https://cdn1.example.com/a/video.mp4");
+        assertThat(extractor.extract("https://user@cdn2.example.com:8080/video.mp4")).isEqualTo("https://user@cdn1.example.com:8080/video.mp4");
+        assertThat(extractor.extract("https://cdn2.example.com")).isEqualTo("https://cdn1.example.com");
+        assertThat(extractor.extract("https://cdn3.example.com/video.mp4")).isEqualTo("https://cdn3.example.com/video.mp4");
+    }
+
+    @Test
+    public void testDropFragment() throws Exception {
+        CacheKeyExtractor extractor = new NormalizingCacheKeyExtractor.Builder().build();
+        assertThat(extractor.extract("http://host.com/video.mp4?id=1#t=10")).isEqualTo("http://host.com/video.mp4?id=1");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullUrl() throws Exception {
+        new NormalizingCacheKeyExtractor.Builder().build().extract(null);
+    }
+}
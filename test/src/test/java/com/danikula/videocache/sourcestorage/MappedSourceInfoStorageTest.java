@@ -0,0 +1,105 @@
+package com.danikula.videocache.sourcestorage;
+
+import com.danikula.videocache.BaseTest;
+import com.danikula.videocache.SourceInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static com.danikula.videocache.support.ProxyCacheTestUtils.newCacheFile;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link MappedSourceInfoStorage}.
+ */
+public class MappedSourceInfoStorageTest extends BaseTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(newCacheFile(), "infos");
+    }
+
+    @Test
+    public void testReloading() throws Exception {
+        SourceInfoStorage storage = new MappedSourceInfoStorage(file);
+        storage.put(":-)", new SourceInfo("http://redirected", 42, "text/plain", "\"abc\"", null));
+        storage.put(":-(", new SourceInfo(":-(", 43, null));
+        storage.put(":-)", new SourceInfo("http://redirected", 44, "video/mp4", "\"abc\"", null));
+        storage.release();
+
+        storage = new MappedSourceInfoStorage(file);
+        SourceInfo sourceInfo = storage.get(":-)");
+        assertThat(sourceInfo.url).isEqualTo("http://redirected");
+        assertThat(sourceInfo.length).isEqualTo(44);
+        assertThat(sourceInfo.mime).isEqualTo("video/mp4");
+        assertThat(sourceInfo.etag).isEqualTo("\"abc\"");
+        assertThat(sourceInfo.lastModified).isNull();
+        assertThat(storage.get(":-(").length).isEqualTo(43);
+        assertThat(storage.get(":-(").mime).isNull();
+        assertThat(storage.get("absent")).isNull();
+        storage.release();
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        SourceInfoStorage storage = new MappedSourceInfoStorage(file);
+        storage.put("first", new SourceInfo("first", 1, "video/mp4"));
+        storage.put("second", new SourceInfo("second", 2, "video/mp4"));
+        storage.release();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(randomAccessFile.length() - 3);
+        randomAccessFile.close();
+
+        storage = new MappedSourceInfoStorage(file);
+        assertThat(storage.get("first").length).isEqualTo(1);
+        assertThat(storage.get("second")).isNull();
+        storage.put("third", new SourceInfo("third", 3, "video/mp4"));
+        storage.release();
+
+        storage = new MappedSourceInfoStorage(file);
+        assertThat(storage.get("first").length).isEqualTo(1);
+        assertThat(storage.get("third").length).isEqualTo(3);
+        storage.release();
+    }
+
+    @Test
+    public void testCorruptedFileIsReset() throws Exception {
+        assertThat(file.getParentFile().mkdirs()).isTrue();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.writeLong(-1);
+        randomAccessFile.close();
+
+        SourceInfoStorage storage = new MappedSourceInfoStorage(file);
+        assertThat(storage.get("any")).isNull();
+        storage.put("any", new SourceInfo("any", 1, "video/mp4"));
+        storage.release();
+
+        storage = new MappedSourceInfoStorage(file);
+        assertThat(storage.get("any").length).isEqualTo(1);
+        storage.release();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        SourceInfoStorage storage = new MappedSourceInfoStorage(file);
+        for (int i = 0; i < 1000; i++) {
+            storage.put("key", new SourceInfo("key", i, "video/mp4"));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() >= 100 * 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10); // wait for background compaction
+        }
+        long compactedLength = file.length();
+        storage.release();
+
+        assertThat(compactedLength).isLessThan(100 * 100);
+        storage = new MappedSourceInfoStorage(file);
+        assertThat(storage.get("key").length).isEqualTo(999);
+        storage.release();
+    }
+}
@@ -0,0 +1,76 @@
+package com.danikula.videocache.sourcestorage;
+
+import com.danikula.videocache.BaseTest;
+import com.danikula.videocache.SourceInfo;
+
+import org.junit.Test;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Locale;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares open, get and put timings of {@link DatabaseSourceInfoStorage} and {@link MappedSourceInfoStorage}.
+ * Numbers are printed to test output, they make sense only for comparison within single run.
+ */
+public class SourceInfoStorageBenchmarkTest extends BaseTest {
+
+    private static final int ENTRIES_COUNT = 2000;
+
+    @Test
+    public void testDatabaseStorage() throws Exception {
+        RuntimeEnvironment.application.deleteDatabase("AndroidVideoCache.db");
+        benchmark("database", new StorageFactory() {
+            @Override
+            public SourceInfoStorage create() {
+                return SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+            }
+        });
+    }
+
+    @Test
+    public void testMappedStorage() throws Exception {
+        RuntimeEnvironment.application.getFileStreamPath("AndroidVideoCache.infos").delete();
+        benchmark("mapped", new StorageFactory() {
+            @Override
+            public SourceInfoStorage create() {
+                return SourceInfoStorageFactory.newMappedSourceInfoStorage(RuntimeEnvironment.application);
+            }
+        });
+    }
+
+    private void benchmark(String name, StorageFactory factory) {
+        SourceInfoStorage storage = factory.create();
+        long start = System.nanoTime();
+        for (int i = 0; i < ENTRIES_COUNT; i++) {
+            storage.put(url(i), new SourceInfo(url(i), i, "video/mp4", "\"etag" + i + "\"", null));
+        }
+        storage.release(); // flushes pending writes
+        long putTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        storage = factory.create();
+        storage.get(url(0));
+        long openTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ENTRIES_COUNT; i++) {
+            assertThat(storage.get(url(i)).length).isEqualTo(i);
+        }
+        long getTime = System.nanoTime() - start;
+        storage.release();
+
+        System.out.println(String.format(Locale.US, "%s storage: open %.2f ms, %d puts %.2f ms, %d gets %.2f ms",
+                name, openTime / 1e6, ENTRIES_COUNT, putTime / 1e6, ENTRIES_COUNT, getTime / 1e6));
+    }
+
+    private String url(int index) {
+        return "https://cdn.example.com/videos/" + index + "/video.mp4";
+    }
+
+    private interface StorageFactory {
+
+        SourceInfoStorage create();
+    }
+}
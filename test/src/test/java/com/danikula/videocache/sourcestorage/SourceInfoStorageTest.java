@@ -64,6 +64,45 @@ public class SourceInfoStorageTest extends BaseTest {
         assertThat(sourceInfo.mime).isEqualTo("video/mp4");
     }
 
+    @Test
+    public void testSavingValidators() throws Exception {
+        String url = ":-)";
+        storage.put(url, new SourceInfo("http://redirected", 42, "video/mp4", "\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT"));
+
+        SourceInfo sourceInfo = storage.get(url);
+        assertThat(sourceInfo.url).isEqualTo("http://redirected");
+        assertThat(sourceInfo.etag).isEqualTo("\"abc\"");
+        assertThat(sourceInfo.lastModified).isEqualTo("Wed, 21 Oct 2015 07:28:00 GMT");
+    }
+
+    @Test
+    public void testSavedAfterRelease() throws Exception {
+        String url = ":-)";
+        storage.put(url, new SourceInfo(url, 42, "text/plain"));
+        storage.put(url, new SourceInfo(url, 43, "video/mp4"));
+        storage.release();
+
+        storage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        SourceInfo sourceInfo = storage.get(url);
+        assertThat(sourceInfo.length).isEqualTo(43);
+        assertThat(sourceInfo.mime).isEqualTo("video/mp4");
+    }
+
+    @Test
+    public void testKeyDifferentFromUrlIsSavedAfterRelease() throws Exception {
+        String key = "cdn.com/video.mp4";
+        storage.put(key, new SourceInfo("http://redirected/video.mp4", 42, "video/mp4", "\"abc\"", null));
+        storage.put(key, new SourceInfo("http://redirected2/video.mp4", 43, "video/mp4", "\"def\"", null));
+        storage.release();
+
+        storage = SourceInfoStorageFactory.newSourceInfoStorage(RuntimeEnvironment.application);
+        SourceInfo sourceInfo = storage.get(key);
+        assertThat(sourceInfo.url).isEqualTo("http://redirected2/video.mp4");
+        assertThat(sourceInfo.length).isEqualTo(43);
+        assertThat(sourceInfo.etag).isEqualTo("\"def\"");
+        assertThat(storage.get("http://redirected2/video.mp4")).isNull();
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNpeForGetting() throws Exception {
         storage.get(null);
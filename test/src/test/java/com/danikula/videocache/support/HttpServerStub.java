@@ -0,0 +1,216 @@
+package com.danikula.videocache.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal local http server with scripted responses, like okhttp's MockWebServer.
+ * Responses enqueued by {@link #enqueue(StubResponse)} are served in order, then responses set for path
+ * by {@link #setResponse(String, StubResponse)} are used, otherwise 404 is returned.
+ * Every connection serves single request and is closed.
+ *
+ * @author Alexey Danilov (danikula@gmail.com).
+ */
+public class HttpServerStub {
+
+    private static final long TAKE_REQUEST_TIMEOUT = 5000;
+
+    private final ServerSocket                   serverSocket;
+    private final Queue<StubResponse>            queue     = new ConcurrentLinkedQueue<>();
+    private final Map<String, StubResponse>      responses = new ConcurrentHashMap<>();
+    private final BlockingQueue<RecordedRequest> requests  = new LinkedBlockingQueue<>();
+    private final Thread                         acceptThread;
+
+    public HttpServerStub() throws IOException {
+        this.serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        this.acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "Http server stub");
+        this.acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String url(String path) {
+        return String.format(Locale.US, "http://127.0.0.1:%d%s", getPort(), path);
+    }
+
+    public void enqueue(StubResponse response) {
+        queue.add(response);
+    }
+
+    public void setResponse(String path, StubResponse response) {
+        responses.put(path, response);
+    }
+
+    /**
+     * Waits for the next request received by server.
+     *
+     * @return a request or {@code null} if there is no request for a few seconds.
+     */
+    public RecordedRequest takeRequest() throws InterruptedException {
+        return requests.poll(TAKE_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public int getRequestCount() {
+        return requests.size();
+    }
+
+    public void shutdown() throws IOException {
+        serverSocket.close();
+        acceptThread.interrupt();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Socket socket = serverSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            }
+        } catch (SocketException e) {
+            // server is shut down
+        } catch (IOException e) {
+            throw new IllegalStateException("Error accepting connection", e);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            RecordedRequest request = new RecordedRequest(readHead(socket.getInputStream()));
+            StubResponse response = queue.poll();
+            if (response == null) {
+                response = responses.get(request.path);
+            }
+            if (response == null) {
+                response = new StubResponse(404);
+            }
+            requests.add(request);
+            writeResponse(socket.getOutputStream(), response, "HEAD".equals(request.method));
+        } catch (IOException e) {
+            // client closed connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int lineLength = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    break;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+            head.write(b);
+        }
+        return head.toString("UTF-8");
+    }
+
+    private void writeResponse(OutputStream out, StubResponse response, boolean head) throws IOException {
+        StringBuilder headers = new StringBuilder("HTTP/1.1 " + response.code + " Stub\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            headers.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (!response.headers.containsKey("Content-Length")) {
+            headers.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("UTF-8"));
+        if (!head) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    public static class StubResponse {
+
+        private final int                 code;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private       byte[]              body    = new byte[0];
+
+        public StubResponse(int code) {
+            this.code = code;
+        }
+
+        public StubResponse setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public StubResponse setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        public StubResponse setBody(String body) {
+            try {
+                return setBody(body.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public static class RecordedRequest {
+
+        public final String method;
+        public final String path;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        RecordedRequest(String head) {
+            String[] lines = head.split("\r?\n");
+            String[] requestLine = lines[0].split(" ");
+            this.method = requestLine[0];
+            this.path = requestLine.length > 1 ? requestLine[1] : "";
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+                }
+            }
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.danikula.videocache.validation;
+
+import com.danikula.videocache.BaseTest;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Tests for {@link RevalidationPolicy} implementations.
+ */
+public class RevalidationPolicyTest extends BaseTest {
+
+    @Test
+    public void testNoRevalidation() throws Exception {
+        RevalidationPolicy policy = new NoRevalidationPolicy();
+        assertThat(policy.shouldRevalidate("key")).isFalse();
+    }
+
+    @Test
+    public void testMaxAgeRevalidation() throws Exception {
+        RevalidationPolicy policy = new MaxAgeRevalidationPolicy(1, TimeUnit.HOURS);
+        assertThat(policy.shouldRevalidate("key")).isTrue();
+
+        policy.onRevalidated("key");
+        assertThat(policy.shouldRevalidate("key")).isFalse();
+        assertThat(policy.shouldRevalidate("anotherKey")).isTrue();
+    }
+
+    @Test
+    public void testZeroMaxAgeRevalidation() throws Exception {
+        RevalidationPolicy policy = new MaxAgeRevalidationPolicy(0, TimeUnit.SECONDS);
+        policy.onRevalidated("key");
+        assertThat(policy.shouldRevalidate("key")).isTrue();
+    }
+}